@@ -0,0 +1,126 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.model.GroupIdentifier;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.Placement;
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Synthetic EC2 fleets and mappings for the benchmarks. Fleets are generated from a fixed seed, so
+ * each run maps the same instances.
+ */
+final class Fleet {
+    static final long SEED = 0x45433242L;
+    private static final String[] ZONES = {"us-east-1a", "us-east-1b", "us-east-1c", "eu-west-1a", "eu-west-1b"};
+    private static final InstanceStateName[] STATES = {
+            InstanceStateName.RUNNING, InstanceStateName.RUNNING, InstanceStateName.RUNNING,
+            InstanceStateName.RUNNING, InstanceStateName.STOPPED, InstanceStateName.PENDING
+    };
+    private static final String[] TYPES = {"t3.micro", "t3.large", "m5.large", "m5.xlarge", "c5.2xlarge", "r5.large"};
+    private static final String[] ENVIRONMENTS = {"prod", "staging", "dev", "qa"};
+    private static final String[] ROLES = {"web", "api", "worker", "db", "cache", "batch"};
+
+    /**
+     * Mappings by name: the plugin default, a custom mapping using most selector forms, and the
+     * default with all tags copied to the attributes
+     */
+    enum Mapping {
+        DEFAULT, HEAVY, ALL_TAGS;
+
+        Properties properties() {
+            final Properties mapping = new Properties();
+            mapping.putAll(EC2ResourceModelSource.defaultMapping);
+            switch (this) {
+                case HEAVY:
+                    mapping.setProperty("nodename.selector", "tags/Name+'-'+instanceId");
+                    mapping.setProperty("hostname.selector", "publicDnsName,privateDnsName,privateIpAddress");
+                    mapping.setProperty("tags.selector", "tags/Rundeck-Tags|tags/env|tags/role");
+                    mapping.setProperty("environment.selector", "tags/env");
+                    mapping.setProperty("role.selector", "tags/role,'unassigned'");
+                    mapping.setProperty("team.selector", "tags/team");
+                    mapping.setProperty("zone.selector", "placement.availabilityZone");
+                    mapping.setProperty("instanceType.selector", "instanceType");
+                    mapping.setProperty("vpc.selector", "vpcId");
+                    mapping.setProperty("subnet.selector", "subnetId");
+                    mapping.setProperty("image.selector", "imageId");
+                    mapping.setProperty("launched.selector", "launchTime");
+                    mapping.setProperty("profile.selector", "iamInstanceProfile.arn");
+                    mapping.setProperty("description.selector", "tags/role+' in '+tags/env+' ('+instanceType+')'");
+                    mapping.setProperty("tag.production.selector", "tags/env=prod");
+                    mapping.setProperty("tag.large.selector", "instanceType=m5.xlarge");
+                    break;
+                case ALL_TAGS:
+                    mapping.setProperty("attributes.selector", "tags/*");
+                    break;
+                default:
+                    break;
+            }
+            return mapping;
+        }
+    }
+
+    private Fleet() {
+    }
+
+    /**
+     * Generate the instances of a fleet
+     *
+     * @param size     number of instances
+     * @param tagCount number of tags of each instance, at least the Name, env and role tags
+     */
+    static List<Ec2Instance> generate(final int size, final int tagCount) {
+        final Random random = new Random(SEED);
+        final List<Ec2Instance> instances = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            instances.add(Ec2Instance.builder(instance(random, i, tagCount)));
+        }
+        return instances;
+    }
+
+    static Instance instance(final Random random, final int i, final int tagCount) {
+        final String id = String.format("i-%017x", (long) i * 0x9E3779B1L & 0xFFFFFFFFFFFFFL);
+        final String ip = "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255);
+        final String env = ENVIRONMENTS[random.nextInt(ENVIRONMENTS.length)];
+        final String role = ROLES[random.nextInt(ROLES.length)];
+        final List<Tag> tags = new ArrayList<>(tagCount);
+        tags.add(tag("Name", role + "-" + env + "-" + i));
+        tags.add(tag("env", env));
+        tags.add(tag("role", role));
+        if (random.nextInt(4) == 0) {
+            tags.add(tag("Rundeck-Tags", role + "," + env));
+        }
+        for (int t = tags.size(); t < tagCount; t++) {
+            tags.add(tag("tag" + t, "value-" + random.nextInt(1000)));
+        }
+        final boolean isPublic = random.nextInt(3) == 0;
+        return Instance.builder()
+                       .instanceId(id)
+                       .imageId(String.format("ami-%08x", random.nextInt(40)))
+                       .instanceType(TYPES[random.nextInt(TYPES.length)])
+                       .architecture("x86_64")
+                       .keyName("deploy")
+                       .launchTime(Instant.ofEpochSecond(1_600_000_000L + random.nextInt(100_000_000)))
+                       .privateIpAddress(ip)
+                       .privateDnsName("ip-" + ip.replace('.', '-') + ".ec2.internal")
+                       .publicDnsName(isPublic ? "ec2-" + ip.replace('.', '-') + ".compute-1.amazonaws.com" : "")
+                       .vpcId("vpc-" + random.nextInt(4))
+                       .subnetId("subnet-" + random.nextInt(24))
+                       .placement(Placement.builder().availabilityZone(ZONES[random.nextInt(ZONES.length)]).build())
+                       .state(InstanceState.builder().name(STATES[random.nextInt(STATES.length)]).build())
+                       .securityGroups(GroupIdentifier.builder().groupId("sg-" + random.nextInt(16)).build())
+                       .tags(tags)
+                       .build();
+    }
+
+    private static Tag tag(final String key, final String value) {
+        return Tag.builder().key(key).value(value).build();
+    }
+}
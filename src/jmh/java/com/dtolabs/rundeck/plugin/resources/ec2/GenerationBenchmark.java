@@ -0,0 +1,101 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the node set of a whole fleet: removing the duplicates returned by overlapping
+ * endpoints, mapping every instance, and merging with the previous generation when few or no
+ * instances changed. Times are milliseconds per fleet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenerationBenchmark {
+    static final String REGION = "ec2.us-east-1.amazonaws.com";
+
+    @Param({"1000", "10000", "100000"})
+    int fleetSize;
+
+    @Param({"DEFAULT", "HEAVY", "ALL_TAGS"})
+    String mapping;
+
+    private List<Ec2Instance> fleet;
+    private List<Ec2Instance> changed;
+    private MappingPlan plan;
+    private NodeGeneration previous;
+
+    @Setup
+    public void setup() {
+        fleet = Fleet.generate(fleetSize, 16);
+        plan = MappingPlan.compile(Fleet.Mapping.valueOf(mapping).properties());
+        previous = new NodeGeneration(plan, null);
+        previous.addAll(REGION, fleet);
+        previous.regionSucceeded(REGION);
+
+        // one instance in ten has a changed tag
+        changed = new ArrayList<>(fleet.size());
+        for (int i = 0; i < fleet.size(); i++) {
+            final Ec2Instance inst = fleet.get(i);
+            if (i % 10 == 0) {
+                final Instance instance = inst.instance();
+                final List<Tag> tags = new ArrayList<>(instance.tags());
+                tags.set(1, Tag.builder().key("env").value("changed").build());
+                changed.add(Ec2Instance.builder(instance.toBuilder().tags(tags).build()));
+            } else {
+                changed.add(inst);
+            }
+        }
+    }
+
+    /**
+     * Add the fleet twice, as returned by two endpoints covering the same region
+     */
+    @Benchmark
+    public int dedupe() {
+        final InstanceIdSet instances = new InstanceIdSet(fleet.size());
+        instances.addAll(fleet);
+        instances.addAll(fleet);
+        return instances.size();
+    }
+
+    @Benchmark
+    public INodeSet mapAll() {
+        final NodeGeneration generation = new NodeGeneration(plan, null);
+        generation.addAll(REGION, fleet);
+        return generation.getNodeSet();
+    }
+
+    @Benchmark
+    public INodeSet mergeUnchanged() {
+        final NodeGeneration generation = new NodeGeneration(plan, previous);
+        generation.addAll(REGION, fleet);
+        return generation.getNodeSet();
+    }
+
+    @Benchmark
+    public INodeSet mergeTenPercentChanged() {
+        final NodeGeneration generation = new NodeGeneration(plan, previous);
+        generation.addAll(REGION, changed);
+        return generation.getNodeSet();
+    }
+}
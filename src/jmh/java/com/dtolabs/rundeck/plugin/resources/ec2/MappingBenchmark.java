@@ -0,0 +1,82 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of mapping instances to nodes. Each operation maps the next instance of the fleet, so
+ * the score is nodes per second, and with the gc profiler gc.alloc.rate.norm is the bytes allocated
+ * per mapped node.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int fleetSize;
+
+    @Param({"8", "32"})
+    int tagCount;
+
+    @Param({"DEFAULT", "HEAVY", "ALL_TAGS"})
+    String mapping;
+
+    private List<Ec2Instance> fleet;
+    private Properties properties;
+    private MappingPlan plan;
+    private int next;
+
+    @Setup
+    public void setup() {
+        fleet = Fleet.generate(fleetSize, tagCount);
+        properties = Fleet.Mapping.valueOf(mapping).properties();
+        plan = MappingPlan.compile(properties);
+    }
+
+    private Ec2Instance nextInstance() {
+        final Ec2Instance inst = fleet.get(next);
+        next = next + 1 == fleet.size() ? 0 : next + 1;
+        return inst;
+    }
+
+    /**
+     * Map with the plan compiled once per query, as the mapper does
+     */
+    @Benchmark
+    public INodeEntry instanceToNode() throws InstanceToNodeMapper.GeneratorException {
+        return InstanceToNodeMapper.instanceToNode(nextInstance(), plan);
+    }
+
+    /**
+     * Map with the mapping properties, compiling the plan for each node
+     */
+    @Benchmark
+    public INodeEntry instanceToNodeUncompiled() throws InstanceToNodeMapper.GeneratorException {
+        return InstanceToNodeMapper.instanceToNode(nextInstance(), properties);
+    }
+
+    /**
+     * Project the SDK instance to the values read by the mapping, then map it
+     */
+    @Benchmark
+    public INodeEntry projectAndMap() throws InstanceToNodeMapper.GeneratorException {
+        return plan.map(plan.projection().project(nextInstance().instance()));
+    }
+}
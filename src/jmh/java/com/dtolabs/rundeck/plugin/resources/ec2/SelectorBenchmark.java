@@ -0,0 +1,84 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resolving single selectors against an instance, in nanoseconds per selector
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SelectorBenchmark {
+    static final String FALLBACK = "tags/Name,instanceId";
+    static final String MERGE = "tags/Rundeck-Tags|tags/env|tags/role";
+
+    @Param({"8", "32"})
+    int tagCount;
+
+    private List<Ec2Instance> fleet;
+    private MappingPlan.Selector fallback;
+    private int next;
+
+    @Setup
+    public void setup() {
+        fleet = Fleet.generate(1000, tagCount);
+        fallback = MappingPlan.Selector.compile(FALLBACK, false);
+    }
+
+    private Ec2Instance nextInstance() {
+        final Ec2Instance inst = fleet.get(next);
+        next = next + 1 == fleet.size() ? 0 : next + 1;
+        return inst;
+    }
+
+    @Benchmark
+    public String applySelector() throws InstanceToNodeMapper.GeneratorException {
+        return InstanceToNodeMapper.applySelector(nextInstance(), FALLBACK, null);
+    }
+
+    @Benchmark
+    public String applySelectorCompiled() throws InstanceToNodeMapper.GeneratorException {
+        return fallback.apply(nextInstance(), null);
+    }
+
+    @Benchmark
+    public String applySelectorMerge() throws InstanceToNodeMapper.GeneratorException {
+        return InstanceToNodeMapper.applySelector(nextInstance(), MERGE, null, true);
+    }
+
+    @Benchmark
+    public String applyMultiSelector() throws InstanceToNodeMapper.GeneratorException {
+        return InstanceToNodeMapper.applyMultiSelector(nextInstance(), "tags/role", "' in '", "tags/env");
+    }
+
+    @Benchmark
+    public String resolveProperty() throws InstanceToNodeMapper.GeneratorException {
+        return InstanceToNodeMapper.resolveProperty(nextInstance(), "instanceType");
+    }
+
+    @Benchmark
+    public String resolveNestedProperty() throws InstanceToNodeMapper.GeneratorException {
+        return InstanceToNodeMapper.resolveProperty(nextInstance(), "placement.availabilityZone");
+    }
+
+    @Benchmark
+    public String tag() {
+        return nextInstance().tag("env");
+    }
+}
@@ -0,0 +1,71 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DescribeInstances page size of a source, adapted between bounds from the observed page
+ * latency and throttling. A page slower than the target latency shrinks the size by a quarter, so
+ * that pages do not approach the region timeout. A throttled call, or a page faster than half the
+ * target, grows the size by a quarter, since fewer larger pages use fewer of the account's
+ * requests.
+ */
+final class AdaptivePageSize {
+    static final int MIN_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 1000;
+    static final long TARGET_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    private final int min;
+    private final int max;
+    private volatile boolean adaptive;
+    private volatile int size;
+
+    /**
+     * @param initial the configured page size, used while the size is not adaptive
+     */
+    AdaptivePageSize(final int initial) {
+        this.size = initial;
+        this.min = Math.min(initial, MIN_PAGE_SIZE);
+        this.max = Math.max(initial, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Set whether the size adapts
+     */
+    void setAdaptive(final boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return the page size to request
+     */
+    int get() {
+        return size;
+    }
+
+    /**
+     * Record the latency of a page
+     */
+    synchronized void onPage(final long latencyNanos) {
+        if (!adaptive) {
+            return;
+        }
+        if (latencyNanos > TARGET_LATENCY_NANOS) {
+            size = Math.max(min, size - size / 4);
+        } else if (latencyNanos < TARGET_LATENCY_NANOS / 2) {
+            grow();
+        }
+    }
+
+    /**
+     * Record a throttled call
+     */
+    synchronized void onThrottle() {
+        if (adaptive) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        size = Math.min(max, size + Math.max(1, size / 4));
+    }
+}
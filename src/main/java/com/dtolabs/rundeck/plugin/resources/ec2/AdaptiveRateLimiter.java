@@ -0,0 +1,245 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side token bucket for the EC2 API calls of one account in one region, shared by all the
+ * sources in the JVM so that they do not exceed the account's request rate together.
+ * <p>
+ * The rate adapts to throttling by additive increase and multiplicative decrease: a throttled
+ * response halves the rate, at most once per second so that a burst of throttled responses counts
+ * once, and each successful response raises it by the inverse of the rate, about one request per
+ * second each second, up to the maximum rate. Calls wait for a token instead of being sent and
+ * throttled.
+ * </p>
+ * <p>
+ * Each source uses the shared limiter through its own limiter, returned by {@link #shared(String,
+ * String, double)}, which also holds the calls of the source to its own maximum rate. The shared
+ * limiter allows the highest maximum rate of the sources using it, so a source configured with a
+ * lower rate does not slow the others down, and is removed once every source has released it.
+ * </p>
+ */
+final class AdaptiveRateLimiter {
+    static final double MIN_RATE = 1.0;
+    static final double DECREASE_FACTOR = 0.5;
+    static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // guarded by itself, as are the sources of each shared limiter
+    private static final Map<String, AdaptiveRateLimiter> SHARED = new HashMap<>();
+
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final AdaptiveRateLimiter shared;
+    private final String sharedKey;
+    private final List<AdaptiveRateLimiter> sources;
+    private double maxRate;
+    private double rate;
+    private double tokens;
+    private long refilledAt;
+    private long decreasedAt;
+
+    /**
+     * @param maxRate maximum requests per second
+     */
+    AdaptiveRateLimiter(final double maxRate) {
+        this(maxRate, null, null);
+    }
+
+    private AdaptiveRateLimiter(final double maxRate, final AdaptiveRateLimiter shared, final String sharedKey) {
+        this.maxRate = Math.max(MIN_RATE, maxRate);
+        this.rate = this.maxRate;
+        this.tokens = this.maxRate;
+        this.refilledAt = System.nanoTime();
+        this.decreasedAt = refilledAt - DECREASE_INTERVAL_NANOS;
+        this.shared = shared;
+        this.sharedKey = sharedKey;
+        this.sources = null == sharedKey ? null : new ArrayList<>();
+    }
+
+    /**
+     * Return a limiter for one source, limiting its calls to its maximum rate and to the rate of the
+     * limiter shared by all sources for the account and region. Release it with {@link #release()}
+     * when the source is closed.
+     *
+     * @param account identifies the account, e.g. the role ARN or access key
+     * @param region  region name
+     * @param maxRate maximum requests per second of the source
+     */
+    static AdaptiveRateLimiter shared(final String account, final String region, final double maxRate) {
+        final String key = account + "|" + region;
+        synchronized (SHARED) {
+            final AdaptiveRateLimiter limiter = SHARED.computeIfAbsent(
+                    key,
+                    k -> new AdaptiveRateLimiter(maxRate, null, k)
+            );
+            final AdaptiveRateLimiter source = new AdaptiveRateLimiter(maxRate, limiter, null);
+            limiter.sources.add(source);
+            limiter.updateMaxRate();
+            return source;
+        }
+    }
+
+    /**
+     * Stop using the shared limiter. The shared limiter is removed when no source uses it.
+     */
+    void release() {
+        if (null == shared) {
+            return;
+        }
+        synchronized (SHARED) {
+            if (!shared.sources.remove(this)) {
+                return;
+            }
+            if (shared.sources.isEmpty()) {
+                SHARED.remove(shared.sharedKey, shared);
+            } else {
+                shared.updateMaxRate();
+            }
+        }
+    }
+
+    /**
+     * @return the number of shared limiters in use
+     */
+    static int sharedCount() {
+        synchronized (SHARED) {
+            return SHARED.size();
+        }
+    }
+
+    /**
+     * Allow the highest maximum rate of the sources
+     */
+    private void updateMaxRate() {
+        double highest = MIN_RATE;
+        for (final AdaptiveRateLimiter source : sources) {
+            highest = Math.max(highest, source.maxRate);
+        }
+        synchronized (this) {
+            maxRate = highest;
+            rate = Math.min(rate, maxRate);
+        }
+    }
+
+    /**
+     * Take a token, and return how long the caller must wait before using it
+     *
+     * @return the wait in nanoseconds, 0 if a token was available
+     */
+    long reserve() {
+        final long wait = reserveToken();
+        return null == shared ? wait : Math.max(wait, shared.reserve());
+    }
+
+    private synchronized long reserveToken() {
+        final long now = System.nanoTime();
+        // the bucket holds at most one second of requests
+        tokens = Math.min(rate, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    /**
+     * Wait for a token. If the thread is interrupted it stops waiting and keeps its interrupt
+     * status.
+     */
+    void acquire() {
+        final long wait = reserve();
+        if (wait > 0) {
+            waits.increment();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Take a token without blocking
+     *
+     * @return completes when the token can be used
+     */
+    CompletableFuture<Void> acquireAsync() {
+        final long wait = reserve();
+        if (wait <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        waits.increment();
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Record a successful response
+     */
+    void onSuccess() {
+        if (null != shared) {
+            shared.onSuccess();
+            return;
+        }
+        synchronized (this) {
+            rate = Math.min(maxRate, rate + 1.0 / rate);
+        }
+    }
+
+    /**
+     * Record a throttled response
+     */
+    void onThrottle() {
+        throttles.increment();
+        if (null != shared) {
+            shared.onThrottle();
+            return;
+        }
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (now - decreasedAt >= DECREASE_INTERVAL_NANOS) {
+                decreasedAt = now;
+                rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+                tokens = Math.min(tokens, 0);
+            }
+        }
+    }
+
+    /**
+     * @return the current rate in requests per second
+     */
+    double getRate() {
+        final double own;
+        synchronized (this) {
+            own = rate;
+        }
+        return null == shared ? own : Math.min(own, shared.getRate());
+    }
+
+    /**
+     * @return the limiter shared with other sources, or null
+     */
+    AdaptiveRateLimiter getShared() {
+        return shared;
+    }
+
+    /**
+     * @return the number of throttled responses
+     */
+    long getThrottles() {
+        return throttles.sum();
+    }
+
+    /**
+     * @return the number of calls which had to wait for a token
+     */
+    long getWaits() {
+        return waits.sum();
+    }
+}
@@ -0,0 +1,110 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.StsClientBuilder;
+import software.amazon.awssdk.services.sts.auth.StsAssumeRoleCredentialsProvider;
+import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Credentials of an assumed role, optionally assumed with the credentials of another assumed role.
+ * The session credentials of each role are cached and renewed on a background thread before they
+ * expire, so once the first credentials are resolved EC2 calls never wait for STS. One STS client,
+ * for the regional endpoint closest to the queried regions, is used for every role of the chain and
+ * every renewal; each role after the first is assumed with the credentials of the previous one.
+ */
+final class AssumeRoleCredentials implements AwsCredentialsProvider, SdkAutoCloseable {
+    static final String SESSION_NAME = "RundeckEC2ResourceModelSourceSession";
+
+    private final StsClient sts;
+    private final List<StsAssumeRoleCredentialsProvider> roles = new ArrayList<>();
+
+    /**
+     * @param base       credentials used to assume the first role, or null for the default provider chain
+     * @param region     region of the STS endpoint
+     * @param httpClient shared HTTP client, or null for default
+     */
+    AssumeRoleCredentials(final AwsCredentialsProvider base, final Region region, final SdkHttpClient httpClient) {
+        final StsClientBuilder builder = StsClient.builder().region(region);
+        if (null != httpClient) {
+            builder.httpClient(httpClient);
+        }
+        if (null != base) {
+            builder.credentialsProvider(base);
+        }
+        this.sts = builder.build();
+    }
+
+    /**
+     * Assume a role with the credentials of the last role assumed, or the base credentials
+     *
+     * @param roleArn    role ARN
+     * @param externalId external ID, or null
+     * @return this provider, resolving the credentials of the role
+     */
+    AssumeRoleCredentials assume(final String roleArn, final String externalId) {
+        final AssumeRoleRequest.Builder request = AssumeRoleRequest.builder()
+                .roleArn(roleArn)
+                .roleSessionName(SESSION_NAME);
+        if (null != externalId) {
+            request.externalId(externalId);
+        }
+        if (!roles.isEmpty()) {
+            request.overrideConfiguration(AwsRequestOverrideConfiguration.builder()
+                    .credentialsProvider(roles.get(roles.size() - 1))
+                    .build());
+        }
+        roles.add(StsAssumeRoleCredentialsProvider.builder()
+                          .stsClient(sts)
+                          .refreshRequest(request.build())
+                          .asyncCredentialUpdateEnabled(true)
+                          .build());
+        return this;
+    }
+
+    /**
+     * Return the region of the STS endpoint to use for a source: its region, the region of its first
+     * endpoint, or the default region for all regions
+     *
+     * @param region        configured region, or null
+     * @param endpoint      configured endpoints, or null
+     * @param defaultRegion region used if none is configured
+     */
+    static Region stsRegion(final String region, final String endpoint, final Region defaultRegion) {
+        if (null != region && !"".equals(region.trim())) {
+            return Region.of(region.trim());
+        }
+        if (null == endpoint || "ALL_REGIONS".equals(endpoint)) {
+            return defaultRegion;
+        }
+        final String first = endpoint.replaceAll("\\s+", "").split(",")[0];
+        return EC2SupplierImpl.regionFromEndpoint(first, defaultRegion);
+    }
+
+    @Override
+    public AwsCredentials resolveCredentials() {
+        if (roles.isEmpty()) {
+            throw new IllegalStateException("No role to assume");
+        }
+        return roles.get(roles.size() - 1).resolveCredentials();
+    }
+
+    /**
+     * Stop renewing the credentials and close the STS client
+     */
+    @Override
+    public void close() {
+        for (final StsAssumeRoleCredentialsProvider role : roles) {
+            role.close();
+        }
+        sts.close();
+    }
+}
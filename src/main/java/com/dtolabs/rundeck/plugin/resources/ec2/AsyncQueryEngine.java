@@ -0,0 +1,355 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.model.DescribeAvailabilityZonesResponse;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking query engine built on {@link Ec2AsyncClient}. All regions are queried at once; the
+ * DescribeInstances pages of each region, its availability zone lookup and the image name
+ * enrichment are composed as futures that complete on the async clients' small completion pool,
+ * so no thread is held while a request is in flight. Each region must complete within the region
+ * timeout of the mapper; a region which fails or times out is recorded as failed in the generation.
+ */
+final class AsyncQueryEngine {
+    static final Logger logger = LoggerFactory.getLogger(AsyncQueryEngine.class);
+    private final EC2AsyncSupplier supplier;
+
+    /**
+     * @param supplier async client supplier
+     */
+    AsyncQueryEngine(final EC2AsyncSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    /**
+     * Query all the regions configured for the mapper and map the enriched instances into the node
+     * set
+     */
+    void query(final InstanceToNodeMapper mapper, final NodeGeneration generation) {
+        final DescribeInstancesRequest request = mapper.buildRequest();
+        final CompletableFuture<Void> result = clients(mapper).thenCompose(clients -> {
+            logger.info("Querying {} regions asynchronously", clients.size());
+            final List<CompletableFuture<Void>> regions = new ArrayList<>();
+            for (final Map.Entry<String, Ec2AsyncClient> client : clients.entrySet()) {
+                final String key = client.getKey();
+                final SourceMetrics.RegionQuery query = mapper.getMetrics().startRegion(key);
+                final RefreshEvents.RegionQuery event = new RefreshEvents.RegionQuery();
+                event.begin();
+                regions.add(queryRegion(key, client.getValue(), request, mapper, generation, query)
+                                    .orTimeout(mapper.getRegionTimeoutMillis(), TimeUnit.MILLISECONDS)
+                                    .handle((count, e) -> {
+                                        if (event.shouldCommit()) {
+                                            event.region = key;
+                                            event.instances = null == count ? 0 : count;
+                                            event.succeeded = null == e;
+                                            event.commit();
+                                        }
+                                        if (null == e) {
+                                            query.finished();
+                                            generation.regionSucceeded(key);
+                                        } else {
+                                            mapper.regionFailed(generation, key, unwrap(e));
+                                        }
+                                        return null;
+                                    }));
+            }
+            return CompletableFuture.allOf(regions.toArray(new CompletableFuture[0]));
+        });
+        try {
+            result.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Error querying EC2 regions", e.getCause());
+        }
+    }
+
+    /**
+     * Open a connection to each endpoint to query by looking up its availability zones, which are
+     * then cached for the first query. Failures are only logged.
+     *
+     * @return completes when every endpoint has been tried
+     */
+    CompletableFuture<Void> warmUp(final InstanceToNodeMapper mapper) {
+        return clients(mapper).thenCompose(clients -> {
+            final List<CompletableFuture<Void>> lookups = new ArrayList<>();
+            for (final Map.Entry<String, Ec2AsyncClient> client : clients.entrySet()) {
+                final String key = client.getKey();
+                lookups.add(mapper.getZoneRegions()
+                                  .getAsync(key, () -> describeAvailabilityZones(key, client.getValue()))
+                                  .handle((zones, e) -> {
+                                      if (null != e) {
+                                          logger.debug("Could not warm up EC2 connection to {}: {}", key, e.toString());
+                                      }
+                                      return null;
+                                  }));
+            }
+            return CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0]));
+        }).exceptionally(e -> {
+            logger.debug("Could not warm up EC2 connections: {}", e.toString());
+            return null;
+        });
+    }
+
+    private static Throwable unwrap(final Throwable e) {
+        return e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+    }
+
+    /**
+     * Resolve the clients for the configured endpoints, region or the default region, by endpoint key
+     */
+    private CompletableFuture<Map<String, Ec2AsyncClient>> clients(final InstanceToNodeMapper mapper) {
+        final Map<String, Ec2AsyncClient> clients = new LinkedHashMap<>();
+        if (null != mapper.getEndpoint()) {
+            if (mapper.getEndpoint().equals("ALL_REGIONS")) {
+                //Retrieve dynamic list of EC2 regions from AWS, or the cached list
+                final RegionListCache regionList = mapper.getRegionList();
+                return regionList.get(() -> regionList.describe(supplier.getAsyncEC2ForDefaultRegion()))
+                                 .thenApply(endpoints -> {
+                                     for (final String endpoint : endpoints) {
+                                         clients.put(endpoint, supplier.getAsyncEC2ForEndpoint(endpoint));
+                                     }
+                                     return clients;
+                                 });
+            }
+            for (final String endpoint : mapper.parseEndpoints()) {
+                clients.put(endpoint, supplier.getAsyncEC2ForEndpoint(endpoint));
+            }
+        } else if (null != mapper.getRegion()) {
+            clients.put(
+                    InstanceToNodeMapper.regionKey(mapper.getRegion()),
+                    supplier.getAsyncEC2ForRegion(mapper.getRegion())
+            );
+        } else {
+            clients.put(InstanceToNodeMapper.DEFAULT_REGION_KEY, supplier.getAsyncEC2ForDefaultRegion());
+        }
+        return CompletableFuture.completedFuture(clients);
+    }
+
+    /**
+     * Query all pages for one region. Each page is enriched and mapped as soon as it arrives, and the
+     * next page is only requested once it has been mapped, so the SDK instances of one page at most
+     * are held for the region. If the returned future completes early, by the region timeout, the
+     * subscription to the pages is cancelled.
+     *
+     * @return the number of instances mapped
+     */
+    private CompletableFuture<Integer> queryRegion(
+            final String key,
+            final Ec2AsyncClient ec2,
+            final DescribeInstancesRequest request,
+            final InstanceToNodeMapper mapper,
+            final NodeGeneration generation,
+            final SourceMetrics.RegionQuery query
+    )
+    {
+        final CompletableFuture<Map<String, String>> zones = mapper.getMappingPlan().needsRegion()
+                                                             ? mapper.getZoneRegions()
+                                                                     .getAsync(key, () -> describeAvailabilityZones(key, ec2))
+                                                             : CompletableFuture.completedFuture(null);
+        final RegionPages pages = new RegionPages(key, ec2, request, mapper, generation, query, zones);
+        ec2.describeInstancesPaginator(request).subscribe(pages);
+        return pages.result;
+    }
+
+    /**
+     * Subscribes to the DescribeInstances pages of one region, requesting one page at a time
+     */
+    private final class RegionPages implements Subscriber<DescribeInstancesResponse> {
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        private final String key;
+        private final Ec2AsyncClient ec2;
+        private final DescribeInstancesRequest request;
+        private final InstanceToNodeMapper mapper;
+        private final NodeGeneration generation;
+        private final SourceMetrics.RegionQuery query;
+        private final CompletableFuture<Map<String, String>> zones;
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile Subscription subscription;
+        // the mapping of the last page delivered
+        private volatile CompletableFuture<Void> mapped = CompletableFuture.completedFuture(null);
+        // the page size is chosen when the region starts, the latency of each page adapts it for later queries
+        private volatile long pageStarted;
+        private volatile RefreshEvents.Page pageEvent;
+
+        RegionPages(
+                final String key,
+                final Ec2AsyncClient ec2,
+                final DescribeInstancesRequest request,
+                final InstanceToNodeMapper mapper,
+                final NodeGeneration generation,
+                final SourceMetrics.RegionQuery query,
+                final CompletableFuture<Map<String, String>> zones
+        )
+        {
+            this.key = key;
+            this.ec2 = ec2;
+            this.request = request;
+            this.mapper = mapper;
+            this.generation = generation;
+            this.query = query;
+            this.zones = zones;
+            result.whenComplete((c, e) -> {
+                final Subscription current = subscription;
+                if (null != e && null != current) {
+                    current.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onSubscribe(final Subscription s) {
+            subscription = s;
+            if (result.isDone()) {
+                s.cancel();
+                return;
+            }
+            requestPage();
+        }
+
+        private void requestPage() {
+            final AdaptiveRateLimiter limiter = supplier.getRateLimiter(ec2);
+            if (null == limiter) {
+                requestNow();
+            } else {
+                limiter.acquireAsync().thenRun(this::requestNow);
+            }
+        }
+
+        private void requestNow() {
+            if (result.isDone()) {
+                return;
+            }
+            pageEvent = beginPage();
+            pageStarted = System.nanoTime();
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(final DescribeInstancesResponse page) {
+            if (result.isDone()) {
+                return;
+            }
+            final long now = System.nanoTime();
+            mapper.getPageSize().onPage(now - pageStarted);
+            InstanceToNodeMapper.commitPage(pageEvent, key, request.maxResults(), page);
+            query.page();
+            final Set<Ec2Instance> instances = mapper.examineResult(page);
+            query.mapped(0, System.nanoTime() - now);
+            final CompletableFuture<Void> next = zones
+                    .thenCompose(z -> addExtraMappingAttributes(key, ec2, instances, z, mapper))
+                    .thenAccept(set -> {
+                        final long started = System.nanoTime();
+                        mapper.mapInstances(key, generation, set);
+                        query.mapped(set.size(), System.nanoTime() - started);
+                        count.addAndGet(set.size());
+                    });
+            mapped = next;
+            next.whenComplete((v, e) -> {
+                if (null != e) {
+                    result.completeExceptionally(unwrap(e));
+                } else if (!result.isDone()) {
+                    requestPage();
+                }
+            });
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            result.completeExceptionally(t);
+        }
+
+        @Override
+        public void onComplete() {
+            // the last page may still be mapping
+            mapped.whenComplete((v, e) -> {
+                if (null == e) {
+                    result.complete(count.get());
+                }
+            });
+        }
+    }
+
+    private static RefreshEvents.Page beginPage() {
+        final RefreshEvents.Page event = new RefreshEvents.Page();
+        event.begin();
+        return event;
+    }
+
+    private CompletableFuture<DescribeAvailabilityZonesResponse> describeAvailabilityZones(
+            final String key,
+            final Ec2AsyncClient ec2
+    )
+    {
+        final RefreshEvents.Enrichment event = new RefreshEvents.Enrichment();
+        event.begin();
+        return paced(ec2, ec2::describeAvailabilityZones)
+                .whenComplete((zones, e) -> InstanceToNodeMapper.commitZones(event, key));
+    }
+
+    /**
+     * Make an EC2 call once the rate limiter of the client, if any, has a token, without blocking
+     */
+    private <T> CompletableFuture<T> paced(final Ec2AsyncClient ec2, final Supplier<CompletableFuture<T>> call) {
+        final AdaptiveRateLimiter limiter = supplier.getRateLimiter(ec2);
+        if (null == limiter) {
+            return call.get();
+        }
+        return limiter.acquireAsync().thenCompose(v -> call.get());
+    }
+
+    private CompletableFuture<Set<Ec2Instance>> addExtraMappingAttributes(
+            final String key,
+            final Ec2AsyncClient ec2,
+            final Set<Ec2Instance> instances,
+            final Map<String, String> zones,
+            final InstanceToNodeMapper mapper
+    )
+    {
+        final MappingPlan plan = mapper.getMappingPlan();
+        CompletableFuture<Set<Ec2Instance>> result = CompletableFuture.completedFuture(instances);
+        if (plan.needsImageName()) {
+            final RefreshEvents.Enrichment event = new RefreshEvents.Enrichment();
+            event.begin();
+            final ImageNameCache images = mapper.getImageNames();
+            final Set<String> imageIds = images.missing(instances);
+            final List<CompletableFuture<Void>> lookups = new ArrayList<>();
+            for (final List<String> chunk : ImageNameCache.chunks(imageIds)) {
+                lookups.add(paced(ec2, () -> ec2.describeImages(InstanceToNodeMapper.describeImagesRequest(chunk)))
+                               .handle((response, e) -> {
+                                   if (null != e) {
+                                       logger.error("error getting image info: {}", e.getMessage(), e);
+                                   } else {
+                                       images.found(chunk, response.images());
+                                   }
+                                   return null;
+                               }));
+            }
+            result = CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0]))
+                                      .thenApply(v -> {
+                                          final Set<Ec2Instance> named = images.apply(instances);
+                                          InstanceToNodeMapper.commitImages(event, key, named.size(), imageIds.size());
+                                          return named;
+                                      });
+        }
+        if (plan.needsRegion()) {
+            result = result.thenApply(set -> mapper.addingRegion(set, zones));
+        }
+        return result;
+    }
+}
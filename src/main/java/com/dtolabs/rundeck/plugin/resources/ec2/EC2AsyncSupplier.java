@@ -0,0 +1,42 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+
+/**
+ * Interface for supplying Ec2AsyncClient instances
+ */
+public interface EC2AsyncSupplier {
+    /**
+     * Return an Ec2AsyncClient for the default region
+     *
+     * @return Ec2AsyncClient
+     */
+    Ec2AsyncClient getAsyncEC2ForDefaultRegion();
+
+    /**
+     * Return an Ec2AsyncClient for the specified region
+     *
+     * @param region region name
+     * @return Ec2AsyncClient
+     */
+    Ec2AsyncClient getAsyncEC2ForRegion(String region);
+
+    /**
+     * Return an Ec2AsyncClient for the specified endpoint
+     *
+     * @param endpoint endpoint URL
+     * @return Ec2AsyncClient
+     */
+    Ec2AsyncClient getAsyncEC2ForEndpoint(String endpoint);
+
+    /**
+     * Return the rate limiter the calls of an async client must be paced by, or null if they are not
+     * limited. The client does not wait for tokens itself, so that no client thread blocks.
+     *
+     * @param client a client returned by this supplier
+     * @return the rate limiter, or null
+     */
+    default AdaptiveRateLimiter getRateLimiter(Ec2AsyncClient client) {
+        return null;
+    }
+}
@@ -26,17 +26,12 @@ package com.dtolabs.rundeck.plugin.resources.ec2;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
-import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.http.SdkHttpClient;
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.http.apache.ProxyConfiguration;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sts.StsClient;
-import software.amazon.awssdk.services.sts.StsClientBuilder;
-import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
-import software.amazon.awssdk.services.sts.model.AssumeRoleResponse;
-import software.amazon.awssdk.services.sts.model.Credentials;
 import com.dtolabs.rundeck.core.common.INodeSet;
 import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 import com.dtolabs.rundeck.core.resources.ResourceModelSource;
@@ -50,13 +45,22 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HexFormat;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.dtolabs.rundeck.plugin.resources.ec2.EC2ResourceModelSourceFactory.SYNCHRONOUS_LOAD;
 
@@ -72,21 +76,38 @@ import static com.dtolabs.rundeck.plugin.resources.ec2.EC2ResourceModelSourceFac
  * The EC2 requests are performed asynchronously, so the first request to {@link #getNodes()} will return null, and
  * subsequent requests may return the data when it's available.
  * </p>
+ * <p>
+ * The last node set is published atomically and read without locking. At most one query runs at a time: callers
+ * which need a refresh while one is running share its result, and callers which do not need to wait get the last
+ * node set immediately.
+ * </p>
+ * <p>
+ * The EC2 clients and HTTP connection pool are kept for the life of the source and released by
+ * {@link #close()} when the source is discarded.
+ * </p>
  * @author Greg Schueler <a href="mailto:greg@rundeck.com">greg@rundeck.com</a>
  */
-public class EC2ResourceModelSource implements ResourceModelSource {
+public class EC2ResourceModelSource implements ResourceModelSource, Closeable {
     static  Logger logger = LoggerFactory.getLogger(EC2ResourceModelSource.class);
     private String accessKey;
     private String secretKey;
     private String secretKeyStoragePath;
     long refreshInterval = 30000;
-    long lastRefresh = 0;
+    volatile long lastRefresh = 0;
     String filterParams;
     String endpoint;
     String httpProxyHost;
     int httpProxyPort = 80;
     String httpProxyUser;
     String httpProxyPass;
+    int httpMaxConnections = DEFAULT_HTTP_MAX_CONNECTIONS;
+    int httpConnectionTtlSecs = 0;
+    int httpConnectionMaxIdleSecs = DEFAULT_HTTP_CONNECTION_MAX_IDLE_SECONDS;
+    boolean httpIdleConnectionReaper = true;
+    int httpSocketTimeoutSecs = DEFAULT_HTTP_SOCKET_TIMEOUT_SECONDS;
+    int httpConnectTimeoutSecs = DEFAULT_HTTP_CONNECT_TIMEOUT_SECONDS;
+    boolean httpTcpKeepAlive = false;
+    boolean prewarmConnections = false;
     String region;
     String mappingParams;
     File mappingFile;
@@ -95,8 +116,29 @@ public class EC2ResourceModelSource implements ResourceModelSource {
     boolean runningOnly = false;
     boolean queryAsync = true;
     boolean queryNodeInstancesInParallel = false;
-    Future<INodeSet> futureResult = null;
+    int regionConcurrency = InstanceToNodeMapper.DEFAULT_REGION_CONCURRENCY;
+    int regionTimeoutSecs = InstanceToNodeMapper.DEFAULT_REGION_TIMEOUT_SECONDS;
+    int staleRegionMaxAgeSecs = InstanceToNodeMapper.DEFAULT_STALE_REGION_MAX_AGE_SECONDS;
+    int apiRateLimit = 0;
+    boolean adaptivePageSize = false;
+    boolean sharedInventory = false;
+    int imageNameCacheTtlSecs = (int) ImageNameCache.DEFAULT_TTL_SECONDS;
+    int regionListTtlSecs = (int) RegionListCache.DEFAULT_TTL_SECONDS;
+    boolean allRegions;
+    String regionAllowList;
+    String regionDenyList;
+    boolean asyncQueryEngine = false;
+    NodeSnapshotStore snapshotStore;
+    final AtomicBoolean snapshotChecked = new AtomicBoolean();
+    boolean backgroundRefresh = false;
+    int refreshJitterPercent = DEFAULT_REFRESH_JITTER_PERCENT;
+    int minRefreshGapSecs = DEFAULT_MIN_REFRESH_GAP_SECONDS;
+    RefreshScheduler refreshScheduler;
+    boolean jmxMetrics = true;
+    SourceMetrics metrics;
+    final AtomicReference<CompletableFuture<INodeSet>> refreshing = new AtomicReference<>();
     final Properties mapping = new Properties();
+    MappingPlan mappingPlan;
     final String assumeRoleArn;
     final String assumeRoleArnCombinedWithExtId;
 
@@ -104,8 +146,23 @@ public class EC2ResourceModelSource implements ResourceModelSource {
     int pageResults;
 
     SdkHttpClient httpClient;
-
-    INodeSet iNodeSet;
+    SdkAsyncHttpClient asyncHttpClient;
+    ExecutorService asyncCompletionExecutor;
+    EC2SupplierImpl ec2Supplier;
+    AssumeRoleCredentials roleCredentials;
+    String accountIdentity;
+
+    static final int ASYNC_THREADS = 2;
+    static final int DEFAULT_HTTP_MAX_CONNECTIONS = 50;
+    static final int DEFAULT_HTTP_CONNECTION_MAX_IDLE_SECONDS = 60;
+    static final int DEFAULT_HTTP_SOCKET_TIMEOUT_SECONDS = 30;
+    static final int DEFAULT_HTTP_CONNECT_TIMEOUT_SECONDS = 2;
+    // Use old default us-east-1 for AWS EC2, to maintain default behavior for existing configurations
+    static final Region DEFAULT_REGION = Region.US_EAST_1;
+    static final int DEFAULT_REFRESH_JITTER_PERCENT = 10;
+    static final int DEFAULT_MIN_REFRESH_GAP_SECONDS = 10;
+
+    final AtomicReference<INodeSet> nodeSet = new AtomicReference<>();
     static final Properties defaultMapping = new Properties();
     InstanceToNodeMapper mapper;
 
@@ -215,12 +272,54 @@ public class EC2ResourceModelSource implements ResourceModelSource {
             logger.info("[debug] runningOnly:" + runningOnly);
         }
 
+        this.httpMaxConnections = intProperty(configuration, EC2ResourceModelSourceFactory.HTTP_MAX_CONNECTIONS, httpMaxConnections);
+        this.httpConnectionTtlSecs = intProperty(configuration, EC2ResourceModelSourceFactory.HTTP_CONNECTION_TTL, httpConnectionTtlSecs, 0);
+        this.httpConnectionMaxIdleSecs = intProperty(configuration, EC2ResourceModelSourceFactory.HTTP_CONNECTION_MAX_IDLE, httpConnectionMaxIdleSecs);
+        this.httpIdleConnectionReaper = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.HTTP_IDLE_CONNECTION_REAPER, "true"));
+        this.httpSocketTimeoutSecs = intProperty(configuration, EC2ResourceModelSourceFactory.HTTP_SOCKET_TIMEOUT, httpSocketTimeoutSecs);
+        this.httpConnectTimeoutSecs = intProperty(configuration, EC2ResourceModelSourceFactory.HTTP_CONNECT_TIMEOUT, httpConnectTimeoutSecs);
+        this.httpTcpKeepAlive = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.HTTP_TCP_KEEP_ALIVE, "false"));
+        this.prewarmConnections = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.PREWARM_CONNECTIONS, "false"));
 
         this.httpClient = buildHttpClient();
+        this.asyncQueryEngine = EC2ResourceModelSourceFactory.QUERY_ENGINE_ASYNC.equals(
+                configuration.getProperty(EC2ResourceModelSourceFactory.QUERY_ENGINE));
+        if (asyncQueryEngine && NettyAsyncHttpClients.isAvailable()) {
+            this.asyncHttpClient = NettyAsyncHttpClients.build(this);
+            this.asyncCompletionExecutor = Executors.newFixedThreadPool(
+                    ASYNC_THREADS,
+                    new DaemonThreadFactory("ec2-async-query")
+            );
+        }
 
         queryAsync = !("true".equals(configuration.getProperty(SYNCHRONOUS_LOAD)) || refreshInterval <= 0);
 
         this.queryNodeInstancesInParallel = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.QUERY_NODE_INSTANCES_IN_PARALLEL, "false"));
+        this.regionConcurrency = intProperty(configuration, EC2ResourceModelSourceFactory.REGION_CONCURRENCY, regionConcurrency);
+        this.regionTimeoutSecs = intProperty(configuration, EC2ResourceModelSourceFactory.REGION_TIMEOUT, regionTimeoutSecs);
+        this.staleRegionMaxAgeSecs = intProperty(configuration, EC2ResourceModelSourceFactory.STALE_REGION_MAX_AGE, staleRegionMaxAgeSecs, 0);
+        this.imageNameCacheTtlSecs = intProperty(configuration, EC2ResourceModelSourceFactory.IMAGE_NAME_CACHE_TTL, imageNameCacheTtlSecs);
+        this.regionListTtlSecs = intProperty(configuration, EC2ResourceModelSourceFactory.REGION_LIST_TTL, regionListTtlSecs);
+        this.apiRateLimit = intProperty(configuration, EC2ResourceModelSourceFactory.API_RATE_LIMIT, apiRateLimit, 0);
+        this.adaptivePageSize = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.ADAPTIVE_PAGE_SIZE, "false"));
+        this.sharedInventory = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.SHARED_INVENTORY, "false"));
+        this.allRegions = EC2ResourceModelSourceFactory.REGION_DISCOVERY_ALL.equals(
+                configuration.getProperty(EC2ResourceModelSourceFactory.REGION_DISCOVERY));
+        this.regionAllowList = configuration.getProperty(EC2ResourceModelSourceFactory.REGION_ALLOW_LIST);
+        this.regionDenyList = configuration.getProperty(EC2ResourceModelSourceFactory.REGION_DENY_LIST);
+
+        this.backgroundRefresh = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.BACKGROUND_REFRESH, "false"));
+        this.refreshJitterPercent = intProperty(configuration, EC2ResourceModelSourceFactory.REFRESH_JITTER, refreshJitterPercent, 0);
+        this.minRefreshGapSecs = intProperty(configuration, EC2ResourceModelSourceFactory.MIN_REFRESH_GAP, minRefreshGapSecs, 0);
+        this.jmxMetrics = Boolean.parseBoolean(configuration.getProperty(EC2ResourceModelSourceFactory.JMX_METRICS, "true"));
+
+        final String snapshotDirectory = configuration.getProperty(EC2ResourceModelSourceFactory.SNAPSHOT_DIRECTORY);
+        if (null != snapshotDirectory && !"".equals(snapshotDirectory.trim())) {
+            this.snapshotStore = new NodeSnapshotStore(
+                    new File(snapshotDirectory.trim()),
+                    NodeSnapshotStore.configurationKey(configuration)
+            );
+        }
 
         final ArrayList<String> params = new ArrayList<String>();
         if (null != filterParams) {
@@ -228,20 +327,98 @@ public class EC2ResourceModelSource implements ResourceModelSource {
         }
         loadMapping();
 
-        mapper = new InstanceToNodeMapper(createEc2Supplier(), mapping, pageResults);
+        ec2Supplier = createEc2Supplier();
+        mapper = new InstanceToNodeMapper(ec2Supplier, mappingPlan, pageResults);
         mapper.setFilterParams(params);
         mapper.setEndpoint(endpoint);
         mapper.setRegion(region);
         mapper.setRunningStateOnly(runningOnly);
+        mapper.setRegionConcurrency(regionConcurrency);
+        mapper.setRegionTimeoutMillis(regionTimeoutSecs * 1000L);
+        mapper.setStaleRegionMaxAgeMillis(staleRegionMaxAgeSecs * 1000L);
+        mapper.setImageNameTtlMillis(imageNameCacheTtlSecs * 1000L);
+        mapper.setRegionSelection(allRegions, regionAllowList, regionDenyList);
+        mapper.setRegionListTtlMillis(regionListTtlSecs * 1000L);
+        mapper.getPageSize().setAdaptive(adaptivePageSize);
+        metrics = new SourceMetrics(null != endpoint ? endpoint : null != region ? region : InstanceToNodeMapper.DEFAULT_REGION_KEY);
+        mapper.setMetrics(metrics);
+        if (jmxMetrics) {
+            ec2Supplier.setMetricPublisher(new SdkMetricsPublisher(metrics));
+            metrics.register(NodeSnapshotStore.configurationKey(configuration));
+        }
+        if (apiRateLimit > 0) {
+            ec2Supplier.setRateLimit(accountIdentity, apiRateLimit, mapper.getPageSize()::onThrottle);
+        }
+        if (asyncQueryEngine && null != asyncHttpClient) {
+            mapper.setAsyncQueryEngine(new AsyncQueryEngine(ec2Supplier));
+        } else if (sharedInventory) {
+            mapper.setSharedInventory(SharedInventory.shared(), accountIdentity, Math.max(0, refreshInterval));
+        }
+        if (prewarmConnections) {
+            mapper.warmUp();
+        }
+        if (backgroundRefresh && refreshInterval > 0) {
+            refreshScheduler = new RefreshScheduler(
+                    this::triggerRefresh,
+                    refreshInterval,
+                    refreshJitterPercent / 100.0
+            );
+            refreshScheduler.start();
+        }
     }
 
+    /**
+     * Return the positive integer value of the configuration property, or the default value if it is
+     * blank or not valid
+     */
+    private static int intProperty(final Properties configuration, final String key, final int defaultValue) {
+        return intProperty(configuration, key, defaultValue, 1);
+    }
 
     /**
-     * Build a shared HTTP client, applying HTTP proxy configuration when supplied. The same client
-     * is reused for the EC2 clients and the STS client so proxy settings apply consistently.
+     * Return the integer value of the configuration property if it is at least the minimum, or the
+     * default value if it is blank or not valid
+     */
+    private static int intProperty(
+            final Properties configuration,
+            final String key,
+            final int defaultValue,
+            final int minimum
+    )
+    {
+        final String value = configuration.getProperty(key);
+        if (null == value || "".equals(value.trim())) {
+            return defaultValue;
+        }
+        try {
+            final int parsed = Integer.parseInt(value.trim());
+            if (parsed >= minimum) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+            // fall through
+        }
+        logger.warn(key + " value is not valid: " + value);
+        return defaultValue;
+    }
+
+
+    /**
+     * Build a shared HTTP client with the configured connection pool, applying HTTP proxy
+     * configuration when supplied. The same client is reused for the EC2 clients and the STS client
+     * so proxy settings apply consistently.
      */
     private SdkHttpClient buildHttpClient() {
-        ApacheHttpClient.Builder builder = ApacheHttpClient.builder();
+        ApacheHttpClient.Builder builder = ApacheHttpClient.builder()
+                .maxConnections(httpMaxConnections)
+                .connectionMaxIdleTime(Duration.ofSeconds(httpConnectionMaxIdleSecs))
+                .useIdleConnectionReaper(httpIdleConnectionReaper)
+                .socketTimeout(Duration.ofSeconds(httpSocketTimeoutSecs))
+                .connectionTimeout(Duration.ofSeconds(httpConnectTimeoutSecs))
+                .tcpKeepAlive(httpTcpKeepAlive);
+        if (httpConnectionTtlSecs > 0) {
+            builder.connectionTimeToLive(Duration.ofSeconds(httpConnectionTtlSecs));
+        }
         if (null != httpProxyHost && !"".equals(httpProxyHost)) {
             ProxyConfiguration.Builder proxy = ProxyConfiguration.builder()
                     .endpoint(URI.create("http://" + httpProxyHost + ":" + httpProxyPort));
@@ -265,105 +442,255 @@ public class EC2ResourceModelSource implements ResourceModelSource {
             return AwsBasicCredentials.create(accessKey.trim(), secretKey.trim());
         }
 
-        AwsCredentials credentials = null;
-        if (this.externalId != null && this.assumeRoleArnCombinedWithExtId != null) {
-            credentials = createAwsCredentials(null, this.assumeRoleArnCombinedWithExtId, this.externalId);
+        return null;
+    }
+
+    /**
+     * Return the credentials for the EC2 clients: the access key, or the roles to assume, renewed in
+     * the background, or null to use the default provider chain. A role combined with an external ID
+     * is assumed first, and the role ARN is assumed with its credentials. No STS call is made until
+     * the credentials are first resolved by a query.
+     */
+    AwsCredentialsProvider createCredentialsProvider() {
+        final AwsCredentials credentials = createCredentials();
+        final boolean withExternalId = null != externalId && null != assumeRoleArnCombinedWithExtId;
+        accountIdentity = accountIdentity(
+                credentials,
+                withExternalId ? assumeRoleArnCombinedWithExtId : null,
+                withExternalId ? externalId : null,
+                assumeRoleArn
+        );
+        if (null != credentials) {
+            return StaticCredentialsProvider.create(credentials);
+        }
+        if (!withExternalId && null == assumeRoleArn) {
+            return null;
+        }
+        roleCredentials = new AssumeRoleCredentials(
+                null,
+                AssumeRoleCredentials.stsRegion(region, endpoint, DEFAULT_REGION),
+                httpClient
+        );
+        if (withExternalId) {
+            roleCredentials.assume(assumeRoleArnCombinedWithExtId, externalId);
         }
+        if (null != assumeRoleArn) {
+            roleCredentials.assume(assumeRoleArn, null);
+        }
+        return roleCredentials;
+    }
 
-        if (assumeRoleArn != null) {
-            AwsCredentialsProvider provider = null;
-            if (credentials != null) {
-                provider = StaticCredentialsProvider.create(credentials);
-            }
 
-            return createAwsCredentials(provider, assumeRoleArn, null);
+    /**
+     * Identify the credentials the API calls are made with, so that only sources using the same
+     * credentials share rate limiters and inventory. The identity is a hash of every credential input:
+     * the access key and secret, or the default provider chain, and the roles assumed with their
+     * external ID.
+     *
+     * @param credentials      static credentials, or null for the default provider chain
+     * @param roleArnWithExtId role assumed with the external ID, or null
+     * @param externalId       external ID, or null
+     * @param roleArn          role assumed last, or null
+     */
+    static String accountIdentity(
+            final AwsCredentials credentials,
+            final String roleArnWithExtId,
+            final String externalId,
+            final String roleArn
+    )
+    {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (null != credentials) {
+            update(digest, credentials.accessKeyId());
+            update(digest, credentials.secretAccessKey());
+        } else {
+            update(digest, null);
+            update(digest, null);
         }
-        return credentials;
+        update(digest, roleArnWithExtId);
+        update(digest, externalId);
+        update(digest, roleArn);
+        return HexFormat.of().formatHex(digest.digest());
     }
 
+    private static void update(final MessageDigest digest, final String value) {
+        if (null == value) {
+            digest.update((byte) 0);
+            return;
+        }
+        digest.update((byte) 1);
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
 
     private EC2SupplierImpl createEc2Supplier() {
         return new EC2SupplierImpl(
-                createCredentials(),
+                createCredentialsProvider(),
                 httpClient,
-                // Use old default us-east-1 for AWS EC2, to maintain default behavior for existing configurations
-                Region.US_EAST_1
+                asyncHttpClient,
+                asyncCompletionExecutor,
+                DEFAULT_REGION
         );
     }
 
-    private AwsCredentials createAwsCredentials(AwsCredentialsProvider provider, String assumeRoleArn, String externalId) {
-        StsClientBuilder stsBuilder = StsClient.builder()
-                .httpClient(httpClient)
-                // STS global endpoint, matching the v1 default behavior
-                .region(Region.AWS_GLOBAL);
-
-        if (provider != null) {
-            stsBuilder.credentialsProvider(provider);
+    public INodeSet getNodes() throws ResourceModelSourceException {
+        // Serve the saved snapshot on the first call while the first query runs
+        if (null == nodeSet.get() && null != snapshotStore && snapshotChecked.compareAndSet(false, true)) {
+            final INodeSet snapshot = snapshotStore.load();
+            if (null != snapshot && nodeSet.compareAndSet(null, snapshot)) {
+                metrics.published(snapshot.getNodeNames().size(), snapshotStore.getSavedAt());
+                refresh();
+                logger.info("Returning " + snapshot.getNodeNames().size() + " nodes from snapshot, refreshing from EC2");
+                return snapshot;
+            }
         }
 
-        try (StsClient stsClient = stsBuilder.build()) {
-            AssumeRoleRequest.Builder requestBuilder = AssumeRoleRequest.builder()
-                    .roleArn(assumeRoleArn)
-                    .roleSessionName("RundeckEC2ResourceModelSourceSession");
-            if (externalId != null) {
-                requestBuilder.externalId(externalId);
+        INodeSet current = nodeSet.get();
+        if (null == current) {
+            // always wait for the first query, callers arriving during it share the result
+            current = await(refresh());
+            logger.info("Read " + current.getNodeNames().size() + " nodes from EC2");
+        } else if (null == refreshScheduler && needsRefresh()) {
+            /**
+             * Rundeck now executes getNodes() in a thread pool by default.
+             * If queryAsync is false, wait for the refresh, otherwise return the last nodes.
+             */
+            final CompletableFuture<INodeSet> result = refresh();
+            if (!queryAsync) {
+                current = await(result);
+                logger.info("Read " + current.getNodeNames().size() + " nodes from EC2");
             }
-            AssumeRoleResponse assumeRoleResult = stsClient.assumeRole(requestBuilder.build());
-            Credentials assumeCredentials = assumeRoleResult.credentials();
-            return AwsSessionCredentials.create(
-                    assumeCredentials.accessKeyId(),
-                    assumeCredentials.secretAccessKey(),
-                    assumeCredentials.sessionToken()
-            );
+        } else {
+            logger.info("Returning " + current.getNodeNames().size() + " cached nodes from EC2");
         }
-    }
+        logger.debug("EC2 clients built: {}, reused: {}", ec2Supplier.getClientsBuilt(), ec2Supplier.getClientsReused());
 
-    public synchronized INodeSet getNodes() throws ResourceModelSourceException {
-        checkFuture();
+        return current;
+    }
 
-        // Return cached results if not time to refresh
-        if (!needsRefresh()) {
-            if (null != iNodeSet) {
-                logger.info("Returning " + iNodeSet.getNodeNames().size() + " cached nodes from EC2");
-            }
-            return iNodeSet;
+    /**
+     * Start a refresh for the refresh scheduler, unless one is in progress or the last refresh
+     * started less than the minimum gap ago
+     */
+    void triggerRefresh() {
+        if (null == refreshing.get() && System.currentTimeMillis() - lastRefresh >= minRefreshGapSecs * 1000L) {
+            refresh();
         }
+    }
 
-        /**
-         * Rundeck now executes getNodes() in a thread pool by default.
-         * If queryAync is false(default now) or this is the first fetch we just block here.
-         */
-        if (lastRefresh > 0 && queryAsync && null == futureResult) {
-            futureResult = executor.submit(() -> {
-                return mapper.performQuery(queryNodeInstancesInParallel);
+    /**
+     * Start a query, or return the query which is already in progress. The result is published to
+     * {@link #nodeSet} before the returned future completes.
+     */
+    CompletableFuture<INodeSet> refresh() {
+        final CompletableFuture<INodeSet> result = new CompletableFuture<>();
+        final CompletableFuture<INodeSet> inProgress = refreshing.compareAndExchange(null, result);
+        if (null != inProgress) {
+            return inProgress;
+        }
+        lastRefresh = System.currentTimeMillis();
+        try {
+            executor.execute(() -> {
+                final long started = System.nanoTime();
+                final RefreshEvents.Refresh event = new RefreshEvents.Refresh();
+                event.begin();
+                try {
+                    final INodeSet nodes = queryNodes();
+                    nodeSet.set(nodes);
+                    metrics.refreshed(System.nanoTime() - started, nodes.getNodeNames().size());
+                    if (event.shouldCommit()) {
+                        event.source = metrics.getDescription();
+                        event.nodes = nodes.getNodeNames().size();
+                        event.succeeded = true;
+                        event.commit();
+                    }
+                    refreshing.set(null);
+                    result.complete(nodes);
+                } catch (RuntimeException | Error e) {
+                    logger.warn("Error performing query: " + e.getMessage(), e);
+                    metrics.refreshFailed(System.nanoTime() - started);
+                    if (event.shouldCommit()) {
+                        event.source = metrics.getDescription();
+                        event.commit();
+                    }
+                    refreshing.set(null);
+                    result.completeExceptionally(e);
+                }
             });
-            lastRefresh = System.currentTimeMillis();
-        } else if (!queryAsync || lastRefresh < 1) {
-            //always perform synchronous query the first time
-            iNodeSet = mapper.performQuery(queryNodeInstancesInParallel);
-            lastRefresh = System.currentTimeMillis();
+        } catch (RejectedExecutionException e) {
+            refreshing.set(null);
+            result.completeExceptionally(e);
         }
+        return result;
+    }
 
-        if (null != iNodeSet) {
-            logger.info("Read " + iNodeSet.getNodeNames().size() + " nodes from EC2");
+    /**
+     * Wait for a query started by {@link #refresh()}. A failed query is rethrown as it would have been
+     * if it had run on the calling thread.
+     */
+    private static INodeSet await(final CompletableFuture<INodeSet> result) throws ResourceModelSourceException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceModelSourceException("Interrupted waiting for EC2 query", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ResourceModelSourceException(e.getCause());
         }
-
-        return iNodeSet;
     }
 
     /**
-     * if any future results are pending, check if they are done and retrieve the results
+     * Query the nodes and save them to the snapshot store, if configured
      */
-    private void checkFuture() {
-        if (null != futureResult && futureResult.isDone()) {
+    private INodeSet queryNodes() {
+        final INodeSet nodes = mapper.performQuery(queryNodeInstancesInParallel);
+        if (null != snapshotStore) {
             try {
-                iNodeSet = futureResult.get();
-            } catch (InterruptedException e) {
-                logger.debug("Interrupted",e);
-            } catch (ExecutionException e) {
-                logger.warn("Error performing query: " + e.getMessage(), e);
+                snapshotStore.save(nodes);
+            } catch (IOException e) {
+                logger.warn("Could not save node snapshot " + snapshotStore.getFile() + ": " + e.getMessage());
             }
-            futureResult = null;
+        }
+        return nodes;
+    }
+
+    /**
+     * Stop any pending query, release the EC2 clients, the role credentials and the HTTP connection
+     * pool, and remove the metrics MBean
+     */
+    @Override
+    public void close() {
+        if (null != refreshScheduler) {
+            refreshScheduler.close();
+        }
+        if (null != metrics) {
+            metrics.unregister();
+        }
+        executor.shutdownNow();
+        mapper.shutdown();
+        if (null != ec2Supplier) {
+            ec2Supplier.close();
+        }
+        if (null != roleCredentials) {
+            roleCredentials.close();
+        }
+        if (null != httpClient) {
+            httpClient.close();
+        }
+        if (null != asyncHttpClient) {
+            asyncHttpClient.close();
+        }
+        if (null != asyncCompletionExecutor) {
+            asyncCompletionExecutor.shutdownNow();
         }
     }
 
@@ -403,12 +730,16 @@ public class EC2ResourceModelSource implements ResourceModelSource {
         if (mapping.size() < 1) {
             mapping.putAll(defaultMapping);
         }
+        mappingPlan = MappingPlan.compile(mapping);
     }
 
     public void validate() throws ConfigurationException {
         if (null != accessKey && null == secretKey && null == secretKeyStoragePath) {
             throw new ConfigurationException("secretKey is required for use with accessKey");
         }
+        if (asyncQueryEngine && null == asyncHttpClient) {
+            throw new ConfigurationException(NettyAsyncHttpClients.MISSING);
+        }
     }
 
     static String getPasswordFromKeyStorage(String path, KeyStorageTree storage) {
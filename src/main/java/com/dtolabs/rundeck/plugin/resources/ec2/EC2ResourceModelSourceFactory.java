@@ -48,6 +48,31 @@ import java.util.*;
  *   <li>mappingFile: Path to a java properties-formatted mapping definition file.</li>
  *   <li>refreshInterval: Time in seconds used as minimum interval between calls to the AWS API.</li>
  *   <li>useDefaultMapping: if "true", base all mapping definitions off the default mapping provided.</li>
+ *   <li>regionConcurrency: Maximum number of regions queried at the same time when querying in parallel.</li>
+ *   <li>regionTimeout: Time in seconds allowed for querying a single region when querying in parallel.</li>
+ *   <li>apiRateLimit: Maximum EC2 API requests per second of the source in each region, also limited by throttling of the account, or 0 for no limit.</li>
+ *   <li>adaptivePageSize: if "true", adapt the page size between bounds from the page latency and throttling.</li>
+ *   <li>sharedInventory: if "true", share the instances queried with other sources using the same account, region and filters.</li>
+ *   <li>staleRegionMaxAge: Time in seconds the nodes of a failing region are kept from its last successful query.</li>
+ *   <li>queryEngine: "blocking" (default) to use the blocking EC2 client, or "async" to use the non-blocking client.</li>
+ *   <li>imageNameCacheTtl: Time in seconds an AMI name is cached before it is looked up again.</li>
+ *   <li>regionDiscovery: "opted-in" (default) to use the regions enabled for the account with ALL_REGIONS, or "all" to include every region.</li>
+ *   <li>regionAllowList: Comma-separated region names to include with ALL_REGIONS.</li>
+ *   <li>regionDenyList: Comma-separated region names to exclude with ALL_REGIONS.</li>
+ *   <li>regionListTtl: Time in seconds the ALL_REGIONS region list is cached before it is refreshed.</li>
+ *   <li>backgroundRefresh: if "true", refresh the nodes every refreshInterval in the background instead of when they are requested.</li>
+ *   <li>refreshJitter: Percentage of the refresh interval by which background refreshes are randomly spread.</li>
+ *   <li>minRefreshGap: Minimum time in seconds between two background refreshes.</li>
+ *   <li>snapshotDirectory: Directory to save the last node set in, which is served at startup while the first query runs.</li>
+ *   <li>jmxMetrics: if "true" (default), publish refresh, region, API call and cache metrics as a JMX MBean.</li>
+ *   <li>httpMaxConnections: Maximum number of open HTTP connections to AWS.</li>
+ *   <li>httpConnectionTtl: Time in seconds after which a pooled HTTP connection is closed, or 0 for no limit.</li>
+ *   <li>httpConnectionMaxIdle: Time in seconds an HTTP connection may stay idle in the pool.</li>
+ *   <li>httpIdleConnectionReaper: if "true" (default), close idle HTTP connections in the background.</li>
+ *   <li>httpSocketTimeout: Time in seconds to wait for data on an open HTTP connection.</li>
+ *   <li>httpConnectTimeout: Time in seconds to wait for an HTTP connection to be established.</li>
+ *   <li>httpTcpKeepAlive: if "true", enable TCP keep-alive on HTTP connections.</li>
+ *   <li>prewarmConnections: if "true", open a connection to each endpoint in the background when the source is created.</li>
  * </ul>
  * @author Greg Schueler <a href="mailto:greg@rundeck.com">greg@rundeck.com</a>
  */
@@ -77,6 +102,35 @@ public class EC2ResourceModelSourceFactory implements ResourceModelSourceFactory
     public static final String HTTP_PROXY_USER = "httpProxyUser";
     public static final String HTTP_PROXY_PASS = "httpProxyPass";
     public static final String MAX_RESULTS = "pageResults";
+    public static final String REGION_CONCURRENCY = "regionConcurrency";
+    public static final String REGION_TIMEOUT = "regionTimeout";
+    public static final String STALE_REGION_MAX_AGE = "staleRegionMaxAge";
+    public static final String API_RATE_LIMIT = "apiRateLimit";
+    public static final String ADAPTIVE_PAGE_SIZE = "adaptivePageSize";
+    public static final String SHARED_INVENTORY = "sharedInventory";
+    public static final String QUERY_ENGINE = "queryEngine";
+    public static final String QUERY_ENGINE_BLOCKING = "blocking";
+    public static final String QUERY_ENGINE_ASYNC = "async";
+    public static final String IMAGE_NAME_CACHE_TTL = "imageNameCacheTtl";
+    public static final String REGION_DISCOVERY = "regionDiscovery";
+    public static final String REGION_DISCOVERY_OPTED_IN = "opted-in";
+    public static final String REGION_DISCOVERY_ALL = "all";
+    public static final String REGION_ALLOW_LIST = "regionAllowList";
+    public static final String REGION_DENY_LIST = "regionDenyList";
+    public static final String REGION_LIST_TTL = "regionListTtl";
+    public static final String SNAPSHOT_DIRECTORY = "snapshotDirectory";
+    public static final String BACKGROUND_REFRESH = "backgroundRefresh";
+    public static final String REFRESH_JITTER = "refreshJitter";
+    public static final String MIN_REFRESH_GAP = "minRefreshGap";
+    public static final String JMX_METRICS = "jmxMetrics";
+    public static final String HTTP_MAX_CONNECTIONS = "httpMaxConnections";
+    public static final String HTTP_CONNECTION_TTL = "httpConnectionTtl";
+    public static final String HTTP_CONNECTION_MAX_IDLE = "httpConnectionMaxIdle";
+    public static final String HTTP_IDLE_CONNECTION_REAPER = "httpIdleConnectionReaper";
+    public static final String HTTP_SOCKET_TIMEOUT = "httpSocketTimeout";
+    public static final String HTTP_CONNECT_TIMEOUT = "httpConnectTimeout";
+    public static final String HTTP_TCP_KEEP_ALIVE = "httpTcpKeepAlive";
+    public static final String PREWARM_CONNECTIONS = "prewarmConnections";
 
     public EC2ResourceModelSourceFactory() {
 
@@ -86,7 +140,13 @@ public class EC2ResourceModelSourceFactory implements ResourceModelSourceFactory
 
     public ResourceModelSource createResourceModelSource(Services services, final Properties configuration) throws ConfigurationException {
         final EC2ResourceModelSource ec2ResourceModelSource = new EC2ResourceModelSource(configuration, services);
-        ec2ResourceModelSource.validate();
+        try {
+            ec2ResourceModelSource.validate();
+        } catch (ConfigurationException e) {
+            // the source is never returned, so stop its refresh task and release its clients and MBean
+            ec2ResourceModelSource.close();
+            throw e;
+        }
         return ec2ResourceModelSource;
     }
 
@@ -99,6 +159,11 @@ public class EC2ResourceModelSourceFactory implements ResourceModelSourceFactory
             StringRenderingConstants.GROUPING, "secondary"
     );
 
+    public static final Map<String, Object> HTTP_CONNECTION_OPTIONS = Map.of(
+            StringRenderingConstants.GROUP_NAME, "HTTP Connections",
+            StringRenderingConstants.GROUPING, "secondary"
+    );
+
     public static final Map<String, Object> PASSWORD_OPTIONS = Collections.singletonMap(StringRenderingConstants.DISPLAY_TYPE_KEY, StringRenderingConstants.DisplayType.PASSWORD);
 
     public static final Description DESC = DescriptionBuilder.builder()
@@ -224,6 +289,110 @@ public class EC2ResourceModelSourceFactory implements ResourceModelSourceFactory
             .property(PropertyUtil.bool(QUERY_NODE_INSTANCES_IN_PARALLEL, "Query Node Instances in Parallel",
                     "Query node instances in parallel. If false, instances will be queried one at a time.",
                     false, "false"))
+            .property(PropertyUtil.integer(REGION_CONCURRENCY, "Parallel Region Limit",
+                    "Maximum number of regions queried at the same time when querying node instances in parallel " +
+                            "(default is 8).",
+                    false, "8"))
+            .property(PropertyUtil.integer(REGION_TIMEOUT, "Region Query Timeout",
+                    "Maximum time in seconds to query a single region when querying node instances in parallel. " +
+                            "A region which takes longer is cancelled (default is 90).",
+                    false, "90"))
+            .property(PropertyUtil.integer(API_RATE_LIMIT, "API Rate Limit",
+                    "Maximum EC2 API requests per second of this source in each region. The sources limited " +
+                            "for the same account and region lower their rate together when EC2 throttles requests, " +
+                            "and raise it again gradually. 0 disables the limit (default is 0).",
+                    false, "0"))
+            .property(PropertyUtil.bool(ADAPTIVE_PAGE_SIZE, "Adaptive Page Size",
+                    "Start from Max API Results and adapt the page size between 50 and 1000 from the page latency " +
+                            "and throttling.",
+                    false, "false"))
+            .property(PropertyUtil.bool(SHARED_INVENTORY, "Shared Inventory",
+                    "Share the instances queried from EC2 with the other sources using the same account, regions " +
+                            "and filters, so that sources which differ only in their mapping query EC2 once per " +
+                            "Refresh Interval. Sources with additional filters are answered by filtering the shared " +
+                            "instances when possible. Not used with the async query engine.",
+                    false, "false"))
+            .property(PropertyUtil.integer(STALE_REGION_MAX_AGE, "Stale Region Max Age",
+                    "When a region fails or times out, its nodes from the last successful query are kept while the " +
+                            "other regions are updated, for up to this many seconds (default is 3600).",
+                    false, "3600"))
+            .property(PropertyUtil.select(QUERY_ENGINE, "Query Engine",
+                    "`blocking` queries each region on its own thread. `async` uses the non-blocking EC2 client, " +
+                            "querying all regions and pages concurrently on a small fixed set of threads. " +
+                            "Recommended when many EC2 sources or regions are queried at the same time. " +
+                            "Requires the AWS SDK `netty-nio-client` jar on the Rundeck classpath.",
+                    false, QUERY_ENGINE_BLOCKING, Arrays.asList(QUERY_ENGINE_BLOCKING, QUERY_ENGINE_ASYNC)))
+            .property(PropertyUtil.integer(IMAGE_NAME_CACHE_TTL, "Image Name Cache Time",
+                    "Time in seconds an AMI name used by the `imageName` mapping is cached before it is looked up " +
+                            "again. The last known name is kept if a lookup fails (default is 3600).",
+                    false, "3600"))
+            .property(PropertyUtil.select(REGION_DISCOVERY, "Region Discovery",
+                    "Regions used with `ALL_REGIONS`. `opted-in` uses the regions enabled for the account, `all` " +
+                            "also includes regions the account has not opted in to.",
+                    false, REGION_DISCOVERY_OPTED_IN, Arrays.asList(REGION_DISCOVERY_OPTED_IN, REGION_DISCOVERY_ALL)))
+            .property(PropertyUtil.string(REGION_ALLOW_LIST, "Region Allow List",
+                    "Comma-separated region names to query with `ALL_REGIONS`, `*` matches any characters. " +
+                            "Example: `us-*, eu-west-1`. Blank for all discovered regions.",
+                    false, null))
+            .property(PropertyUtil.string(REGION_DENY_LIST, "Region Deny List",
+                    "Comma-separated region names to skip with `ALL_REGIONS`, `*` matches any characters.",
+                    false, null))
+            .property(PropertyUtil.integer(REGION_LIST_TTL, "Region List Cache Time",
+                    "Time in seconds the `ALL_REGIONS` region list is used before it is refreshed in the " +
+                            "background. The previous list is kept if the refresh fails (default is 3600).",
+                    false, "3600"))
+            .property(PropertyUtil.bool(BACKGROUND_REFRESH, "Background Refresh",
+                    "Refresh the nodes from EC2 every Refresh Interval on a schedule, so that requests for the " +
+                            "nodes always return the last result without waiting or triggering a query.",
+                    false, "false"))
+            .property(PropertyUtil.integer(REFRESH_JITTER, "Background Refresh Jitter",
+                    "Percentage of the Refresh Interval by which each background refresh is randomly moved " +
+                            "earlier or later, so that many sources do not query EC2 at the same time (default is 10).",
+                    false, "10"))
+            .property(PropertyUtil.integer(MIN_REFRESH_GAP, "Minimum Refresh Gap",
+                    "Minimum time in seconds between the start of two background refreshes (default is 10).",
+                    false, "10"))
+            .property(PropertyUtil.string(SNAPSHOT_DIRECTORY, "Node Snapshot Directory",
+                    "Directory where the last node set is saved after each query. After a restart the saved " +
+                            "nodes are returned at once while the first query runs in the background. " +
+                            "Blank to disable.",
+                    false, null))
+            .property(PropertyUtil.bool(JMX_METRICS, "JMX Metrics",
+                    "Publish the refresh times, per-region query and mapping times, EC2 API call counts, " +
+                            "latencies, retries and throttling, HTTP connection pool usage, and cache hit rates of this " +
+                            "source as a JMX MBean " +
+                            "under `com.dtolabs.rundeck.plugin.resources.ec2`.",
+                    false, "true"))
+            .property(PropertyUtil.integer(HTTP_MAX_CONNECTIONS, "Max Connections",
+                    "Maximum number of open HTTP connections to AWS, shared by all the regions queried by this " +
+                            "source (default is 50).",
+                    false, "50", null, null, HTTP_CONNECTION_OPTIONS))
+            .property(PropertyUtil.integer(HTTP_CONNECTION_TTL, "Connection Time to Live",
+                    "Time in seconds after which a pooled connection is closed instead of being reused, or 0 to " +
+                            "reuse connections until they are idle (default is 0).",
+                    false, "0", null, null, HTTP_CONNECTION_OPTIONS))
+            .property(PropertyUtil.integer(HTTP_CONNECTION_MAX_IDLE, "Connection Max Idle Time",
+                    "Time in seconds a connection may stay idle in the pool. Use more than the Refresh Interval " +
+                            "to keep connections open between refreshes (default is 60).",
+                    false, "60", null, null, HTTP_CONNECTION_OPTIONS))
+            .property(PropertyUtil.bool(HTTP_IDLE_CONNECTION_REAPER, "Idle Connection Reaper",
+                    "Close connections which have been idle longer than the max idle time in the background.",
+                    false, "true", null, HTTP_CONNECTION_OPTIONS))
+            .property(PropertyUtil.integer(HTTP_SOCKET_TIMEOUT, "Socket Timeout",
+                    "Time in seconds to wait for data on an open connection (default is 30).",
+                    false, "30", null, null, HTTP_CONNECTION_OPTIONS))
+            .property(PropertyUtil.integer(HTTP_CONNECT_TIMEOUT, "Connect Timeout",
+                    "Time in seconds to wait for a connection to be established (default is 2).",
+                    false, "2", null, null, HTTP_CONNECTION_OPTIONS))
+            .property(PropertyUtil.bool(HTTP_TCP_KEEP_ALIVE, "TCP Keep-Alive",
+                    "Enable TCP keep-alive on the connections, so that idle connections are not dropped by " +
+                            "firewalls or proxies.",
+                    false, "false", null, HTTP_CONNECTION_OPTIONS))
+            .property(PropertyUtil.bool(PREWARM_CONNECTIONS, "Pre-warm Connections",
+                    "When the source is created, open a connection to each endpoint in the background by looking " +
+                            "up its availability zones, so the first refresh does not wait for connection setup " +
+                            "and TLS handshakes.",
+                    false, "false", null, HTTP_CONNECTION_OPTIONS))
 
             .build();
 
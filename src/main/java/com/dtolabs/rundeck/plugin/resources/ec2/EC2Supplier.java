@@ -3,9 +3,10 @@ package com.dtolabs.rundeck.plugin.resources.ec2;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 
 /**
- * Interface for supplying Ec2Client instances
+ * Interface for supplying Ec2Client instances. Suppliers may reuse clients between calls, so
+ * callers must not close the returned clients; closing the supplier releases them.
  */
-public interface EC2Supplier {
+public interface EC2Supplier extends AutoCloseable {
     /**
      * Return an Ec2Client for the default region
      *
@@ -28,4 +29,11 @@ public interface EC2Supplier {
      * @return Ec2Client
      */
     Ec2Client getEC2ForEndpoint(String endpoint);
+
+    /**
+     * Release any clients held by this supplier
+     */
+    @Override
+    default void close() {
+    }
 }
@@ -1,21 +1,64 @@
 package com.dtolabs.rundeck.plugin.resources.ec2;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientAsyncConfiguration;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.client.config.SdkAdvancedAsyncClientOption;
 import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.metrics.MetricPublisher;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClientBuilder;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.Ec2ClientBuilder;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
- * Implementation of EC2Supplier, uses the AWS SDK v2 to create Ec2Client instances via the Ec2ClientBuilder
+ * Implementation of EC2Supplier and EC2AsyncSupplier, uses the AWS SDK v2 to create Ec2Client and
+ * Ec2AsyncClient instances via their builders.
+ * <p>
+ * Clients are built once per region or endpoint and reused for the life of the supplier. The SDK
+ * clients are thread safe, so the same client may be used by concurrent queries. {@link #close()}
+ * closes all the clients that were built.
+ * </p>
+ * <p>
+ * If a rate limit is set, the calls of each client are limited by the {@link AdaptiveRateLimiter}
+ * shared by all sources for the same account and region. Blocking clients wait for a token before
+ * each attempt; the callers of async clients pace their calls with {@link #getRateLimiter(Ec2AsyncClient)}. If a metric publisher is set, it receives
+ * the metrics of every call.
+ * </p>
  */
-public class EC2SupplierImpl implements EC2Supplier {
-    final private AwsCredentials credentials;
+public class EC2SupplierImpl implements EC2Supplier, EC2AsyncSupplier {
+    static final Logger logger = LoggerFactory.getLogger(EC2SupplierImpl.class);
+    final private AwsCredentialsProvider credentialsProvider;
     final private SdkHttpClient httpClient;
+    final private SdkAsyncHttpClient asyncHttpClient;
+    final private Executor futureCompletionExecutor;
     final private Region defaultRegion;
+    final private ConcurrentMap<String, Ec2Client> clients = new ConcurrentHashMap<>();
+    final private ConcurrentMap<String, Ec2AsyncClient> asyncClients = new ConcurrentHashMap<>();
+    final private ConcurrentMap<Ec2AsyncClient, AdaptiveRateLimiter> asyncRateLimiters = new ConcurrentHashMap<>();
+    final private ConcurrentMap<String, AdaptiveRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    final private AtomicLong clientRequests = new AtomicLong();
+    final private AtomicLong clientsBuilt = new AtomicLong();
+    private volatile boolean closed;
+    private volatile String rateLimitAccount;
+    private volatile double maxRate;
+    private volatile Runnable onThrottle;
+    private volatile MetricPublisher metricPublisher;
 
     /**
      * Create an instance with the specified credentials and shared HTTP client
@@ -25,11 +68,97 @@ public class EC2SupplierImpl implements EC2Supplier {
      * @param region      default region
      */
     public EC2SupplierImpl(AwsCredentials credentials, SdkHttpClient httpClient, Region region) {
-        this.credentials = credentials;
+        this(credentials, httpClient, null, null, region);
+    }
+
+    /**
+     * Create an instance with the specified credentials and shared HTTP clients
+     *
+     * @param credentials              AWS credentials, or null to use the default provider chain
+     * @param httpClient               shared HTTP client (carries any proxy configuration), or null for default
+     * @param asyncHttpClient          shared async HTTP client for the async clients, or null for default
+     * @param futureCompletionExecutor executor used to complete async client futures, or null for default
+     * @param region                   default region
+     */
+    public EC2SupplierImpl(
+            AwsCredentials credentials,
+            SdkHttpClient httpClient,
+            SdkAsyncHttpClient asyncHttpClient,
+            Executor futureCompletionExecutor,
+            Region region
+    )
+    {
+        this(
+                null == credentials ? null : StaticCredentialsProvider.create(credentials),
+                httpClient,
+                asyncHttpClient,
+                futureCompletionExecutor,
+                region
+        );
+    }
+
+    /**
+     * Create an instance with the specified credentials provider and shared HTTP clients. The
+     * provider is used by every client, so credentials it renews apply to clients already built.
+     *
+     * @param credentialsProvider      AWS credentials provider, or null to use the default provider chain
+     * @param httpClient               shared HTTP client (carries any proxy configuration), or null for default
+     * @param asyncHttpClient          shared async HTTP client for the async clients, or null for default
+     * @param futureCompletionExecutor executor used to complete async client futures, or null for default
+     * @param region                   default region
+     */
+    public EC2SupplierImpl(
+            AwsCredentialsProvider credentialsProvider,
+            SdkHttpClient httpClient,
+            SdkAsyncHttpClient asyncHttpClient,
+            Executor futureCompletionExecutor,
+            Region region
+    )
+    {
+        this.credentialsProvider = credentialsProvider;
         this.httpClient = httpClient;
+        this.asyncHttpClient = asyncHttpClient;
+        this.futureCompletionExecutor = futureCompletionExecutor;
         this.defaultRegion = region;
     }
 
+    /**
+     * Limit the calls of the clients built after this call
+     *
+     * @param account    identifies the account the credentials belong to
+     * @param maxRate    maximum requests per second in each region
+     * @param onThrottle called after each throttled call, or null
+     */
+    public void setRateLimit(final String account, final double maxRate, final Runnable onThrottle) {
+        this.rateLimitAccount = account;
+        this.maxRate = maxRate;
+        this.onThrottle = onThrottle;
+    }
+
+    /**
+     * Publish the metrics of the calls of the clients built after this call
+     *
+     * @param metricPublisher publisher, or null
+     */
+    public void setMetricPublisher(final MetricPublisher metricPublisher) {
+        this.metricPublisher = metricPublisher;
+    }
+
+    /**
+     * Return the rate limiter used for the region, or null if calls are not limited. The limiter is
+     * released when this supplier is closed.
+     */
+    AdaptiveRateLimiter getRateLimiter(final Region region) {
+        final String account = rateLimitAccount;
+        if (null == account || null == region || closed) {
+            return null;
+        }
+        return rateLimiters.computeIfAbsent(
+                region.id(),
+                id -> AdaptiveRateLimiter.shared(account, id, maxRate)
+        );
+    }
+
     @Override
     public Ec2Client getEC2ForDefaultRegion() {
         return getEC2ForRegion(null);
@@ -43,10 +172,12 @@ public class EC2SupplierImpl implements EC2Supplier {
      */
     @Override
     public Ec2Client getEC2ForRegion(String region) {
-        Region resolvedRegion = (null == region) ? defaultRegion : Region.of(region);
-        Ec2ClientBuilder builder = Ec2Client.builder().region(resolvedRegion);
-        applyCommon(builder);
-        return builder.build();
+        final Region resolvedRegion = (null == region) ? defaultRegion : Region.of(region);
+        return cachedClient("region:" + resolvedRegion.id(), () -> {
+            Ec2ClientBuilder builder = Ec2Client.builder().region(resolvedRegion);
+            applyCommon(builder, resolvedRegion);
+            return builder.build();
+        });
     }
 
     @Override
@@ -54,22 +185,172 @@ public class EC2SupplierImpl implements EC2Supplier {
         if (null == endpoint) {
             return getEC2ForDefaultRegion();
         }
-        // AWS SDK v2 requires a signing region even when overriding the endpoint, so derive
-        // it from the endpoint host (e.g. https://ec2.us-west-1.amazonaws.com -> us-west-1).
-        Region signingRegion = regionFromEndpoint(endpoint);
-        Ec2ClientBuilder builder = Ec2Client.builder()
-                .region(signingRegion)
-                .endpointOverride(URI.create(endpoint));
-        applyCommon(builder);
-        return builder.build();
+        return cachedClient("endpoint:" + endpoint, () -> {
+            // AWS SDK v2 requires a signing region even when overriding the endpoint, so derive
+            // it from the endpoint host (e.g. https://ec2.us-west-1.amazonaws.com -> us-west-1).
+            Region signingRegion = regionFromEndpoint(endpoint);
+            Ec2ClientBuilder builder = Ec2Client.builder()
+                    .region(signingRegion)
+                    .endpointOverride(URI.create(endpoint));
+            applyCommon(builder, signingRegion);
+            return builder.build();
+        });
+    }
+
+    @Override
+    public Ec2AsyncClient getAsyncEC2ForDefaultRegion() {
+        return getAsyncEC2ForRegion(null);
+    }
+
+    @Override
+    public Ec2AsyncClient getAsyncEC2ForRegion(String region) {
+        final Region resolvedRegion = (null == region) ? defaultRegion : Region.of(region);
+        return cachedClient(asyncClients, "region:" + resolvedRegion.id(), () -> {
+            Ec2AsyncClientBuilder builder = Ec2AsyncClient.builder().region(resolvedRegion);
+            applyCommon(builder, resolvedRegion);
+            return withRateLimiter(builder.build(), resolvedRegion);
+        });
+    }
+
+    @Override
+    public Ec2AsyncClient getAsyncEC2ForEndpoint(String endpoint) {
+        if (null == endpoint) {
+            return getAsyncEC2ForDefaultRegion();
+        }
+        return cachedClient(asyncClients, "endpoint:" + endpoint, () -> {
+            Region signingRegion = regionFromEndpoint(endpoint);
+            Ec2AsyncClientBuilder builder = Ec2AsyncClient.builder()
+                    .region(signingRegion)
+                    .endpointOverride(URI.create(endpoint));
+            applyCommon(builder, signingRegion);
+            return withRateLimiter(builder.build(), signingRegion);
+        });
     }
 
-    private void applyCommon(Ec2ClientBuilder builder) {
+    private Ec2AsyncClient withRateLimiter(final Ec2AsyncClient client, final Region region) {
+        final AdaptiveRateLimiter limiter = getRateLimiter(region);
+        if (null != limiter) {
+            asyncRateLimiters.put(client, limiter);
+        }
+        return client;
+    }
+
+    @Override
+    public AdaptiveRateLimiter getRateLimiter(final Ec2AsyncClient client) {
+        return asyncRateLimiters.get(client);
+    }
+
+    private Ec2Client cachedClient(String key, Supplier<Ec2Client> factory) {
+        return cachedClient(clients, key, factory);
+    }
+
+    private <T> T cachedClient(ConcurrentMap<String, T> cache, String key, Supplier<T> factory) {
+        if (closed) {
+            throw new IllegalStateException("EC2 client supplier is closed");
+        }
+        clientRequests.incrementAndGet();
+        return cache.computeIfAbsent(key, k -> {
+            clientsBuilt.incrementAndGet();
+            logger.debug("Building EC2 client for {}", k);
+            return factory.get();
+        });
+    }
+
+    private void applyCommon(Ec2ClientBuilder builder, Region region) {
         if (null != httpClient) {
             builder.httpClient(httpClient);
         }
-        if (null != credentials) {
-            builder.credentialsProvider(StaticCredentialsProvider.create(credentials));
+        final ClientOverrideConfiguration overrides = overrideConfiguration(region, true);
+        if (null != overrides) {
+            builder.overrideConfiguration(overrides);
+        }
+        if (null != credentialsProvider) {
+            builder.credentialsProvider(credentialsProvider);
+        }
+    }
+
+    private void applyCommon(Ec2AsyncClientBuilder builder, Region region) {
+        if (null != asyncHttpClient) {
+            builder.httpClient(asyncHttpClient);
+        }
+        final ClientOverrideConfiguration overrides = overrideConfiguration(region, false);
+        if (null != overrides) {
+            builder.overrideConfiguration(overrides);
+        }
+        if (null != futureCompletionExecutor) {
+            builder.asyncConfiguration(ClientAsyncConfiguration.builder()
+                    .advancedOption(SdkAdvancedAsyncClientOption.FUTURE_COMPLETION_EXECUTOR, futureCompletionExecutor)
+                    .build());
+        }
+        if (null != credentialsProvider) {
+            builder.credentialsProvider(credentialsProvider);
+        }
+    }
+
+    /**
+     * @param blocking true if the client may block its calling thread to wait for a rate limit token
+     */
+    private ClientOverrideConfiguration overrideConfiguration(Region region, boolean blocking) {
+        final AdaptiveRateLimiter limiter = getRateLimiter(region);
+        final MetricPublisher publisher = metricPublisher;
+        if (null == limiter && null == publisher) {
+            return null;
+        }
+        final ClientOverrideConfiguration.Builder builder = ClientOverrideConfiguration.builder();
+        if (null != limiter) {
+            final RateLimitInterceptor interceptor = new RateLimitInterceptor(limiter, onThrottle, blocking);
+            builder.addExecutionInterceptor(interceptor);
+            builder.addMetricPublisher(interceptor);
+        }
+        if (null != publisher) {
+            builder.addMetricPublisher(publisher);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return number of EC2 clients built by this supplier
+     */
+    public long getClientsBuilt() {
+        return clientsBuilt.get();
+    }
+
+    /**
+     * @return number of requests for an EC2 client that were answered with an existing client
+     */
+    public long getClientsReused() {
+        return clientRequests.get() - clientsBuilt.get();
+    }
+
+    /**
+     * Close all clients built by this supplier. The shared HTTP clients are owned by the caller and
+     * are not closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        closeAll(clients);
+        closeAll(asyncClients);
+        asyncRateLimiters.clear();
+        for (final String region : new ArrayList<>(rateLimiters.keySet())) {
+            final AdaptiveRateLimiter limiter = rateLimiters.remove(region);
+            if (null != limiter) {
+                limiter.release();
+            }
+        }
+    }
+
+    private static <T extends AutoCloseable> void closeAll(ConcurrentMap<String, T> cache) {
+        final List<String> keys = new ArrayList<>(cache.keySet());
+        for (final String key : keys) {
+            final T client = cache.remove(key);
+            if (null != client) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    logger.debug("Error closing EC2 client for {}: {}", key, e.getMessage());
+                }
+            }
         }
     }
 
@@ -78,6 +359,15 @@ public class EC2SupplierImpl implements EC2Supplier {
      * region cannot be determined.
      */
     private Region regionFromEndpoint(String endpoint) {
+        return regionFromEndpoint(endpoint, defaultRegion);
+    }
+
+    /**
+     * Derive an AWS region from an EC2 endpoint URL
+     *
+     * @param defaultRegion region returned when the region cannot be determined
+     */
+    static Region regionFromEndpoint(String endpoint, Region defaultRegion) {
         try {
             String host = URI.create(endpoint).getHost();
             if (null != host) {
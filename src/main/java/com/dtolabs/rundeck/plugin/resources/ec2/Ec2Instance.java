@@ -1,7 +1,13 @@
 package com.dtolabs.rundeck.plugin.resources.ec2;
 
 import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.Tag;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -9,15 +15,75 @@ import java.util.Objects;
  * and carries the extra mapping attributes (imageName, region) that are not part of the EC2
  * Instance model. The mapping selector resolver reads the extra attributes from this wrapper and
  * delegates all other property lookups to the underlying {@link Instance}.
+ * <p>
+ * An instance may instead be a compact projection, created by {@link InstanceProjection}, which
+ * holds only the instance ID, image ID, availability zone, and the property values and tags read by
+ * a mapping plan, so that the rest of the SDK object graph is not retained while instances are
+ * mapped. A projected instance has no underlying {@link Instance}.
+ * </p>
  */
 public class Ec2Instance {
 
     private final Instance instance;
+    private final String instanceId;
+    private final String imageId;
+    private final String availabilityZone;
+    private final InstanceProjection projection;
+    private final String[] values;
     private String imageName;
     private String region;
+    // written after firstTags, so a thread reading the index also reads its first values
+    private volatile Map<String, String> tagIndex;
+    private Map<String, String> firstTags;
 
     private Ec2Instance(Instance instance) {
         this.instance = instance;
+        this.instanceId = instance.instanceId();
+        this.imageId = instance.imageId();
+        this.availabilityZone = null == instance.placement() ? null : instance.placement().availabilityZone();
+        this.projection = null;
+        this.values = null;
+    }
+
+    private Ec2Instance(
+            String instanceId,
+            String imageId,
+            String availabilityZone,
+            Map<String, String> tags,
+            Map<String, String> firstTags,
+            InstanceProjection projection,
+            String[] values
+    )
+    {
+        this.instance = null;
+        this.instanceId = instanceId;
+        this.imageId = imageId;
+        this.availabilityZone = availabilityZone;
+        this.firstTags = firstTags;
+        this.tagIndex = tags;
+        this.projection = projection;
+        this.values = values;
+    }
+
+    /**
+     * Create a projected instance
+     *
+     * @param tags       the tags read by the plan, by key
+     * @param firstTags  the first values of duplicate tag keys, see {@link #firstTags()}
+     * @param projection the projection
+     * @param values     the property values, in the order of the projection's properties
+     */
+    static Ec2Instance projected(
+            String instanceId,
+            String imageId,
+            String availabilityZone,
+            Map<String, String> tags,
+            Map<String, String> firstTags,
+            InstanceProjection projection,
+            String[] values
+    )
+    {
+        return new Ec2Instance(instanceId, imageId, availabilityZone, tags, firstTags, projection, values);
     }
 
     /**
@@ -31,14 +97,121 @@ public class Ec2Instance {
     }
 
     /**
-     * The wrapped AWS SDK v2 instance.
+     * Return a copy with the same instance values and no extra mapping attributes, so that an
+     * instance shared by several sources is enriched separately by each of them
+     */
+    Ec2Instance copy() {
+        if (null != instance) {
+            return new Ec2Instance(instance);
+        }
+        return new Ec2Instance(instanceId, imageId, availabilityZone, tags(), firstTags(), projection, values);
+    }
+
+    /**
+     * The wrapped AWS SDK v2 instance, or null if this is a projected instance.
      */
     public Instance instance() {
         return instance;
     }
 
     public String instanceId() {
-        return null == instance ? null : instance.instanceId();
+        return instanceId;
+    }
+
+    public String imageId() {
+        return imageId;
+    }
+
+    public String availabilityZone() {
+        return availabilityZone;
+    }
+
+    /**
+     * @return true if this is a projected instance
+     */
+    boolean isProjected() {
+        return null != projection;
+    }
+
+    /**
+     * Return the projected value of the property
+     *
+     * @throws InstanceToNodeMapper.GeneratorException if the property is not part of the projection
+     */
+    String projectedValue(PropertyAccessor accessor) throws InstanceToNodeMapper.GeneratorException {
+        final int slot = projection.slot(accessor);
+        if (slot < 0) {
+            throw new InstanceToNodeMapper.GeneratorException(new NoSuchMethodException(
+                    "EC2 property '" + accessor.getPath() + "' is not read by the mapping"));
+        }
+        return values[slot];
+    }
+
+    /**
+     * The instance tag values by key, as copied into the node attributes by the tags/* selector. The
+     * index is built from the instance tags on first use and shared by all tag selectors, so the tag
+     * list is scanned once per instance. If a key occurs more than once the last value is used, and
+     * tags without a value are kept with a null value.
+     */
+    public Map<String, String> tags() {
+        Map<String, String> index = tagIndex;
+        if (null == index) {
+            index = indexTags(null == instance ? null : instance.tags());
+            tagIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Return the value of the first tag with the given key, or null
+     */
+    public String tag(String key) {
+        final Map<String, String> index = tags();
+        final Map<String, String> first = firstTags;
+        if (!first.isEmpty() && first.containsKey(key)) {
+            return first.get(key);
+        }
+        return index.get(key);
+    }
+
+    /**
+     * The first values of tag keys which occur more than once with different values, read by tag
+     * selectors in place of the last value. Empty for most instances.
+     */
+    Map<String, String> firstTags() {
+        tags();
+        return firstTags;
+    }
+
+    private Map<String, String> indexTags(List<Tag> tags) {
+        firstTags = Map.of();
+        if (null == tags || tags.isEmpty()) {
+            return Map.of();
+        }
+        final Map<String, String> index = new HashMap<>(tags.size() * 4 / 3 + 1);
+        Map<String, String> first = null;
+        for (final Tag tag : tags) {
+            if (null == tag.key()) {
+                continue;
+            }
+            final boolean duplicate = index.containsKey(tag.key());
+            final String previous = index.put(tag.key(), tag.value());
+            if (duplicate && !Objects.equals(previous, tag.value())) {
+                if (null == first) {
+                    first = new HashMap<>();
+                }
+                if (!first.containsKey(tag.key())) {
+                    first.put(tag.key(), previous);
+                }
+            }
+        }
+        if (null != first) {
+            // the first value wins even if a later duplicate repeats it
+            first.entrySet().removeIf(entry -> Objects.equals(entry.getValue(), index.get(entry.getKey())));
+            firstTags = first.isEmpty() ? Map.of() : Collections.unmodifiableMap(first);
+        }
+        // Map.copyOf rejects the null values of tags without a value
+        return Collections.unmodifiableMap(index);
     }
 
     public String getImageName() {
@@ -65,6 +238,11 @@ public class Ec2Instance {
         this.region = region;
     }
 
+    /**
+     * Instances are identified by their instance ID, so the same instance returned by overlapping
+     * endpoints or pages is only kept once without comparing the whole SDK object graph. Instances
+     * without an ID are compared by value.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -74,11 +252,19 @@ public class Ec2Instance {
             return false;
         }
         Ec2Instance that = (Ec2Instance) o;
-        return Objects.equals(instance, that.instance);
+        String id = instanceId();
+        if (null != id) {
+            return id.equals(that.instanceId());
+        }
+        return null == that.instanceId()
+               && Objects.equals(instance, that.instance)
+               && Arrays.equals(values, that.values)
+               && (null != instance || Objects.equals(tags(), that.tags()));
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(instance);
+        String id = instanceId();
+        return null != id ? id.hashCode() : Objects.hashCode(instance) * 31 + Arrays.hashCode(values);
     }
 }
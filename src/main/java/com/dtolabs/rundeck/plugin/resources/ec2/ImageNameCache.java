@@ -0,0 +1,148 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.model.Image;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Image names by image ID, kept across queries. An image which was looked up but not returned by
+ * DescribeImages is cached as not found. Expired names are looked up again, but are still used if
+ * the lookup fails; they are dropped once they have been expired for another TTL, or an hour if the
+ * TTL is shorter.
+ */
+final class ImageNameCache {
+    static final String NOT_FOUND = "Not found";
+    static final long DEFAULT_TTL_SECONDS = 3600;
+    static final int CHUNK_SIZE = 100;
+    private static final long MIN_RETENTION_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long ttlNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TTL_SECONDS);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Set how long a looked up name is used before it is looked up again
+     */
+    void setTtlMillis(final long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+    }
+
+    /**
+     * Return the image IDs of the instances which are not cached or have expired. Each distinct image
+     * ID counts as a hit or a miss.
+     */
+    Set<String> missing(final Collection<Ec2Instance> instances) {
+        final long now = System.nanoTime();
+        final Set<String> imageIds = new HashSet<>();
+        final Set<String> cached = new HashSet<>();
+        for (final Ec2Instance inst : instances) {
+            final String imageId = inst.imageId();
+            if (null == imageId || imageIds.contains(imageId) || cached.contains(imageId)) {
+                continue;
+            }
+            final Entry entry = entries.get(imageId);
+            if (null == entry || entry.isExpired(now, ttlNanos)) {
+                imageIds.add(imageId);
+            } else {
+                cached.add(imageId);
+            }
+        }
+        hits.add(cached.size());
+        misses.add(imageIds.size());
+        return imageIds;
+    }
+
+    /**
+     * Split the image IDs into chunks of at most {@link #CHUNK_SIZE} for DescribeImages
+     */
+    static List<List<String>> chunks(final Collection<String> imageIds) {
+        final List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = null;
+        for (final String imageId : imageIds) {
+            if (null == chunk || chunk.size() == CHUNK_SIZE) {
+                chunk = new ArrayList<>(Math.min(CHUNK_SIZE, imageIds.size()));
+                chunks.add(chunk);
+            }
+            chunk.add(imageId);
+        }
+        return chunks;
+    }
+
+    /**
+     * Record the result of looking up the requested image IDs. Requested images which were not
+     * returned are cached as not found.
+     */
+    void found(final Collection<String> requested, final Collection<Image> images) {
+        final long now = System.nanoTime();
+        final Set<String> missing = new HashSet<>(requested);
+        for (final Image image : images) {
+            entries.put(image.imageId(), new Entry(image.name(), now));
+            missing.remove(image.imageId());
+        }
+        for (final String imageId : missing) {
+            entries.put(imageId, new Entry(null, now));
+        }
+    }
+
+    /**
+     * Set the image name of each instance from the cache, or "Not found"
+     */
+    Set<Ec2Instance> apply(final Set<Ec2Instance> instances) {
+        for (final Ec2Instance inst : instances) {
+            final String imageId = inst.imageId();
+            final Entry entry = null == imageId ? null : entries.get(imageId);
+            if (null != entry && null != entry.name) {
+                inst.setImageName(entry.name);
+            } else {
+                inst.setImageName(NOT_FOUND);
+                InstanceToNodeMapper.logger.debug("Image not found {}", imageId);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Drop the names which are no longer kept as a fallback
+     */
+    void prune() {
+        final long now = System.nanoTime();
+        final long ttl = ttlNanos;
+        final long retained = ttl + Math.max(ttl, MIN_RETENTION_NANOS);
+        entries.values().removeIf(entry -> entry.isExpired(now, retained));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private static final class Entry {
+        final String name;
+        final long loadedAt;
+
+        Entry(final String name, final long loadedAt) {
+            this.name = name;
+            this.loadedAt = loadedAt;
+        }
+
+        boolean isExpired(final long now, final long ttl) {
+            return now - loadedAt >= ttl;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.model.Filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates DescribeInstances filters on the client, for the filter names whose values can be read
+ * from an {@link Ec2Instance}. As in EC2, the values of a filter are alternatives, all the filters
+ * must match, and values may contain the wildcards "*" and "?". A projected instance must hold the
+ * {@link #properties()} and all its tags.
+ */
+final class InstanceFilter {
+    /**
+     * The instance property read by each filter name, other than the tag filters
+     */
+    static final Map<String, String> PROPERTIES = Map.ofEntries(
+            Map.entry("instance-state-name", "state.name"),
+            Map.entry("instance-id", "instanceId"),
+            Map.entry("image-id", "imageId"),
+            Map.entry("instance-type", "instanceType"),
+            Map.entry("architecture", "architecture"),
+            Map.entry("vpc-id", "vpcId"),
+            Map.entry("subnet-id", "subnetId"),
+            Map.entry("key-name", "keyName"),
+            Map.entry("availability-zone", "placement.availabilityZone"),
+            Map.entry("private-ip-address", "privateIpAddress"),
+            Map.entry("ip-address", "publicIpAddress")
+    );
+
+    private InstanceFilter() {
+    }
+
+    /**
+     * @return the accessors of the properties read by the filters
+     */
+    static List<PropertyAccessor> properties() {
+        final List<PropertyAccessor> properties = new ArrayList<>(PROPERTIES.size());
+        for (final String path : PROPERTIES.values()) {
+            properties.add(PropertyAccessor.forPath(path));
+        }
+        return properties;
+    }
+
+    /**
+     * @return true if the filter can be evaluated by {@link #select(List, Collection)}
+     */
+    static boolean supports(final Filter filter) {
+        final String name = filter.name();
+        if (null == name) {
+            return false;
+        }
+        return name.startsWith("tag:") || "tag-key".equals(name) || "tag-value".equals(name)
+               || PROPERTIES.containsKey(name);
+    }
+
+    /**
+     * @return true if all the filters are supported
+     */
+    static boolean supportsAll(final Collection<Filter> filters) {
+        for (final Filter filter : filters) {
+            if (!supports(filter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the instances which match all the filters
+     */
+    static List<Ec2Instance> select(final List<Ec2Instance> instances, final Collection<Filter> filters) {
+        if (filters.isEmpty()) {
+            return instances;
+        }
+        final List<Pattern[]> patterns = new ArrayList<>(filters.size());
+        for (final Filter filter : filters) {
+            patterns.add(patterns(filter));
+        }
+        final List<Ec2Instance> selected = new ArrayList<>();
+        for (final Ec2Instance instance : instances) {
+            int i = 0;
+            boolean matches = true;
+            for (final Filter filter : filters) {
+                if (!matches(filter.name(), patterns.get(i++), instance)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                selected.add(instance);
+            }
+        }
+        return selected;
+    }
+
+    private static boolean matches(final String name, final Pattern[] values, final Ec2Instance instance) {
+        final Map<String, String> tags = instance.tags();
+        final Map<String, String> firstTags = instance.firstTags();
+        if (name.startsWith("tag:")) {
+            final String key = name.substring(4);
+            return tags.containsKey(key) && anyMatches(values, tags.get(key))
+                   || firstTags.containsKey(key) && anyMatches(values, firstTags.get(key));
+        }
+        switch (name) {
+            case "tag-key":
+                for (final String key : tags.keySet()) {
+                    if (anyMatches(values, key)) {
+                        return true;
+                    }
+                }
+                return false;
+            case "tag-value":
+                for (final String value : tags.values()) {
+                    if (anyMatches(values, value)) {
+                        return true;
+                    }
+                }
+                for (final String value : firstTags.values()) {
+                    if (anyMatches(values, value)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                final String path = PROPERTIES.get(name);
+                if (null == path) {
+                    throw new IllegalArgumentException("Unsupported filter: " + name);
+                }
+                try {
+                    return anyMatches(values, PropertyAccessor.forPath(path).resolve(instance));
+                } catch (InstanceToNodeMapper.GeneratorException e) {
+                    return false;
+                }
+        }
+    }
+
+    private static boolean anyMatches(final Pattern[] values, final String value) {
+        if (null == value) {
+            return false;
+        }
+        for (final Pattern pattern : values) {
+            if (pattern.matcher(value).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern[] patterns(final Filter filter) {
+        final List<String> values = filter.values();
+        final Pattern[] patterns = new Pattern[values.size()];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = Pattern.compile(
+                    Pattern.quote(values.get(i)).replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q")
+            );
+        }
+        return patterns;
+    }
+}
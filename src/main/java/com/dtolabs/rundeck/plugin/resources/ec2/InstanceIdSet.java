@@ -0,0 +1,130 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of instances keyed by instance ID, used to collect the instances of a DescribeInstances
+ * page. It is an open-addressing table with linear probing, presized from the number of instances
+ * in the page, so adding an instance hashes only its ID and allocates no entry object. An instance
+ * whose ID is already present is not added, keeping the first one. Instances without an ID fall
+ * back to {@link Ec2Instance#equals(Object)}.
+ * <p>
+ * Removal is not supported.
+ * </p>
+ */
+final class InstanceIdSet extends AbstractSet<Ec2Instance> {
+    private static final int MIN_CAPACITY = 8;
+    private Ec2Instance[] table;
+    private int size;
+
+    /**
+     * @param expected expected number of instances
+     */
+    InstanceIdSet(final int expected) {
+        table = new Ec2Instance[capacityFor(expected)];
+    }
+
+    private static int capacityFor(final int expected) {
+        // keep the load factor at or below one half
+        final int needed = Math.max(MIN_CAPACITY, expected * 2);
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
+
+    private static int hash(final Ec2Instance inst) {
+        final int h = inst.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public boolean add(final Ec2Instance inst) {
+        if (null == inst) {
+            throw new NullPointerException();
+        }
+        if (!insert(table, inst)) {
+            return false;
+        }
+        if (++size * 2 > table.length) {
+            resize();
+        }
+        return true;
+    }
+
+    private static boolean insert(final Ec2Instance[] table, final Ec2Instance inst) {
+        final int mask = table.length - 1;
+        for (int i = hash(inst) & mask; ; i = (i + 1) & mask) {
+            final Ec2Instance existing = table[i];
+            if (null == existing) {
+                table[i] = inst;
+                return true;
+            }
+            if (existing.equals(inst)) {
+                return false;
+            }
+        }
+    }
+
+    private void resize() {
+        final Ec2Instance[] resized = new Ec2Instance[table.length * 2];
+        for (final Ec2Instance inst : table) {
+            if (null != inst) {
+                insert(resized, inst);
+            }
+        }
+        table = resized;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        if (!(o instanceof Ec2Instance)) {
+            return false;
+        }
+        final Ec2Instance inst = (Ec2Instance) o;
+        final int mask = table.length - 1;
+        for (int i = hash(inst) & mask; ; i = (i + 1) & mask) {
+            final Ec2Instance existing = table[i];
+            if (null == existing) {
+                return false;
+            }
+            if (existing.equals(inst)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Ec2Instance> iterator() {
+        return new Iterator<Ec2Instance>() {
+            private final Ec2Instance[] entries = table;
+            private int index = advance(0);
+
+            private int advance(int i) {
+                while (i < entries.length && null == entries[i]) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < entries.length;
+            }
+
+            @Override
+            public Ec2Instance next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Ec2Instance inst = entries[index];
+                index = advance(index + 1);
+                return inst;
+            }
+        };
+    }
+}
@@ -0,0 +1,133 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The values of an EC2 instance read by a {@link MappingPlan}: the properties and tags its selectors
+ * reference, or all the tags when the tags are copied into the attributes. Each instance is
+ * projected into a compact {@link Ec2Instance} as soon as its page is received, so that the rest of
+ * the SDK object graph (block devices, network interfaces, security groups, ...) can be collected
+ * before the instances are enriched and mapped.
+ */
+final class InstanceProjection {
+    private final PropertyAccessor[] properties;
+    private final Map<PropertyAccessor, Integer> slots;
+    private final Set<String> tags;
+    private final boolean allTags;
+
+    /**
+     * @param properties the property accessors read by the plan; extra attributes are not projected
+     * @param tags       the tag keys read by the plan
+     * @param allTags    true if the plan reads all the tags
+     */
+    InstanceProjection(final Collection<PropertyAccessor> properties, final Set<String> tags, final boolean allTags) {
+        this.slots = new IdentityHashMap<>();
+        for (final PropertyAccessor property : properties) {
+            if (property.isValid() && !property.isExtraAttribute()) {
+                slots.putIfAbsent(property, slots.size());
+            }
+        }
+        this.properties = new PropertyAccessor[slots.size()];
+        for (final Map.Entry<PropertyAccessor, Integer> slot : slots.entrySet()) {
+            this.properties[slot.getValue()] = slot.getKey();
+        }
+        this.tags = Set.copyOf(tags);
+        this.allTags = allTags;
+    }
+
+    /**
+     * Return a projection of all the tags and of the properties read by any of the projections or
+     * in the extra properties
+     */
+    static InstanceProjection union(
+            final Collection<InstanceProjection> projections,
+            final Collection<PropertyAccessor> extra
+    )
+    {
+        final Set<PropertyAccessor> properties = new LinkedHashSet<>(extra);
+        for (final InstanceProjection projection : projections) {
+            properties.addAll(Arrays.asList(projection.properties));
+        }
+        return new InstanceProjection(properties, Set.of(), true);
+    }
+
+    /**
+     * @return true if the instances of this projection hold all the values read by the other one
+     */
+    boolean covers(final InstanceProjection other) {
+        if (!allTags && (other.allTags || !tags.containsAll(other.tags))) {
+            return false;
+        }
+        for (final PropertyAccessor property : other.properties) {
+            if (!slots.containsKey(property)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the compact instance. If a property cannot be read the full instance is returned, so
+     * that mapping it reports the error as before.
+     */
+    Ec2Instance project(final Instance instance) {
+        final Ec2Instance full = Ec2Instance.builder(instance);
+        if (null == full) {
+            return null;
+        }
+        final String[] values = new String[properties.length];
+        try {
+            for (int i = 0; i < properties.length; i++) {
+                values[i] = properties[i].resolve(full);
+            }
+        } catch (InstanceToNodeMapper.GeneratorException e) {
+            return full;
+        }
+        return Ec2Instance.projected(
+                full.instanceId(),
+                full.imageId(),
+                full.availabilityZone(),
+                allTags ? full.tags() : projectTags(instance),
+                allTags ? full.firstTags() : Map.of(),
+                this,
+                values
+        );
+    }
+
+    private Map<String, String> projectTags(final Instance instance) {
+        if (tags.isEmpty() || null == instance.tags() || instance.tags().isEmpty()) {
+            return Map.of();
+        }
+        final Map<String, String> projected = new HashMap<>();
+        for (final Tag tag : instance.tags()) {
+            if (null != tag.key() && null != tag.value() && tags.contains(tag.key())) {
+                projected.putIfAbsent(tag.key(), tag.value());
+            }
+        }
+        return Map.copyOf(projected);
+    }
+
+    /**
+     * @return the index of the property value, or -1 if the property is not projected
+     */
+    int slot(final PropertyAccessor property) {
+        final Integer slot = slots.get(property);
+        return null == slot ? -1 : slot;
+    }
+
+    /**
+     * @return the number of projected properties
+     */
+    int size() {
+        return properties.length;
+    }
+}
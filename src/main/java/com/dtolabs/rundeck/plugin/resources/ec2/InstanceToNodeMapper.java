@@ -24,32 +24,24 @@
 package com.dtolabs.rundeck.plugin.resources.ec2;
 
 import com.dtolabs.rundeck.core.common.INodeEntry;
-import com.dtolabs.rundeck.core.common.NodeEntryImpl;
 import com.dtolabs.rundeck.core.common.NodeSetImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.ec2.Ec2Client;
-import software.amazon.awssdk.services.ec2.model.AvailabilityZone;
 import software.amazon.awssdk.services.ec2.model.DescribeAvailabilityZonesResponse;
 import software.amazon.awssdk.services.ec2.model.DescribeImagesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeImagesResponse;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
-import software.amazon.awssdk.services.ec2.model.DescribeRegionsResponse;
 import software.amazon.awssdk.services.ec2.model.Filter;
-import software.amazon.awssdk.services.ec2.model.Image;
 import software.amazon.awssdk.services.ec2.model.Instance;
 import software.amazon.awssdk.services.ec2.model.InstanceStateName;
-import software.amazon.awssdk.services.ec2.model.Region;
 import software.amazon.awssdk.services.ec2.model.Reservation;
-import software.amazon.awssdk.services.ec2.model.Tag;
 
-import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * InstanceToNodeMapper produces Rundeck node definitions from EC2 Instances
@@ -62,9 +54,33 @@ class InstanceToNodeMapper {
     private String endpoint;
     private String region;
     private boolean runningStateOnly = true;
-    private Properties mapping;
+    private MappingPlan mappingPlan;
     private final int maxResults;
+    private final AdaptivePageSize pageSize;
     private final EC2Supplier ec2Supplier;
+    private int regionConcurrency = DEFAULT_REGION_CONCURRENCY;
+    private long regionTimeoutMillis = DEFAULT_REGION_TIMEOUT_SECONDS * 1000L;
+    private long staleRegionMaxAgeMillis = DEFAULT_STALE_REGION_MAX_AGE_SECONDS * 1000L;
+    private ThreadPoolExecutor regionExecutor;
+    private ThreadPoolExecutor mappingExecutor;
+    private ThreadPoolExecutor imageLookupExecutor;
+    private final ImageNameCache imageNames = new ImageNameCache();
+    private final ZoneRegionCache zoneRegions = new ZoneRegionCache();
+    private final RegionListCache regionList = new RegionListCache();
+    private ExecutorService regionListExecutor;
+    private AsyncQueryEngine asyncQueryEngine;
+    private SharedInventory sharedInventory;
+    private volatile SharedInventory.Source sharedSource;
+    private volatile NodeGeneration lastGeneration;
+    private volatile SourceMetrics metrics;
+    private final LongAdder nodesReused = new LongAdder();
+    private final LongAdder nodesRemapped = new LongAdder();
+
+    static final int DEFAULT_REGION_CONCURRENCY = 8;
+    static final int DEFAULT_REGION_TIMEOUT_SECONDS = 90;
+    static final int DEFAULT_STALE_REGION_MAX_AGE_SECONDS = 3600;
+    static final int IMAGE_LOOKUP_THREADS = 4;
+    static final String DEFAULT_REGION_KEY = "default";
 
     private static final String[] extraInstanceMappingAttributes= {"imageName","region"};
 
@@ -72,176 +88,664 @@ class InstanceToNodeMapper {
      * Create with the credentials and mapping definition
      */
     InstanceToNodeMapper(final EC2Supplier ec2Supplier, final Properties mapping, final int maxResults) {
+        this(ec2Supplier, MappingPlan.compile(mapping), maxResults);
+    }
+
+    /**
+     * Create with the credentials and compiled mapping definition
+     */
+    InstanceToNodeMapper(final EC2Supplier ec2Supplier, final MappingPlan mappingPlan, final int maxResults) {
         this.ec2Supplier = ec2Supplier;
-        this.mapping = mapping;
+        this.mappingPlan = mappingPlan;
         this.maxResults = maxResults;
+        this.pageSize = new AdaptivePageSize(maxResults);
+        setMetrics(new SourceMetrics(null));
     }
 
 
     /**
-     * Perform the query and return the set of instances
+     * Perform the query and return the set of instances. A region which fails keeps its nodes from
+     * the previous query, up to the stale region max age; the query only fails if every region
+     * failed without nodes to keep.
      *
      */
     public NodeSetImpl performQuery(boolean queryNodeInstancesInParallel) {
-        final NodeSetImpl nodeSet = new NodeSetImpl();
+        final NodeGeneration generation = new NodeGeneration(mappingPlan, lastGeneration);
+        imageNames.prune();
 
-        Set<Ec2Instance> instances = new HashSet<>();
-
-        DescribeInstancesRequest request = DescribeInstancesRequest.builder()
-                .filters(buildFilters())
-                .maxResults(maxResults)
-                .build();
-
-        if(getEndpoint() != null) {
-            ExecutorService executor = null;
-            Collection<Future<Set<Ec2Instance>>> futures = new LinkedList<Future<Set<Ec2Instance>>>();
-            Set<Callable<Set<Ec2Instance>>> tasks = new HashSet<>();
+        if (null != asyncQueryEngine) {
+            asyncQueryEngine.query(this, generation);
+        }
+        else if(getEndpoint() != null) {
             List<String> endpoints = determineEndpoints();
-            for (String endpoint : endpoints) {
-                if(queryNodeInstancesInParallel) {
-                    if(executor == null){
-                        logger.info("Creating thread pool for {} regions", endpoints.size() );
-                        executor = Executors.newFixedThreadPool(endpoints.size());
-                    }
-                    tasks.add(new Callable<Set<Ec2Instance>>() {
-                        @Override
-                        public Set<Ec2Instance> call() throws Exception {
-                            return getInstancesByRegion(endpoint);
-                        };
-                    });
-                }else{
-                    instances.addAll(getInstancesByRegion(endpoint));
+            if (queryNodeInstancesInParallel) {
+                queryRegionsInParallel(endpoints, generation);
+            } else {
+                for (String endpoint : endpoints) {
+                    queryRegionOrRetain(endpoint, () -> ec2Supplier.getEC2ForEndpoint(endpoint), generation);
                 }
             }
-            if(queryNodeInstancesInParallel) {
-                try {
-                    logger.info("Querying {} regions in parallel", endpoints.size() );
-                    futures = executor.invokeAll(tasks);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                } finally {
+        }
+        else if(region != null){
+            queryRegionOrRetain(regionKey(region), () -> ec2Supplier.getEC2ForRegion(region), generation);
+        }
+        else{
+            queryRegionOrRetain(DEFAULT_REGION_KEY, ec2Supplier::getEC2ForDefaultRegion, generation);
+        }
+        generation.seal();
+        checkRegions(generation);
+        logger.info(
+                "Mapped {} nodes: {} reused, {} remapped, {} removed",
+                generation.getNodeSet().getNodeNames().size(),
+                generation.getReused(),
+                generation.getRemapped(),
+                generation.getRemoved()
+        );
+        nodesReused.add(generation.getReused());
+        nodesRemapped.add(generation.getRemapped());
+        lastGeneration = generation;
+        return generation.getNodeSet();
+    }
+
+    /**
+     * Open a connection to each endpoint to query, in the background, by looking up its availability
+     * zones, which are then cached for the first query. Failures are only logged.
+     *
+     * @return completes when every endpoint has been tried
+     */
+    CompletableFuture<Void> warmUp() {
+        if (null != asyncQueryEngine) {
+            return asyncQueryEngine.warmUp(this);
+        }
+        final ExecutorService executor = getRegionExecutor();
+        return CompletableFuture.supplyAsync(() -> {
+            final List<CompletableFuture<Void>> lookups = new ArrayList<>();
+            if (null != getEndpoint()) {
+                for (final String endpoint : determineEndpoints()) {
+                    lookups.add(CompletableFuture.runAsync(
+                            () -> warmUp(endpoint, () -> ec2Supplier.getEC2ForEndpoint(endpoint)),
+                            executor
+                    ));
+                }
+            } else if (null != region) {
+                warmUp(regionKey(region), () -> ec2Supplier.getEC2ForRegion(region));
+            } else {
+                warmUp(DEFAULT_REGION_KEY, ec2Supplier::getEC2ForDefaultRegion);
+            }
+            return lookups;
+        }, executor).thenCompose(
+                lookups -> CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0]))
+        ).exceptionally(e -> {
+            logger.debug("Could not warm up EC2 connections: {}", e.toString());
+            return null;
+        });
+    }
+
+    private void warmUp(final String key, final Supplier<Ec2Client> client) {
+        try {
+            final Ec2Client ec2 = client.get();
+            zoneRegions.get(key, () -> describeAvailabilityZones(key, ec2));
+        } catch (RuntimeException e) {
+            logger.debug("Could not warm up EC2 connection to {}: {}", key, e.toString());
+        }
+    }
+
+    /**
+     * Query one region, recording its status in the generation instead of throwing if it fails
+     */
+    private void queryRegionOrRetain(
+            final String key,
+            final Supplier<Ec2Client> client,
+            final NodeGeneration generation
+    )
+    {
+        try {
+            queryRegion(key, client.get(), generation);
+            generation.regionSucceeded(key);
+        } catch (RuntimeException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            regionFailed(generation, key, e);
+        }
+    }
+
+    /**
+     * Record a failed region, keeping its previous nodes if they are recent enough
+     */
+    void regionFailed(final NodeGeneration generation, final String key, final Throwable error) {
+        metrics.regionFailed(key);
+        final RegionStatus status = generation.regionFailed(key, error, staleRegionMaxAgeMillis);
+        if (status.getState() == RegionStatus.State.STALE) {
+            logger.warn(
+                    "Error querying region {}, keeping {} nodes from {}ms ago: {}",
+                    key,
+                    status.getNodeCount(),
+                    status.getAgeMillis(System.currentTimeMillis()),
+                    error.toString()
+            );
+        } else {
+            logger.error("Error querying region {}: {}", key, error.getMessage(), error);
+        }
+    }
+
+    /**
+     * Fail the query if every region failed without nodes to keep, so that the previous node set is
+     * kept
+     */
+    private static void checkRegions(final NodeGeneration generation) {
+        String failedKey = null;
+        for (final Map.Entry<String, RegionStatus> region : generation.getRegions().entrySet()) {
+            if (region.getValue().getState() != RegionStatus.State.FAILED) {
+                return;
+            }
+            failedKey = region.getKey();
+        }
+        if (null != failedKey) {
+            throw new RuntimeException(
+                    "Error querying region " + failedKey,
+                    generation.getRegions().get(failedKey).getError()
+            );
+        }
+    }
+
+    /**
+     * Query the endpoints on the region executor, mapping the instances of each region into the node
+     * set as its pages arrive. A region which fails or runs longer than the region timeout is
+     * cancelled and recorded as failed in the generation.
+     */
+    private void queryRegionsInParallel(final List<String> endpoints, final NodeGeneration generation) {
+        final CompletionService<Integer> completion = new ExecutorCompletionService<>(getRegionExecutor());
+        final Map<Future<Integer>, RegionTask> pending = new HashMap<>();
+        logger.info("Querying {} regions in parallel (limit {})", endpoints.size(), regionConcurrency);
+        try {
+            for (final String endpoint : endpoints) {
+                final RegionTask task = new RegionTask(endpoint, generation);
+                pending.put(completion.submit(task), task);
+            }
+            while (!pending.isEmpty()) {
+                final Future<Integer> done = completion.poll(nextDeadlineWait(pending.values()),
+                                                                      TimeUnit.NANOSECONDS);
+                if (null != done) {
+                    final RegionTask task = pending.remove(done);
                     try {
-                        for (Future<Set<Ec2Instance>> future : futures) {
-                            if (future != null) {
-                                instances.addAll(future.get());
-                            }
-                        }
-                        logger.info("Finished querying {} regions in parallel", endpoints.size() );
-                        executor.shutdown();
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
+                        done.get();
+                        generation.regionSucceeded(task.endpoint);
                     } catch (ExecutionException e) {
-                        throw new RuntimeException(e);
+                        regionFailed(generation, task.endpoint, e.getCause());
                     }
+                    continue;
                 }
-                try {
-                    // Wait for 90 seconds for all tasks to finish
-                    logger.info("Waiting for {} seconds for all tasks to finish", 90);
-                    executor.awaitTermination(90, TimeUnit.SECONDS);
-                } catch (InterruptedException ignored) {
-                    // Restore interrupted status
-                    logger.warn("Thread interrupted while waiting for tasks to finish", ignored);
-                    Thread.currentThread().interrupt();
-                } finally {
-                    // Force shutdown if not already done
-                    logger.warn("Forcing shutdown of thread pool");
-                    executor.shutdownNow();
+                final Iterator<Map.Entry<Future<Integer>, RegionTask>> tasks = pending.entrySet().iterator();
+                while (tasks.hasNext()) {
+                    final Map.Entry<Future<Integer>, RegionTask> task = tasks.next();
+                    if (task.getValue().isOverdue(System.nanoTime())) {
+                        task.getKey().cancel(true);
+                        tasks.remove();
+                        regionFailed(generation, task.getValue().endpoint, new TimeoutException(
+                                "Query for region " + task.getValue().endpoint + " exceeded "
+                                + regionTimeoutMillis + "ms"));
+                    }
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            for (final Future<Integer> future : pending.keySet()) {
+                future.cancel(true);
+            }
         }
-        else if(region != null){
-            Ec2Client ec2ForRegion = ec2Supplier.getEC2ForRegion(region);
+        logger.info("Finished querying {} regions in parallel", endpoints.size());
+    }
 
+    /**
+     * Return the time to wait until the earliest deadline of the started regions, or a full
+     * region timeout if none has started yet
+     */
+    private long nextDeadlineWait(final Collection<RegionTask> tasks) {
+        final long now = System.nanoTime();
+        long wait = TimeUnit.MILLISECONDS.toNanos(regionTimeoutMillis);
+        for (final RegionTask task : tasks) {
+            final long started = task.startedAt;
+            if (started != 0) {
+                wait = Math.min(wait, started + TimeUnit.MILLISECONDS.toNanos(regionTimeoutMillis) - now);
+            }
+        }
+        return Math.max(wait, 0);
+    }
 
-            DescribeAvailabilityZonesResponse zones = ec2ForRegion.describeAvailabilityZones();
+    /**
+     * Queries one region, recording when it started running so that its deadline is only counted
+     * once it leaves the executor queue
+     */
+    private final class RegionTask implements Callable<Integer> {
+        final String endpoint;
+        final NodeGeneration generation;
+        volatile long startedAt;
+
+        RegionTask(final String endpoint, final NodeGeneration generation) {
+            this.endpoint = endpoint;
+            this.generation = generation;
+        }
 
-            final Set<Ec2Instance> newInstances = addExtraMappingAttribute(ec2ForRegion, query(ec2ForRegion, request), zones);
+        @Override
+        public Integer call() {
+            startedAt = System.nanoTime() | 1;
+            return queryRegion(endpoint, ec2Supplier.getEC2ForEndpoint(endpoint), generation);
+        }
 
-            if (newInstances != null && !newInstances.isEmpty()) {
-                instances.addAll(newInstances);
-            }
+        boolean isOverdue(final long now) {
+            final long started = startedAt;
+            return started != 0 && now - started >= TimeUnit.MILLISECONDS.toNanos(regionTimeoutMillis);
         }
-        else{
-            Ec2Client ec2 = ec2Supplier.getEC2ForDefaultRegion();
-            DescribeAvailabilityZonesResponse zones = ec2.describeAvailabilityZones();
+    }
 
-            instances = addExtraMappingAttribute(ec2, query(ec2, request), zones);
+    /**
+     * Return the executor used to query regions in parallel, creating it on first use. Threads are
+     * released when idle.
+     */
+    private synchronized ExecutorService getRegionExecutor() {
+        if (null == regionExecutor) {
+            regionExecutor = new ThreadPoolExecutor(
+                    regionConcurrency,
+                    regionConcurrency,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new DaemonThreadFactory("ec2-region-query")
+            );
+            regionExecutor.allowCoreThreadTimeOut(true);
+        }
+        return regionExecutor;
+    }
+
+    /**
+     * Return the executor used to map pages of instances while the next page is fetched, creating it
+     * on first use. Threads are released when idle.
+     */
+    private synchronized ExecutorService getMappingExecutor() {
+        if (null == mappingExecutor) {
+            final int threads = Math.max(1, Math.min(regionConcurrency, Runtime.getRuntime().availableProcessors()));
+            mappingExecutor = new ThreadPoolExecutor(
+                    threads,
+                    threads,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new DaemonThreadFactory("ec2-node-mapping")
+            );
+            mappingExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mappingExecutor;
+    }
+
+    /**
+     * Return the executor used to look up chunks of image names in parallel, creating it on first
+     * use. Threads are released when idle.
+     */
+    private synchronized ExecutorService getImageLookupExecutor() {
+        if (null == imageLookupExecutor) {
+            imageLookupExecutor = new ThreadPoolExecutor(
+                    IMAGE_LOOKUP_THREADS,
+                    IMAGE_LOOKUP_THREADS,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new DaemonThreadFactory("ec2-image-lookup")
+            );
+            imageLookupExecutor.allowCoreThreadTimeOut(true);
+        }
+        return imageLookupExecutor;
+    }
+
+    /**
+     * Return the executor used to describe the regions for ALL_REGIONS, creating it on first use
+     */
+    private synchronized ExecutorService getRegionListExecutor() {
+        if (null == regionListExecutor) {
+            regionListExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("ec2-region-list"));
+        }
+        return regionListExecutor;
+    }
+
+    /**
+     * Stop the region, mapping and image lookup executors, cancelling any region queries in progress
+     */
+    synchronized void shutdown() {
+        if (null != regionExecutor) {
+            regionExecutor.shutdownNow();
+            regionExecutor = null;
+        }
+        if (null != mappingExecutor) {
+            mappingExecutor.shutdownNow();
+            mappingExecutor = null;
+        }
+        if (null != imageLookupExecutor) {
+            imageLookupExecutor.shutdownNow();
+            imageLookupExecutor = null;
+        }
+        if (null != regionListExecutor) {
+            regionListExecutor.shutdownNow();
+            regionListExecutor = null;
+        }
+        if (null != sharedSource) {
+            sharedSource.release();
+            sharedSource = null;
         }
-        mapInstances(nodeSet, instances);
-        return nodeSet;
     }
 
     private List<String> determineEndpoints() {
         ArrayList<String> endpoints = new ArrayList<>();
         if (getEndpoint().equals("ALL_REGIONS")) {
 
-            //Retrieve dynamic list of EC2 regions from AWS
-            DescribeRegionsResponse regionsResult = ec2Supplier.getEC2ForDefaultRegion().describeRegions();
-            for (Region region : regionsResult.regions()) {
-                endpoints.add(region.endpoint());
+            //Retrieve dynamic list of EC2 regions from AWS, or the cached list
+            final ExecutorService executor = getRegionListExecutor();
+            try {
+                endpoints.addAll(regionList.get(() -> CompletableFuture.supplyAsync(
+                        () -> regionList.describe(ec2Supplier.getEC2ForDefaultRegion()),
+                        executor
+                )).join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
             }
 
         } else {
-            try {
-                //Use comma-separated list of region supplied by user
-                endpoints.addAll(Arrays.asList(getEndpoint().replaceAll("\\s+", "").split(",")));
-            } catch (NullPointerException e) {
-                throw new IllegalArgumentException("Failed to parse endpoint: Region cannot be empty");
-            }
+            endpoints.addAll(parseEndpoints());
         }
         return endpoints;
     }
 
-    private Set<Ec2Instance> getInstancesByRegion(String endpoint) {
-        Set<Ec2Instance> allInstances = new HashSet<>();
-        Ec2Client ec2 = ec2Supplier.getEC2ForEndpoint(endpoint);
-        DescribeAvailabilityZonesResponse zones = ec2.describeAvailabilityZones();
-        final List<Filter> filters = buildFilters();
-
-        DescribeInstancesRequest request = DescribeInstancesRequest.builder()
-                .filters(filters)
-                .maxResults(maxResults)
-                .build();
+    /**
+     * Return the comma-separated list of endpoints supplied by the user
+     */
+    List<String> parseEndpoints() {
+        try {
+            //Use comma-separated list of region supplied by user
+            return Arrays.asList(getEndpoint().replaceAll("\\s+", "").split(","));
+        } catch (NullPointerException e) {
+            throw new IllegalArgumentException("Failed to parse endpoint: Region cannot be empty");
+        }
+    }
 
-        final Set<Ec2Instance> newInstances = addExtraMappingAttribute(ec2, query(ec2, request), zones);
+    /**
+     * Query one region into the node set, recording a region query event
+     *
+     * @return the number of instances mapped
+     */
+    private int queryRegion(final String key, final Ec2Client ec2, final NodeGeneration generation) {
+        final RefreshEvents.RegionQuery event = new RefreshEvents.RegionQuery();
+        event.begin();
+        int count = -1;
+        try {
+            count = queryRegionPages(key, ec2, generation);
+            return count;
+        } finally {
+            if (event.shouldCommit()) {
+                event.region = key;
+                event.instances = Math.max(count, 0);
+                event.succeeded = count >= 0;
+                event.commit();
+            }
+        }
+    }
 
-        if (newInstances != null && !newInstances.isEmpty()) {
-            allInstances.addAll(newInstances);
+    /**
+     * Query all pages of one region into the node set. Each page is enriched and mapped on the
+     * mapping executor while the next page is fetched, so at most two pages of SDK instances are
+     * held for the region at any time.
+     *
+     * @return the number of instances mapped
+     */
+    private int queryRegionPages(final String key, final Ec2Client ec2, final NodeGeneration generation) {
+        final Map<String, String> zones = mappingPlan.needsRegion()
+                                          ? zoneRegions.get(key, () -> describeAvailabilityZones(key, ec2))
+                                          : null;
+        final SourceMetrics.RegionQuery query = metrics.startRegion(key);
+        if (null != sharedInventory) {
+            final int count = querySharedRegion(key, ec2, zones, generation, query);
+            query.finished();
+            return count;
         }
+        final DescribeInstancesRequest request = buildRequest();
+        int count = 0;
+        Future<Integer> mapping = null;
+        try {
+            String token = null;
+            do {
+                final DescribeInstancesResponse page = describePage(key, ec2, request, token, query);
+
+                token = page.nextToken();
 
-        return allInstances;
+                if (null != mapping) {
+                    count += mapping.get();
+                }
+                mapping = getMappingExecutor().submit(() -> mapPage(key, ec2, page, zones, generation, query));
+            } while(token != null);
+            count += mapping.get();
+            mapping = null;
+            query.finished();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (null != mapping) {
+                mapping.cancel(true);
+            }
+        }
+        return count;
     }
 
-    private Set<Ec2Instance> query(final Ec2Client ec2, final DescribeInstancesRequest request) {
-        //create "running" filter
-        final Set<Ec2Instance> instances = new HashSet<>();
+    /**
+     * Map the instances of one region from the shared inventory, which only queries the region if no
+     * source using the same account and filters has queried it within the max age. The instances are
+     * enriched and mapped in chunks of the page size.
+     *
+     * @return the number of instances mapped
+     */
+    private int querySharedRegion(
+            final String key,
+            final Ec2Client ec2,
+            final Map<String, String> zones,
+            final NodeGeneration generation,
+            final SourceMetrics.RegionQuery query
+    )
+    {
+        final List<Ec2Instance> instances = sharedInventory.instances(
+                sharedSource,
+                key,
+                buildFilters(),
+                mappingPlan.projection(),
+                projection -> describeAll(key, ec2, query, projection)
+        );
+        final int chunk = Math.max(1, pageSize.get());
+        int count = 0;
+        for (int i = 0; i < instances.size(); i += chunk) {
+            final long started = System.nanoTime();
+            final List<Ec2Instance> slice = instances.subList(i, Math.min(instances.size(), i + chunk));
+            final Set<Ec2Instance> set = new InstanceIdSet(slice.size());
+            for (final Ec2Instance instance : slice) {
+                set.add(instance.copy());
+            }
+            mapInstances(key, generation, addExtraMappingAttribute(key, ec2, set, zones));
+            query.mapped(set.size(), System.nanoTime() - started);
+            count += set.size();
+        }
+        return count;
+    }
 
+    /**
+     * Return all the instances of the region, projected as each page is received so that only one
+     * page of SDK instances is held at a time
+     */
+    private List<Ec2Instance> describeAll(
+            final String key,
+            final Ec2Client ec2,
+            final SourceMetrics.RegionQuery query,
+            final InstanceProjection projection
+    )
+    {
+        final DescribeInstancesRequest request = buildRequest();
+        final List<Ec2Instance> instances = new ArrayList<>();
         String token = null;
         do {
-            final DescribeInstancesRequest pagedRequest = request.toBuilder().nextToken(token).build();
+            final DescribeInstancesResponse page = describePage(key, ec2, request, token, query);
+            for (final Reservation reservation : page.reservations()) {
+                for (final Instance instance : reservation.instances()) {
+                    final Ec2Instance projected = projection.project(instance);
+                    if (null != projected) {
+                        instances.add(projected);
+                    }
+                }
+            }
+            token = page.nextToken();
+        } while (token != null);
+        return instances;
+    }
+
+    /**
+     * Request one page of instances, adapting the page size to its latency
+     *
+     * @param token next token, or null for the first page
+     */
+    private DescribeInstancesResponse describePage(
+            final String key,
+            final Ec2Client ec2,
+            final DescribeInstancesRequest request,
+            final String token,
+            final SourceMetrics.RegionQuery query
+    )
+    {
+        final int maxResults = pageSize.get();
+        final RefreshEvents.Page event = new RefreshEvents.Page();
+        event.begin();
+        final long started = System.nanoTime();
+        final DescribeInstancesResponse page = ec2.describeInstances(
+                request.toBuilder().nextToken(token).maxResults(maxResults).build()
+        );
+        pageSize.onPage(System.nanoTime() - started);
+        query.page();
+        commitPage(event, key, maxResults, page);
+        return page;
+    }
 
-            final DescribeInstancesResponse describeInstancesResponse = ec2.describeInstances(pagedRequest);
+    /**
+     * Record a page event, if enabled
+     */
+    static void commitPage(
+            final RefreshEvents.Page event,
+            final String key,
+            final int maxResults,
+            final DescribeInstancesResponse page
+    )
+    {
+        if (event.shouldCommit()) {
+            event.region = key;
+            event.pageSize = maxResults;
+            event.instances = instanceCount(page);
+            event.commit();
+        }
+    }
 
-            token = describeInstancesResponse.nextToken();
+    private static int instanceCount(final DescribeInstancesResponse page) {
+        int count = 0;
+        for (final Reservation reservation : page.reservations()) {
+            count += reservation.instances().size();
+        }
+        return count;
+    }
 
-            instances.addAll(examineResult(describeInstancesResponse));
-        } while(token != null);
+    private static DescribeAvailabilityZonesResponse describeAvailabilityZones(
+            final String key,
+            final Ec2Client ec2
+    )
+    {
+        final RefreshEvents.Enrichment event = new RefreshEvents.Enrichment();
+        event.begin();
+        final DescribeAvailabilityZonesResponse zones = ec2.describeAvailabilityZones();
+        commitZones(event, key);
+        return zones;
+    }
 
-        return instances;
+    /**
+     * Record an availability zone lookup event, if enabled
+     */
+    static void commitZones(final RefreshEvents.Enrichment event, final String key) {
+        if (event.shouldCommit()) {
+            event.region = key;
+            event.attribute = RefreshEvents.Enrichment.ZONES;
+            event.lookups = 1;
+            event.commit();
+        }
     }
 
-    private Set<Ec2Instance> examineResult(DescribeInstancesResponse describeInstancesResponse) {
-        final List<Reservation> reservations = describeInstancesResponse.reservations();
-        final Set<Ec2Instance> instances = new HashSet<>();
+    /**
+     * Map enriched instances into the node set
+     */
+    void mapInstances(final String key, final NodeGeneration generation, final Set<Ec2Instance> instances) {
+        final RefreshEvents.Mapping event = new RefreshEvents.Mapping();
+        event.begin();
+        generation.addAll(key, instances);
+        if (event.shouldCommit()) {
+            event.region = key;
+            event.instances = instances.size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Add the extra mapping attributes to the instances of one page and map them into the node set
+     *
+     * @return the number of instances in the page
+     */
+    private int mapPage(
+            final String key,
+            final Ec2Client ec2,
+            final DescribeInstancesResponse page,
+            final Map<String, String> zones,
+            final NodeGeneration generation,
+            final SourceMetrics.RegionQuery query
+    )
+    {
+        final long started = System.nanoTime();
+        final Set<Ec2Instance> instances = addExtraMappingAttribute(key, ec2, examineResult(page), zones);
+        mapInstances(key, generation, instances);
+        query.mapped(instances.size(), System.nanoTime() - started);
+        return instances.size();
+    }
 
-        for (final Reservation reservation : reservations) {
+    /**
+     * Return the instances of a page, projected to the values read by the mapping plan
+     */
+    Set<Ec2Instance> examineResult(DescribeInstancesResponse describeInstancesResponse) {
+        final Set<Ec2Instance> instances = new InstanceIdSet(instanceCount(describeInstancesResponse));
+
+        for (final Reservation reservation : describeInstancesResponse.reservations()) {
             for (final Instance instance : reservation.instances()) {
-                instances.add(Ec2Instance.builder(instance));
+                instances.add(mappingPlan.projection().project(instance));
             }
         }
         return instances;
     }
 
+    /**
+     * Return the DescribeInstances request for the first page, with the configured filters
+     */
+    DescribeInstancesRequest buildRequest() {
+        return DescribeInstancesRequest.builder()
+                .filters(buildFilters())
+                .maxResults(pageSize.get())
+                .build();
+    }
+
     private List<Filter> buildFilters() {
         final List<Filter> filters = new ArrayList<>();
         if (isRunningStateOnly()) {
@@ -262,150 +766,18 @@ class InstanceToNodeMapper {
         return filters;
     }
 
-    private void mapInstances(final NodeSetImpl nodeSet, final Set<Ec2Instance> instances) {
-        for (final Ec2Instance inst : instances) {
-            final INodeEntry iNodeEntry;
-            try {
-                iNodeEntry = InstanceToNodeMapper.instanceToNode(inst, mapping);
-                if (null != iNodeEntry) {
-                    nodeSet.putNode(iNodeEntry);
-                }
-            } catch (GeneratorException e) {
-                logger.error("Generator error",e);
-            }
-        }
-    }
-
     /**
      * Convert an AWS EC2 Instance to a RunDeck INodeEntry based on the mapping input
      */
-    @SuppressWarnings("unchecked")
     static INodeEntry instanceToNode(final Ec2Instance inst, final Properties mapping) throws GeneratorException {
-        final NodeEntryImpl node = new NodeEntryImpl();
-
-        //evaluate single settings.selector=tags/* mapping
-        if ("tags/*".equals(mapping.getProperty("attributes.selector"))) {
-            //iterate through instance tags and generate settings
-            for (final Tag tag : inst.instance().tags()) {
-                if (null == node.getAttributes()) {
-                    node.setAttributes(new HashMap<>());
-                }
-                node.getAttributes().put(tag.key(), tag.value());
-            }
-        }
-        if (null != mapping.getProperty("tags.selector")) {
-            final String selector = mapping.getProperty("tags.selector");
-            final String value = applySelector(inst, selector, mapping.getProperty("tags.default"), true);
-            if (null != value) {
-                final String[] values = value.split(",");
-                final HashSet<String> tagset = new HashSet<>();
-                for (final String s : values) {
-                    tagset.add(s.trim());
-                }
-                if (null == node.getTags()) {
-                    node.setTags(tagset);
-                } else {
-                    final Set<String> orig = new HashSet<String>(node.getTags());
-                    orig.addAll(tagset);
-                    node.setTags(orig);
-                }
-            }
-        }
-        if (null == node.getTags()) {
-            node.setTags(new HashSet<String>());
-        }
-        final Set<String> orig = new HashSet<String>(node.getTags());
-        //apply specific tag selectors
-        final Pattern tagPat = Pattern.compile("^tag\\.(.+?)\\.selector$");
-        //evaluate tag selectors
-        for (final Object o : mapping.keySet()) {
-            final String key = (String) o;
-            final String selector = mapping.getProperty(key);
-            //split selector by = if present
-            final String[] selparts = selector.split("=");
-            final Matcher m = tagPat.matcher(key);
-            if (m.matches()) {
-                final String tagName = m.group(1);
-                if (null == node.getAttributes()) {
-                    node.setAttributes(new HashMap<>());
-                }
-                final String value = applySelector(inst, selparts[0], null);
-                if (null != value) {
-                    if (selparts.length > 1 && !value.equals(selparts[1])) {
-                        continue;
-                    }
-                    //use add the tag if the value is not null
-                    orig.add(tagName);
-                }
-            }
-        }
-        node.setTags(orig);
-
-        //apply default values which do not have corresponding selector
-        final Pattern attribDefPat = Pattern.compile("^([^.]+?)\\.default$");
-        //evaluate selectors
-        for (final Object o : mapping.keySet()) {
-            final String key = (String) o;
-            final String value = mapping.getProperty(key);
-            final Matcher m = attribDefPat.matcher(key);
-            if (m.matches() && (!mapping.containsKey(key + ".selector") || "".equals(mapping.getProperty(
-                key + ".selector")))) {
-                final String attrName = m.group(1);
-                if (null == node.getAttributes()) {
-                    node.setAttributes(new HashMap<>());
-                }
-                if (null != value) {
-                    node.getAttributes().put(attrName, value);
-                }
-            }
-        }
-
-        final Pattern attribPat = Pattern.compile("^([^.]+?)\\.selector$");
-        //evaluate selectors
-        for (final Object o : mapping.keySet()) {
-            final String key = (String) o;
-            final String selector = mapping.getProperty(key);
-            final Matcher m = attribPat.matcher(key);
-            if (m.matches()) {
-                final String attrName = m.group(1);
-                if(attrName.equals("tags")){
-                    //already handled
-                    continue;
-                }
-                if (null == node.getAttributes()) {
-                    node.setAttributes(new HashMap<>());
-                }
-                final String value = applySelector(inst, selector, mapping.getProperty(attrName + ".default"));
-                if (null != value) {
-                    //use nodename-settingname to make the setting unique to the node
-                    node.getAttributes().put(attrName, value);
-                }
-            }
-        }
-//        String hostSel = mapping.getProperty("hostname.selector");
-//        String host = applySelector(inst, hostSel, mapping.getProperty("hostname.default"));
-//        if (null == node.getHostname()) {
-//            System.err.println("Unable to determine hostname for instance: " + inst.getInstanceId());
-//            return null;
-//        }
-        String name = node.getNodename();
-        if (null == name || name.isEmpty()) {
-            name = node.getHostname();
-        }
-        if (null == name || name.isEmpty()) {
-            name = inst.instanceId();
-        }
-        node.setNodename(name);
-
-        // Set ssh port on hostname if not 22
-        String sshport = node.getAttributes().get("sshport");
-        if (sshport != null && !sshport.isEmpty() && !sshport.equals("22")) {
-            node.setHostname(node.getHostname() + ":" + sshport);
-        }
-
-
+        return instanceToNode(inst, MappingPlan.compile(mapping));
+    }
 
-        return node;
+    /**
+     * Convert an AWS EC2 Instance to a RunDeck INodeEntry based on the compiled mapping
+     */
+    static INodeEntry instanceToNode(final Ec2Instance inst, final MappingPlan plan) throws GeneratorException {
+        return plan.map(inst);
     }
 
     /**
@@ -428,36 +800,9 @@ class InstanceToNodeMapper {
     public static String applySelector(final Ec2Instance inst, final String selector, final String defaultValue,
                                        final boolean tagMerge) throws
         GeneratorException {
-
-        if (null != selector) {
-            for (final String selPart : selector.split(",")) {
-                if (tagMerge) {
-                    final StringBuilder sb = new StringBuilder();
-                    for (final String subPart : selPart.split(Pattern.quote("|"))) {
-                        final String val = applyMultiSelector(inst, subPart.split(Pattern.quote("+")));
-                        if (null != val) {
-                            if (sb.length() > 0) {
-                                sb.append(",");
-                            }
-                            sb.append(val);
-                        }
-                    }
-                    if (sb.length() > 0) {
-                        return sb.toString();
-                    }
-                } else {
-                    final String val = applyMultiSelector(inst, selPart.split(Pattern.quote("+")));
-                    if (null != val) {
-                        return val;
-                    }
-                }
-            }
-        }
-        return defaultValue;
+        return MappingPlan.Selector.compile(selector, tagMerge).apply(inst, defaultValue);
     }
 
-    private static final Pattern quoted = Pattern.compile("^(['\"])(.+)\\1$");
-
     /**
      * Return conjoined multiple selector and literal values only if some selector value matches, otherwise null.
      * Apply multiple selectors and separators to determine the value, the selector values are conjoined
@@ -474,124 +819,22 @@ class InstanceToNodeMapper {
     static String applyMultiSelector(final Ec2Instance inst, final String... selectors) throws
             GeneratorException
     {
-        StringBuilder sb = new StringBuilder();
-        boolean hasVal = false;
-        for (String selector : selectors) {
-            Matcher matcher = quoted.matcher(selector);
-            if (matcher.matches()) {
-                sb.append(matcher.group(2));
-            } else {
-                String val = applySingleSelector(inst, selector);
-                if (null != val && !val.isEmpty()) {
-                    hasVal = true;
-                    sb.append(val);
-                }
-            }
-        }
-
-        return hasVal ? sb.toString() : null;
+        return MappingPlan.conjoin(inst, MappingPlan.compileTerms(null, selectors));
     }
+
     static String applySingleSelector(final Ec2Instance inst, final String selector) throws
         GeneratorException {
-        if (null != selector && selector.startsWith("tags/")) {
-            final String tag = selector.substring("tags/".length());
-            final List<Tag> tags = inst.instance().tags();
-            for (final Tag tag1 : tags) {
-                if (tag.equals(tag1.key())) {
-                    return tag1.value();
-                }
-            }
-        } else if (null != selector && !selector.isEmpty()) {
-            return resolveProperty(inst, selector);
-        }
-
-        return null;
+        return MappingPlan.Term.compile(selector).value(inst);
     }
 
     /**
      * Resolve a dot-separated property selector against the instance, preserving the historical
-     * BeanUtils behavior used with the AWS SDK v1 model. Each path segment is resolved by invoking
-     * the matching AWS SDK v2 fluent accessor; the String accessor variant (e.g. {@code
-     * architectureAsString()}) is preferred so enum-valued fields keep returning their raw wire
-     * value. The extra mapping attributes (imageName, region) are read from the {@link Ec2Instance}
-     * wrapper itself. An unknown property results in a {@link GeneratorException}, matching the
-     * previous behavior.
-     */
-    private static String resolveProperty(final Ec2Instance inst, final String selector) throws GeneratorException {
-        Object current = inst;
-        for (final String segment : selector.split("\\.")) {
-            if (null == current) {
-                return null;
-            }
-            current = invokeSegment(current, segment);
-        }
-        return stringify(current);
-    }
-
-    private static Object invokeSegment(Object target, final String name) throws GeneratorException {
-        if (target instanceof Ec2Instance) {
-            final Ec2Instance ec2 = (Ec2Instance) target;
-            if ("imageName".equals(name)) {
-                return ec2.imageName();
-            }
-            if ("region".equals(name)) {
-                return ec2.region();
-            }
-            target = ec2.instance();
-            if (null == target) {
-                return null;
-            }
-        }
-        final Method accessor = findAccessor(target.getClass(), name);
-        if (null == accessor) {
-            throw new GeneratorException(
-                    new NoSuchMethodException("No EC2 property '" + name + "' on " + target.getClass().getName()));
-        }
-        try {
-            return accessor.invoke(target);
-        } catch (Exception e) {
-            throw new GeneratorException(e);
-        }
-    }
-
-    /**
-     * Find a no-arg accessor on the AWS SDK model class for the given property name. Prefer the
-     * {@code <name>AsString} variant generated for enum fields so the raw string value is returned.
+     * BeanUtils behavior used with the AWS SDK v1 model. The accessor chain for each distinct
+     * selector is resolved once and cached, see {@link PropertyAccessor}. An unknown property results
+     * in a {@link GeneratorException}, matching the previous behavior.
      */
-    private static Method findAccessor(final Class<?> type, final String name) {
-        Method method = lookupAccessor(type, name + "AsString");
-        if (null == method) {
-            method = lookupAccessor(type, name);
-        }
-        return method;
-    }
-
-    private static Method lookupAccessor(final Class<?> type, final String name) {
-        try {
-            final Method method = type.getMethod(name);
-            // Accept any no-arg, value-returning accessor so selectors can traverse the object
-            // graph (including JDK value types such as java.time.Instant), but reject methods
-            // declared on Object (toString/hashCode/getClass/wait/notify) so unknown selectors
-            // still fail as they did with the legacy BeanUtils resolution.
-            if (method.getParameterCount() == 0
-                    && method.getReturnType() != void.class
-                    && !Object.class.equals(method.getDeclaringClass())) {
-                return method;
-            }
-        } catch (NoSuchMethodException ignored) {
-            // not a property accessor
-        }
-        return null;
-    }
-
-    private static String stringify(final Object value) {
-        if (null == value) {
-            return null;
-        }
-        if (value instanceof String) {
-            return (String) value;
-        }
-        return value.toString();
+    static String resolveProperty(final Ec2Instance inst, final String selector) throws GeneratorException {
+        return PropertyAccessor.forPath(selector).resolve(inst);
     }
 
     /**
@@ -640,12 +883,185 @@ class InstanceToNodeMapper {
         this.region = region;
     }
 
+    /**
+     * Return the region
+     */
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * Use the non-blocking query engine instead of the blocking EC2 clients, or null to use the
+     * blocking clients
+     */
+    void setAsyncQueryEngine(final AsyncQueryEngine asyncQueryEngine) {
+        this.asyncQueryEngine = asyncQueryEngine;
+    }
+
+    /**
+     * Query the instances through the shared inventory, or pass null to query them directly. The
+     * shared inventory is not used by the async query engine. The mapper is registered with the
+     * inventory until {@link #shutdown()}.
+     *
+     * @param sharedInventory shared inventory
+     * @param account         identifies the account of the credentials
+     * @param maxAgeMillis    maximum age of a query made for another source to use
+     */
+    synchronized void setSharedInventory(
+            final SharedInventory sharedInventory,
+            final String account,
+            final long maxAgeMillis
+    )
+    {
+        if (null != sharedSource) {
+            sharedSource.release();
+        }
+        this.sharedSource = null == sharedInventory
+                            ? null
+                            : sharedInventory.register(account, maxAgeMillis, mappingPlan.projection());
+        this.sharedInventory = sharedInventory;
+        registerCaches();
+    }
+
+    /**
+     * Record the region queries and cache lookups in the metrics
+     */
+    void setMetrics(final SourceMetrics metrics) {
+        this.metrics = metrics;
+        registerCaches();
+    }
+
+    SourceMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void registerCaches() {
+        final SourceMetrics metrics = this.metrics;
+        metrics.cache("imageNames", imageNames::getHits, imageNames::getMisses);
+        metrics.cache("availabilityZones", zoneRegions::getHits, zoneRegions::getMisses);
+        metrics.cache("regionList", regionList::getHits, regionList::getMisses);
+        metrics.cache("mappedNodes", nodesReused::sum, nodesRemapped::sum);
+        final SharedInventory inventory = sharedInventory;
+        if (null != inventory) {
+            // the counters of the inventory include the lookups of the other sources sharing it
+            metrics.cache(
+                    "sharedInventory",
+                    () -> inventory.getHits() + inventory.getFilteredHits(),
+                    inventory::getQueries
+            );
+        }
+    }
+
+    /**
+     * @return the DescribeInstances page size
+     */
+    AdaptivePageSize getPageSize() {
+        return pageSize;
+    }
+
+    long getRegionTimeoutMillis() {
+        return regionTimeoutMillis;
+    }
+
+    /**
+     * Set the maximum number of regions queried at the same time when querying in parallel
+     */
+    public synchronized void setRegionConcurrency(final int regionConcurrency) {
+        this.regionConcurrency = Math.max(1, regionConcurrency);
+        if (null != regionExecutor) {
+            if (this.regionConcurrency > regionExecutor.getMaximumPoolSize()) {
+                regionExecutor.setMaximumPoolSize(this.regionConcurrency);
+                regionExecutor.setCorePoolSize(this.regionConcurrency);
+            } else {
+                regionExecutor.setCorePoolSize(this.regionConcurrency);
+                regionExecutor.setMaximumPoolSize(this.regionConcurrency);
+            }
+        }
+    }
+
+    /**
+     * Set the time limit for querying a single region when querying in parallel
+     */
+    public void setRegionTimeoutMillis(final long regionTimeoutMillis) {
+        this.regionTimeoutMillis = Math.max(1000L, regionTimeoutMillis);
+    }
+
+    /**
+     * Set how long the nodes of a region are kept from its last successful query while the region
+     * fails
+     */
+    public void setStaleRegionMaxAgeMillis(final long staleRegionMaxAgeMillis) {
+        this.staleRegionMaxAgeMillis = Math.max(0, staleRegionMaxAgeMillis);
+    }
+
     public Properties getMapping() {
-        return mapping;
+        return mappingPlan.getMapping();
     }
 
     public void setMapping(Properties mapping) {
-        this.mapping = mapping;
+        this.mappingPlan = MappingPlan.compile(mapping);
+    }
+
+    /**
+     * Return the key of the configured region for per-endpoint caches
+     */
+    static String regionKey(final String region) {
+        return "region:" + region;
+    }
+
+    /**
+     * Set which regions are queried for ALL_REGIONS
+     *
+     * @param allRegions if true, include regions the account has not opted in to
+     * @param allowList  comma-separated region names to include, "*" matches any characters
+     * @param denyList   comma-separated region names to exclude, "*" matches any characters
+     */
+    public void setRegionSelection(final boolean allRegions, final String allowList, final String denyList) {
+        regionList.setSelection(allRegions, allowList, denyList);
+    }
+
+    /**
+     * Set how long the region list for ALL_REGIONS is cached before it is described again
+     */
+    public void setRegionListTtlMillis(final long ttlMillis) {
+        regionList.setTtlMillis(ttlMillis);
+    }
+
+    RegionListCache getRegionList() {
+        return regionList;
+    }
+
+    /**
+     * Set how long the availability zones of an endpoint are cached before they are described again
+     */
+    public void setZoneRegionTtlMillis(final long ttlMillis) {
+        zoneRegions.setTtlMillis(ttlMillis);
+    }
+
+    ZoneRegionCache getZoneRegions() {
+        return zoneRegions;
+    }
+
+    /**
+     * Set how long image names are cached before they are looked up again
+     */
+    public void setImageNameTtlMillis(final long ttlMillis) {
+        imageNames.setTtlMillis(ttlMillis);
+    }
+
+    ImageNameCache getImageNames() {
+        return imageNames;
+    }
+
+    MappingPlan getMappingPlan() {
+        return mappingPlan;
+    }
+
+    /**
+     * @return the nodes of the last successful query, or null
+     */
+    NodeGeneration getLastGeneration() {
+        return lastGeneration;
     }
 
     public static class GeneratorException extends Exception {
@@ -666,10 +1082,24 @@ class InstanceToNodeMapper {
     }
 
     public Set<Ec2Instance> addExtraMappingAttribute(Ec2Client ec2, Set<Ec2Instance> instances, DescribeAvailabilityZonesResponse zones) {
+        return addExtraMappingAttribute(null, ec2, instances, ZoneRegionCache.regionsByZone(zones));
+    }
+
+    /**
+     * Add the extra mapping attributes to the instances of a region, using the given regions by
+     * availability zone
+     */
+    Set<Ec2Instance> addExtraMappingAttribute(
+            String key,
+            Ec2Client ec2,
+            Set<Ec2Instance> instances,
+            Map<String, String> zones
+    )
+    {
         for(String extraAttribute: extraInstanceMappingAttributes){
             if(mappingHasExtraAttribute(extraAttribute)){
                 if(extraAttribute.equals("imageName")){
-                    instances = addingImageName(ec2, instances);
+                    instances = addingImageName(key, ec2, instances);
                 }
                 if(extraAttribute.equals("region")){
                     instances = addingRegion(instances, zones);
@@ -680,58 +1110,96 @@ class InstanceToNodeMapper {
     }
 
     public boolean mappingHasExtraAttribute(String extraAttribute){
-        if(mapping.containsValue(extraAttribute)){
-            return true;
-        }else{
-            for (String key : mapping.stringPropertyNames()) {
-                if(mapping.getProperty(key).contains(extraAttribute)){
-                    return true;
+        return mappingPlan.needsExtraAttribute(extraAttribute);
+    }
+
+    /**
+     * Set the image name of the instances. Only the images which are not cached are described, in
+     * chunks which are looked up in parallel. If a lookup fails the last known names are kept.
+     */
+    public Set<Ec2Instance> addingImageName(Ec2Client ec2, Set<Ec2Instance> originalInstances) {
+        return addingImageName(null, ec2, originalInstances);
+    }
+
+    private Set<Ec2Instance> addingImageName(String key, Ec2Client ec2, Set<Ec2Instance> originalInstances) {
+        final RefreshEvents.Enrichment event = new RefreshEvents.Enrichment();
+        event.begin();
+        final Set<String> imageIds = imageNames.missing(originalInstances);
+        if (!imageIds.isEmpty()) {
+            final List<List<String>> chunks = ImageNameCache.chunks(imageIds);
+            if (chunks.size() == 1) {
+                describeImages(ec2, chunks.get(0));
+            } else {
+                final List<CompletableFuture<Void>> lookups = new ArrayList<>(chunks.size());
+                for (final List<String> chunk : chunks) {
+                    lookups.add(CompletableFuture.runAsync(() -> describeImages(ec2, chunk), getImageLookupExecutor()));
                 }
+                CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0])).join();
             }
         }
-        return false;
+
+        final Set<Ec2Instance> instances = imageNames.apply(originalInstances);
+        commitImages(event, key, instances.size(), imageIds.size());
+        return instances;
     }
 
-    public Set<Ec2Instance> addingImageName(Ec2Client ec2, Set<Ec2Instance> originalInstances) {
-        Map<String,Image> ec2Images = new HashMap<>();
-        Set<String> imagesList = originalInstances.stream()
-                .map(i -> i.instance().imageId())
-                .collect(Collectors.toSet());
-        logger.debug("Image list: {}", imagesList);
-        try{
-            DescribeImagesRequest describeImagesRequest = DescribeImagesRequest.builder()
-                    .imageIds(imagesList)
-                    .build();
+    /**
+     * Record an image name enrichment event, if enabled
+     *
+     * @param lookups number of image IDs described
+     */
+    static void commitImages(
+            final RefreshEvents.Enrichment event,
+            final String key,
+            final int instances,
+            final int lookups
+    )
+    {
+        if (event.shouldCommit()) {
+            event.region = key;
+            event.attribute = RefreshEvents.Enrichment.IMAGES;
+            event.instances = instances;
+            event.lookups = lookups;
+            event.commit();
+        }
+    }
 
-            DescribeImagesResponse result = ec2.describeImages(describeImagesRequest);
+    private void describeImages(final Ec2Client ec2, final List<String> imageIds) {
+        try{
+            DescribeImagesResponse result = ec2.describeImages(describeImagesRequest(imageIds));
 
-            for(Image image :result.images()){
-                ec2Images.put(image.imageId(),image);
-            }
+            imageNames.found(imageIds, result.images());
         }catch(Exception e){
             logger.error("error getting image info: {}", e.getMessage(), e);
         }
+    }
 
-        for (final Ec2Instance inst : originalInstances) {
-            String imageId = inst.instance().imageId();
-            if(ec2Images.containsKey(imageId)){
-                Image image = ec2Images.get(imageId);
-                inst.setImageName(image.name());
-            }else{
-                inst.setImageName("Not found");
-                logger.debug("Image not found {}", imageId);
-            }
-        }
-
-        return originalInstances;
+    /**
+     * Return the DescribeImages request for the image IDs
+     */
+    static DescribeImagesRequest describeImagesRequest(Collection<String> imagesList) {
+        logger.debug("Image list: {}", imagesList);
+        return DescribeImagesRequest.builder()
+                .imageIds(imagesList)
+                .build();
     }
 
     public Set<Ec2Instance> addingRegion(Set<Ec2Instance> originalInstances, DescribeAvailabilityZonesResponse zones){
+        return addingRegion(originalInstances, ZoneRegionCache.regionsByZone(zones));
+    }
+
+    /**
+     * Set the region of each instance from the region of its availability zone
+     */
+    Set<Ec2Instance> addingRegion(Set<Ec2Instance> originalInstances, Map<String, String> zones){
+        if (null == zones) {
+            return originalInstances;
+        }
         for (final Ec2Instance inst : originalInstances) {
-            if (null == inst.instance().placement()) {
+            if (null == inst.availabilityZone()) {
                 continue;
             }
-            String region = getRegionAvailableZone(inst.instance().placement().availabilityZone(), zones);
+            String region = zones.get(inst.availabilityZone());
             if(region!=null){
                 inst.setRegion(region);
             }
@@ -740,22 +1208,4 @@ class InstanceToNodeMapper {
         return originalInstances;
     }
 
-    private String getRegionAvailableZone(String availableZone, DescribeAvailabilityZonesResponse zones){
-
-        String region = null;
-
-        if (null == zones || null == availableZone) {
-            return null;
-        }
-
-        for(AvailabilityZone zone : zones.availabilityZones()) {
-            if (zone.zoneName().equals(availableZone)){
-                region = zone.regionName();
-            }
-        }
-
-
-        return region;
-    }
-
 }
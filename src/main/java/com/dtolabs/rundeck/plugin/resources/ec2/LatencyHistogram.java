@@ -0,0 +1,104 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in milliseconds, with buckets bounded by powers of two from 1ms
+ * to about 17 minutes and one bucket for longer durations. Recording is a few atomic increments, so
+ * it can be left on for every call. Percentiles are the upper bound of the bucket containing the
+ * percentile, capped at the maximum recorded.
+ */
+final class LatencyHistogram {
+    static final int BUCKETS = 22;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a duration
+     */
+    void record(final long millis) {
+        final long value = Math.max(0, millis);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Return the index of the bucket of a duration: the smallest i with millis &lt;= 2^i
+     */
+    static int bucket(final long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis - 1));
+    }
+
+    /**
+     * Return the upper bound of a bucket in milliseconds, {@link Long#MAX_VALUE} for the last bucket
+     */
+    static long upperBound(final int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMaxMillis() {
+        return max.get();
+    }
+
+    double getMeanMillis() {
+        final long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Return the approximate duration below which the fraction of the recorded durations falls
+     *
+     * @param fraction between 0 and 1
+     * @return the duration, or 0 if nothing was recorded
+     */
+    long percentile(final double fraction) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Return the count of each non-empty bucket by its upper bound in milliseconds
+     */
+    Map<Long, Long> buckets() {
+        final Map<Long, Long> buckets = new LinkedHashMap<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            final long n = counts.get(i);
+            if (n > 0) {
+                buckets.put(upperBound(i), n);
+            }
+        }
+        return buckets;
+    }
+}
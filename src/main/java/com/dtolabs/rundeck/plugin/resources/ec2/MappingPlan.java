@@ -0,0 +1,604 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled form of a node mapping definition. The mapping {@link Properties} are parsed once
+ * when the source is configured: the attribute, default and tag keys are classified and every
+ * selector is split into its "," alternatives, "|" merged parts and "+" conjoined terms, so that
+ * mapping an instance only evaluates the prepared selectors.
+ * <p>
+ * The produced nodes are identical to evaluating the raw mapping with {@link
+ * InstanceToNodeMapper#applySelector(Ec2Instance, String, String, boolean)}; the evaluation order of
+ * the mapping keys is preserved. Property selectors that do not exist on the EC2 instance model are
+ * reported once when the plan is compiled and then resolve to no value.
+ * </p>
+ * <p>
+ * The plan also records the distinct tags and properties its selectors read, so that a {@link
+ * Fingerprint} of an instance can tell whether it would map to the same node as before.
+ * </p>
+ */
+final class MappingPlan {
+    static final Logger logger = LoggerFactory.getLogger(MappingPlan.class);
+    private static final Pattern TAG_SELECTOR = Pattern.compile("^tag\\.(.+?)\\.selector$");
+    private static final Pattern ATTRIBUTE_DEFAULT = Pattern.compile("^([^.]+?)\\.default$");
+    private static final Pattern ATTRIBUTE_SELECTOR = Pattern.compile("^([^.]+?)\\.selector$");
+    private static final Pattern QUOTED = Pattern.compile("^(['\"])(.+)\\1$");
+
+    private static final String IMAGE_NAME = "imageName";
+    private static final String REGION = "region";
+
+    private final Properties mapping;
+    private final boolean tagAttributes;
+    private final Selector tagsSelector;
+    private final String tagsDefault;
+    private final List<TagRule> tagRules;
+    private final List<AttributeDefault> attributeDefaults;
+    private final List<AttributeRule> attributeRules;
+    private final boolean needsImageName;
+    private final boolean needsRegion;
+    private final Set<String> invalidSelectors;
+    private final String[] inputTags;
+    private final PropertyAccessor[] inputProperties;
+    private final InstanceProjection projection;
+
+    private MappingPlan(
+            final Properties mapping,
+            final boolean tagAttributes,
+            final Selector tagsSelector,
+            final String tagsDefault,
+            final List<TagRule> tagRules,
+            final List<AttributeDefault> attributeDefaults,
+            final List<AttributeRule> attributeRules,
+            final Set<String> invalidSelectors
+    )
+    {
+        this.mapping = mapping;
+        this.tagAttributes = tagAttributes;
+        this.tagsSelector = tagsSelector;
+        this.tagsDefault = tagsDefault;
+        this.tagRules = Collections.unmodifiableList(tagRules);
+        this.attributeDefaults = Collections.unmodifiableList(attributeDefaults);
+        this.attributeRules = Collections.unmodifiableList(attributeRules);
+        this.needsImageName = referencesValue(mapping, IMAGE_NAME);
+        this.needsRegion = referencesValue(mapping, REGION);
+        this.invalidSelectors = Collections.unmodifiableSet(invalidSelectors);
+
+        final Set<String> tags = new LinkedHashSet<>();
+        final Set<PropertyAccessor> properties = new LinkedHashSet<>();
+        collectInputs(tagsSelector, tags, properties);
+        for (final TagRule rule : tagRules) {
+            collectInputs(rule.selector, tags, properties);
+        }
+        for (final AttributeRule rule : attributeRules) {
+            collectInputs(rule.selector, tags, properties);
+        }
+        this.inputTags = tags.toArray(new String[0]);
+        this.inputProperties = properties.toArray(new PropertyAccessor[0]);
+        this.projection = new InstanceProjection(properties, tags, tagAttributes);
+    }
+
+    private static void collectInputs(
+            final Selector selector,
+            final Set<String> tags,
+            final Set<PropertyAccessor> properties
+    )
+    {
+        if (null == selector) {
+            return;
+        }
+        for (final Term[][] alternative : selector.alternatives) {
+            for (final Term[] part : alternative) {
+                for (final Term term : part) {
+                    if (null != term.tagKey) {
+                        tags.add(term.tagKey);
+                    } else if (null != term.accessor) {
+                        properties.add(term.accessor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile the mapping definition. The properties are copied, so later changes to the input do
+     * not affect the plan.
+     *
+     * @param source mapping definition
+     *
+     * @return compiled plan
+     */
+    static MappingPlan compile(final Properties source) {
+        final Properties mapping = new Properties();
+        mapping.putAll(source);
+
+        final Set<String> invalidSelectors = new LinkedHashSet<>();
+        final boolean tagAttributes = "tags/*".equals(mapping.getProperty("attributes.selector"));
+        final String tagsSelectorValue = mapping.getProperty("tags.selector");
+        final Selector tagsSelector = null != tagsSelectorValue
+                                      ? Selector.compile(tagsSelectorValue, true, invalidSelectors)
+                                      : null;
+
+        final List<TagRule> tagRules = new ArrayList<>();
+        final List<AttributeDefault> attributeDefaults = new ArrayList<>();
+        final List<AttributeRule> attributeRules = new ArrayList<>();
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o;
+            final Matcher m = TAG_SELECTOR.matcher(key);
+            if (m.matches()) {
+                //split selector by = if present
+                final String[] selparts = mapping.getProperty(key).split("=");
+                tagRules.add(new TagRule(
+                        m.group(1),
+                        Selector.compile(selparts[0], false, invalidSelectors),
+                        selparts.length > 1 ? selparts[1] : null
+                ));
+            }
+        }
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o;
+            final Matcher m = ATTRIBUTE_DEFAULT.matcher(key);
+            if (m.matches() && (!mapping.containsKey(key + ".selector") || "".equals(mapping.getProperty(
+                    key + ".selector")))) {
+                attributeDefaults.add(new AttributeDefault(m.group(1), mapping.getProperty(key)));
+            }
+        }
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o;
+            final Matcher m = ATTRIBUTE_SELECTOR.matcher(key);
+            if (m.matches()) {
+                final String attrName = m.group(1);
+                if (attrName.equals("tags")) {
+                    //handled by the tags selector
+                    continue;
+                }
+                attributeRules.add(new AttributeRule(
+                        attrName,
+                        Selector.compile(mapping.getProperty(key), false, invalidSelectors),
+                        mapping.getProperty(attrName + ".default")
+                ));
+            }
+        }
+        for (final String invalid : invalidSelectors) {
+            logger.warn("Ignoring mapping selector {}: {}", invalid, PropertyAccessor.forPath(invalid).getError());
+        }
+        return new MappingPlan(
+                mapping,
+                tagAttributes,
+                tagsSelector,
+                mapping.getProperty("tags.default"),
+                tagRules,
+                attributeDefaults,
+                attributeRules,
+                invalidSelectors
+        );
+    }
+
+    /**
+     * Return true if any mapping value contains the given extra attribute name
+     */
+    static boolean referencesValue(final Properties mapping, final String extraAttribute) {
+        if (mapping.containsValue(extraAttribute)) {
+            return true;
+        }
+        for (final String key : mapping.stringPropertyNames()) {
+            if (mapping.getProperty(key).contains(extraAttribute)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of the mapping definition this plan was compiled from
+     */
+    Properties getMapping() {
+        final Properties copy = new Properties();
+        copy.putAll(mapping);
+        return copy;
+    }
+
+    /**
+     * @return property selectors which could not be resolved against the EC2 instance model
+     */
+    Set<String> getInvalidSelectors() {
+        return invalidSelectors;
+    }
+
+    /**
+     * @return true if the mapping refers to the imageName extra attribute
+     */
+    boolean needsImageName() {
+        return needsImageName;
+    }
+
+    /**
+     * @return true if the mapping refers to the region extra attribute
+     */
+    boolean needsRegion() {
+        return needsRegion;
+    }
+
+    /**
+     * Return true if the mapping refers to the named extra attribute (imageName or region)
+     */
+    boolean needsExtraAttribute(final String extraAttribute) {
+        if (IMAGE_NAME.equals(extraAttribute)) {
+            return needsImageName;
+        }
+        if (REGION.equals(extraAttribute)) {
+            return needsRegion;
+        }
+        return referencesValue(mapping, extraAttribute);
+    }
+
+    /**
+     * @return the projection of the instance values read by this plan
+     */
+    InstanceProjection projection() {
+        return projection;
+    }
+
+    /**
+     * Return the values of the instance read by this plan. Two instances with equal fingerprints
+     * map to equal nodes.
+     */
+    Fingerprint fingerprint(final Ec2Instance inst) throws InstanceToNodeMapper.GeneratorException {
+        final String[] values = new String[inputTags.length + inputProperties.length];
+        int i = 0;
+        for (final String tag : inputTags) {
+            values[i++] = inst.tag(tag);
+        }
+        for (final PropertyAccessor property : inputProperties) {
+            values[i++] = property.resolve(inst);
+        }
+        return new Fingerprint(values, tagAttributes ? inst.tags() : null);
+    }
+
+    /**
+     * Convert an EC2 instance to a Rundeck node
+     */
+    @SuppressWarnings("unchecked")
+    INodeEntry map(final Ec2Instance inst) throws InstanceToNodeMapper.GeneratorException {
+        final NodeEntryImpl node = new NodeEntryImpl();
+
+        //evaluate single attributes.selector=tags/* mapping
+        if (tagAttributes) {
+            //copy the instance tags into the node attributes
+            final Map<String, String> tags = inst.tags();
+            if (!tags.isEmpty()) {
+                if (null == node.getAttributes()) {
+                    node.setAttributes(new HashMap<>());
+                }
+                node.getAttributes().putAll(tags);
+            }
+        }
+        if (null != tagsSelector) {
+            final String value = tagsSelector.apply(inst, tagsDefault);
+            if (null != value) {
+                final String[] values = value.split(",");
+                final HashSet<String> tagset = new HashSet<>();
+                for (final String s : values) {
+                    tagset.add(s.trim());
+                }
+                if (null == node.getTags()) {
+                    node.setTags(tagset);
+                } else {
+                    final Set<String> orig = new HashSet<String>(node.getTags());
+                    orig.addAll(tagset);
+                    node.setTags(orig);
+                }
+            }
+        }
+        if (null == node.getTags()) {
+            node.setTags(new HashSet<String>());
+        }
+        final Set<String> orig = new HashSet<String>(node.getTags());
+        //evaluate tag selectors
+        for (final TagRule rule : tagRules) {
+            if (null == node.getAttributes()) {
+                node.setAttributes(new HashMap<>());
+            }
+            final String value = rule.selector.apply(inst, null);
+            if (null != value) {
+                if (null != rule.expected && !value.equals(rule.expected)) {
+                    continue;
+                }
+                //use add the tag if the value is not null
+                orig.add(rule.tagName);
+            }
+        }
+        node.setTags(orig);
+
+        //apply default values which do not have corresponding selector
+        for (final AttributeDefault attributeDefault : attributeDefaults) {
+            if (null == node.getAttributes()) {
+                node.setAttributes(new HashMap<>());
+            }
+            if (null != attributeDefault.value) {
+                node.getAttributes().put(attributeDefault.name, attributeDefault.value);
+            }
+        }
+
+        //evaluate selectors
+        for (final AttributeRule rule : attributeRules) {
+            if (null == node.getAttributes()) {
+                node.setAttributes(new HashMap<>());
+            }
+            final String value = rule.selector.apply(inst, rule.defaultValue);
+            if (null != value) {
+                node.getAttributes().put(rule.name, value);
+            }
+        }
+
+        String name = node.getNodename();
+        if (null == name || name.isEmpty()) {
+            name = node.getHostname();
+        }
+        if (null == name || name.isEmpty()) {
+            name = inst.instanceId();
+        }
+        node.setNodename(name);
+
+        // Set ssh port on hostname if not 22
+        String sshport = node.getAttributes().get("sshport");
+        if (sshport != null && !sshport.isEmpty() && !sshport.equals("22")) {
+            node.setHostname(node.getHostname() + ":" + sshport);
+        }
+
+        return node;
+    }
+
+    /**
+     * The tag and property values of an instance which are read by a plan
+     */
+    static final class Fingerprint {
+        private final String[] values;
+        private final Map<String, String> tags;
+        private final int hash;
+
+        private Fingerprint(final String[] values, final Map<String, String> tags) {
+            this.values = values;
+            this.tags = tags;
+            this.hash = 31 * Arrays.hashCode(values) + Objects.hashCode(tags);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            final Fingerprint that = (Fingerprint) o;
+            return hash == that.hash && Arrays.equals(values, that.values) && Objects.equals(tags, that.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class TagRule {
+        final String tagName;
+        final Selector selector;
+        final String expected;
+
+        TagRule(final String tagName, final Selector selector, final String expected) {
+            this.tagName = tagName;
+            this.selector = selector;
+            this.expected = expected;
+        }
+    }
+
+    private static final class AttributeDefault {
+        final String name;
+        final String value;
+
+        AttributeDefault(final String name, final String value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private static final class AttributeRule {
+        final String name;
+        final Selector selector;
+        final String defaultValue;
+
+        AttributeRule(final String name, final Selector selector, final String defaultValue) {
+            this.name = name;
+            this.selector = selector;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    /**
+     * A compiled selector expression: "," separated alternatives, each made of "|" separated parts
+     * (only when tag merging is enabled), each made of "+" conjoined terms.
+     */
+    static final class Selector {
+        private final Term[][][] alternatives;
+        private final boolean tagMerge;
+
+        private Selector(final Term[][][] alternatives, final boolean tagMerge) {
+            this.alternatives = alternatives;
+            this.tagMerge = tagMerge;
+        }
+
+        /**
+         * Compile a selector expression, unknown properties fail when the selector is applied
+         *
+         * @param selector the selector string, may be null
+         * @param tagMerge if true, allow | separator to merge multiple values
+         */
+        static Selector compile(final String selector, final boolean tagMerge) {
+            return compile(selector, tagMerge, null);
+        }
+
+        /**
+         * Compile a selector expression
+         *
+         * @param selector         the selector string, may be null
+         * @param tagMerge         if true, allow | separator to merge multiple values
+         * @param invalidSelectors if not null, unknown property selectors are added to this set and
+         *                         resolve to no value instead of failing
+         */
+        static Selector compile(final String selector, final boolean tagMerge, final Set<String> invalidSelectors) {
+            if (null == selector) {
+                return new Selector(new Term[0][][], tagMerge);
+            }
+            final String[] selParts = selector.split(",");
+            final Term[][][] alternatives = new Term[selParts.length][][];
+            for (int i = 0; i < selParts.length; i++) {
+                final String[] subParts = tagMerge
+                                          ? selParts[i].split(Pattern.quote("|"))
+                                          : new String[]{selParts[i]};
+                alternatives[i] = new Term[subParts.length][];
+                for (int j = 0; j < subParts.length; j++) {
+                    alternatives[i][j] = compileTerms(invalidSelectors, subParts[j].split(Pattern.quote("+")));
+                }
+            }
+            return new Selector(alternatives, tagMerge);
+        }
+
+        /**
+         * Return the result of the selector applied to the instance, otherwise return the defaultValue.
+         */
+        String apply(final Ec2Instance inst, final String defaultValue) throws
+                InstanceToNodeMapper.GeneratorException
+        {
+            for (final Term[][] alternative : alternatives) {
+                if (tagMerge) {
+                    final StringBuilder sb = new StringBuilder();
+                    for (final Term[] part : alternative) {
+                        final String val = conjoin(inst, part);
+                        if (null != val) {
+                            if (sb.length() > 0) {
+                                sb.append(",");
+                            }
+                            sb.append(val);
+                        }
+                    }
+                    if (sb.length() > 0) {
+                        return sb.toString();
+                    }
+                } else {
+                    final String val = conjoin(inst, alternative[0]);
+                    if (null != val) {
+                        return val;
+                    }
+                }
+            }
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Compile "+" separated selector terms, quoted terms are literals
+     *
+     * @param invalidSelectors if not null, collects unknown property selectors, see {@link
+     *                         Selector#compile(String, boolean, Set)}
+     */
+    static Term[] compileTerms(final Set<String> invalidSelectors, final String... selectors) {
+        final Term[] terms = new Term[selectors.length];
+        for (int i = 0; i < selectors.length; i++) {
+            final Matcher matcher = QUOTED.matcher(selectors[i]);
+            if (matcher.matches()) {
+                terms[i] = new Term(matcher.group(2), true, invalidSelectors);
+            } else {
+                terms[i] = new Term(selectors[i], false, invalidSelectors);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Return conjoined selector and literal values only if some selector value matches, otherwise null.
+     */
+    static String conjoin(final Ec2Instance inst, final Term[] terms) throws InstanceToNodeMapper.GeneratorException {
+        final StringBuilder sb = new StringBuilder();
+        boolean hasVal = false;
+        for (final Term term : terms) {
+            if (term.literal) {
+                sb.append(term.text);
+            } else {
+                final String val = term.value(inst);
+                if (null != val && !val.isEmpty()) {
+                    hasVal = true;
+                    sb.append(val);
+                }
+            }
+        }
+        return hasVal ? sb.toString() : null;
+    }
+
+    /**
+     * A single selector term: a quoted literal, a "tags/name" tag lookup, or a property path.
+     */
+    static final class Term {
+        private static final String TAG_PREFIX = "tags/";
+        private final String text;
+        private final boolean literal;
+        private final String tagKey;
+        private final PropertyAccessor accessor;
+
+        private Term(final String text, final boolean literal, final Set<String> invalidSelectors) {
+            this.text = text;
+            this.literal = literal;
+            this.tagKey = !literal && null != text && text.startsWith(TAG_PREFIX)
+                          ? text.substring(TAG_PREFIX.length())
+                          : null;
+            PropertyAccessor accessor = null;
+            if (!literal && null == tagKey && null != text && !text.isEmpty()) {
+                accessor = PropertyAccessor.forPath(text);
+                if (!accessor.isValid() && null != invalidSelectors) {
+                    invalidSelectors.add(text);
+                    accessor = null;
+                }
+            }
+            this.accessor = accessor;
+        }
+
+        /**
+         * Compile a single selector, an unknown property fails when the term is resolved
+         */
+        static Term compile(final String selector) {
+            return new Term(selector, false, null);
+        }
+
+        /**
+         * Resolve the term against the instance
+         */
+        String value(final Ec2Instance inst) throws InstanceToNodeMapper.GeneratorException {
+            if (literal) {
+                return text;
+            }
+            if (null != tagKey) {
+                return inst.tag(tagKey);
+            } else if (null != accessor) {
+                return accessor.resolve(inst);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.ProxyConfiguration;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+
+import java.time.Duration;
+
+/**
+ * Builds the Netty HTTP client of the non-blocking query engine. The AWS SDK netty-nio-client is not
+ * bundled with the plugin, so this class is only loaded once {@link #isAvailable()} has found it on
+ * the classpath.
+ */
+final class NettyAsyncHttpClients {
+    static final String CLIENT_CLASS = "software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient";
+    static final String MISSING = "queryEngine=async requires the AWS SDK netty-nio-client jar, which is not "
+                                  + "bundled with the plugin. Add software.amazon.awssdk:netty-nio-client and its "
+                                  + "Netty dependencies to the Rundeck classpath, or use queryEngine=blocking.";
+
+    private NettyAsyncHttpClients() {
+    }
+
+    /**
+     * @return true if the Netty HTTP client is on the classpath
+     */
+    static boolean isAvailable() {
+        try {
+            Class.forName(CLIENT_CLASS, false, NettyAsyncHttpClients.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Build the async HTTP client, with a small fixed event loop and the same connection pool and
+     * HTTP proxy configuration as the blocking client of the source.
+     */
+    static SdkAsyncHttpClient build(final EC2ResourceModelSource source) {
+        NettyNioAsyncHttpClient.Builder builder = NettyNioAsyncHttpClient.builder()
+                .eventLoopGroupBuilder(SdkEventLoopGroup.builder()
+                        .numberOfThreads(EC2ResourceModelSource.ASYNC_THREADS)
+                        .threadFactory(new DaemonThreadFactory("ec2-async-io")))
+                .maxConcurrency(source.httpMaxConnections)
+                .connectionMaxIdleTime(Duration.ofSeconds(source.httpConnectionMaxIdleSecs))
+                .useIdleConnectionReaper(source.httpIdleConnectionReaper)
+                .readTimeout(Duration.ofSeconds(source.httpSocketTimeoutSecs))
+                .connectionTimeout(Duration.ofSeconds(source.httpConnectTimeoutSecs))
+                .tcpKeepAlive(source.httpTcpKeepAlive);
+        if (source.httpConnectionTtlSecs > 0) {
+            builder.connectionTimeToLive(Duration.ofSeconds(source.httpConnectionTtlSecs));
+        }
+        if (null != source.httpProxyHost && !"".equals(source.httpProxyHost)) {
+            ProxyConfiguration.Builder proxy = ProxyConfiguration.builder()
+                    .scheme("http")
+                    .host(source.httpProxyHost)
+                    .port(source.httpProxyPort);
+            if (null != source.httpProxyUser && !"".equals(source.httpProxyUser)) {
+                proxy.username(source.httpProxyUser);
+            }
+            if (null != source.httpProxyPass && !"".equals(source.httpProxyPass)) {
+                proxy.password(source.httpProxyPass);
+            }
+            builder.proxyConfiguration(proxy.build());
+        }
+        return builder.build();
+    }
+}
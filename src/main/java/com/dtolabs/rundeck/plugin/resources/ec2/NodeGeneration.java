@@ -0,0 +1,331 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The nodes mapped by one query, keyed by instance ID. When an instance has the same {@link
+ * MappingPlan.Fingerprint} as in the previous generation, the node mapped then is reused instead of
+ * mapping the instance again. Pages of several regions may be added at the same time.
+ * <p>
+ * An instance returned more than once, for example by overlapping endpoints, is only mapped into
+ * the node set the first time it is added.
+ * </p>
+ * <p>
+ * The instance IDs found in each region are recorded with the region's status. When a region fails,
+ * the nodes its failed query added are removed, and the nodes it had in the previous generation are
+ * kept instead if they are not older than the maximum age, so that the other regions can still be
+ * updated. The node set is built from the remaining nodes when the generation is sealed.
+ * </p>
+ * <p>
+ * Once a region has succeeded or failed its later pages are dropped, and once the generation is
+ * sealed for publication nothing more is added, so a page still being mapped after its region timed
+ * out cannot change the published node set.
+ * </p>
+ */
+final class NodeGeneration {
+    static final Logger logger = LoggerFactory.getLogger(NodeGeneration.class);
+    private final MappingPlan plan;
+    private final Map<String, MappedNode> previous;
+    private final Map<String, Set<String>> previousRegionInstances;
+    private final Map<String, RegionStatus> previousRegions;
+    private final Map<String, MappedNode> nodes = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> regionInstances = new ConcurrentHashMap<>();
+    private final Map<String, RegionStatus> regions = new ConcurrentHashMap<>();
+    private final Set<String> finished = new HashSet<>();
+    // the instance IDs each region added to the nodes, and the nodes without an instance ID
+    private final Map<String, Set<String>> regionAdded = new HashMap<>();
+    private final Map<String, List<INodeEntry>> unidentified = new HashMap<>();
+    private final RegionalNodeSet nodeSet = new RegionalNodeSet();
+    private boolean sealed;
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder remapped = new LongAdder();
+
+    /**
+     * @param plan     mapping plan
+     * @param previous the previous generation, or null. It is only used if it was mapped with the
+     *                 same plan.
+     */
+    NodeGeneration(final MappingPlan plan, final NodeGeneration previous) {
+        this.plan = plan;
+        final boolean samePlan = null != previous && previous.plan == plan;
+        this.previous = samePlan ? previous.nodes : Collections.<String, MappedNode>emptyMap();
+        this.previousRegionInstances = samePlan ? previous.regionInstances : Collections.<String, Set<String>>emptyMap();
+        this.previousRegions = samePlan ? previous.regions : Collections.<String, RegionStatus>emptyMap();
+    }
+
+    /**
+     * Map the instances into the node set without recording their region
+     */
+    void addAll(final Collection<Ec2Instance> instances) {
+        addAll(null, instances);
+    }
+
+    /**
+     * Map the instances of a region into the node set, reusing the previous node of each unchanged
+     * instance. The instances are dropped if the region has already succeeded or failed, or the
+     * generation is sealed.
+     *
+     * @param key       endpoint key of the region, or null
+     * @param instances instances
+     */
+    void addAll(final String key, final Collection<Ec2Instance> instances) {
+        final List<Mapped> mapped = new ArrayList<>(instances.size());
+        for (final Ec2Instance inst : instances) {
+            try {
+                mapped.add(map(inst));
+            } catch (InstanceToNodeMapper.GeneratorException e) {
+                logger.error("Generator error", e);
+            }
+        }
+        synchronized (nodeSet) {
+            if (sealed || (null != key && finished.contains(key))) {
+                logger.debug("Dropping {} instances of finished region {}", instances.size(), key);
+                return;
+            }
+            final Set<String> found = null == key ? null : instanceIds(key);
+            for (final Mapped entry : mapped) {
+                if (null != found && null != entry.instanceId) {
+                    found.add(entry.instanceId);
+                }
+                if (null == entry.node) {
+                    continue;
+                }
+                if (null == entry.instanceId) {
+                    unidentified.computeIfAbsent(key, k -> new ArrayList<>()).add(entry.node.node);
+                    remapped.increment();
+                } else if (null == nodes.putIfAbsent(entry.instanceId, entry.node)) {
+                    regionAdded.computeIfAbsent(key, k -> new HashSet<>()).add(entry.instanceId);
+                    (entry.reused ? reused : remapped).increment();
+                }
+            }
+        }
+    }
+
+    private Set<String> instanceIds(final String key) {
+        return regionInstances.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Record that all the instances of the region have been added
+     */
+    void regionSucceeded(final String key) {
+        synchronized (nodeSet) {
+            if (sealed || !finished.add(key)) {
+                return;
+            }
+            regions.put(key, RegionStatus.ok(System.currentTimeMillis(), instanceIds(key).size()));
+        }
+    }
+
+    /**
+     * Record that the query of the region failed. The instances added by the failed query are
+     * removed, unless another region found them too, and the nodes of the region in the previous
+     * generation are added if it has them and they are not older than the maximum age.
+     *
+     * @param key          endpoint key of the region
+     * @param error        the failure
+     * @param maxAgeMillis maximum age of the previous nodes
+     *
+     * @return the status of the region
+     */
+    RegionStatus regionFailed(final String key, final Throwable error, final long maxAgeMillis) {
+        final RegionStatus last = previousRegions.get(key);
+        final Set<String> lastInstances = previousRegionInstances.get(key);
+        final long now = System.currentTimeMillis();
+        final RegionStatus status;
+        synchronized (nodeSet) {
+            if (sealed || !finished.add(key)) {
+                final RegionStatus recorded = regions.get(key);
+                return null != recorded ? recorded : RegionStatus.failed(error);
+            }
+            final int partial = removePartial(key);
+            if (partial > 0) {
+                logger.debug("Removed {} nodes of the failed query of region {}", partial, key);
+            }
+            if (null != last && null != lastInstances && last.getRefreshedAt() > 0
+                && now - last.getRefreshedAt() <= maxAgeMillis) {
+                final Set<String> found = ConcurrentHashMap.newKeySet();
+                final Set<String> added = regionAdded.computeIfAbsent(key, k -> new HashSet<>());
+                for (final String instanceId : lastInstances) {
+                    final MappedNode node = previous.get(instanceId);
+                    found.add(instanceId);
+                    if (null != node && null == nodes.putIfAbsent(instanceId, node)) {
+                        reused.increment();
+                        added.add(instanceId);
+                    }
+                }
+                regionInstances.put(key, found);
+                status = RegionStatus.stale(last.getRefreshedAt(), found.size(), error);
+            } else {
+                status = RegionStatus.failed(error);
+            }
+            regions.put(key, status);
+        }
+        return status;
+    }
+
+    /**
+     * Remove the nodes added by the failed query of a region. A node which another region still
+     * running or succeeded has also found is kept for that region.
+     *
+     * @return the number of nodes removed
+     */
+    private int removePartial(final String key) {
+        final Set<String> found = regionInstances.remove(key);
+        final Set<String> added = regionAdded.remove(key);
+        final List<INodeEntry> anonymous = unidentified.remove(key);
+        int removed = null == anonymous ? 0 : anonymous.size();
+        if (null == found || null == added) {
+            return removed;
+        }
+        for (final String instanceId : added) {
+            final String other = otherRegionFinding(key, instanceId);
+            if (null != other) {
+                regionAdded.computeIfAbsent(other, k -> new HashSet<>()).add(instanceId);
+            } else if (null != nodes.remove(instanceId)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private String otherRegionFinding(final String key, final String instanceId) {
+        for (final Map.Entry<String, Set<String>> region : regionInstances.entrySet()) {
+            final RegionStatus status = regions.get(region.getKey());
+            if (!region.getKey().equals(key)
+                && (null == status || status.getState() == RegionStatus.State.OK)
+                && region.getValue().contains(instanceId)) {
+                return region.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop adding nodes and build the node set from them, before it is published. Pages and region
+     * results which arrive later are dropped.
+     */
+    void seal() {
+        synchronized (nodeSet) {
+            if (sealed) {
+                return;
+            }
+            sealed = true;
+            for (final MappedNode node : nodes.values()) {
+                nodeSet.putNode(node.node);
+            }
+            for (final List<INodeEntry> entries : unidentified.values()) {
+                for (final INodeEntry node : entries) {
+                    nodeSet.putNode(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the status of each region
+     */
+    Map<String, RegionStatus> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Map an instance, or find its previous node, without adding it
+     */
+    private Mapped map(final Ec2Instance inst) throws InstanceToNodeMapper.GeneratorException {
+        final String instanceId = inst.instanceId();
+        if (null == instanceId) {
+            final INodeEntry node = InstanceToNodeMapper.instanceToNode(inst, plan);
+            return new Mapped(null, null == node ? null : new MappedNode(null, node), false);
+        }
+        if (nodes.containsKey(instanceId)) {
+            return new Mapped(instanceId, null, false);
+        }
+        final MappingPlan.Fingerprint fingerprint = plan.fingerprint(inst);
+        final MappedNode last = previous.get(instanceId);
+        if (null != last && last.fingerprint.equals(fingerprint)) {
+            return new Mapped(instanceId, last, true);
+        }
+        final INodeEntry node = InstanceToNodeMapper.instanceToNode(inst, plan);
+        return new Mapped(instanceId, null == node ? null : new MappedNode(fingerprint, node), false);
+    }
+
+    /**
+     * Seal the generation and return its nodes
+     *
+     * @return the mapped nodes
+     */
+    RegionalNodeSet getNodeSet() {
+        seal();
+        nodeSet.setRegions(regions);
+        return nodeSet;
+    }
+
+    /**
+     * @return the number of nodes reused from the previous generation
+     */
+    long getReused() {
+        return reused.sum();
+    }
+
+    /**
+     * @return the number of instances which were new or changed and had to be mapped
+     */
+    long getRemapped() {
+        return remapped.sum();
+    }
+
+    /**
+     * @return the number of instances of the previous generation which were not found again
+     */
+    long getRemoved() {
+        long removed = 0;
+        for (final String instanceId : previous.keySet()) {
+            if (!nodes.containsKey(instanceId)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * The node of an instance of a page, not yet added
+     */
+    private static final class Mapped {
+        final String instanceId;
+        final MappedNode node;
+        final boolean reused;
+
+        Mapped(final String instanceId, final MappedNode node, final boolean reused) {
+            this.instanceId = instanceId;
+            this.node = node;
+            this.reused = reused;
+        }
+    }
+
+    /**
+     * A mapped node with the fingerprint of the instance it was mapped from
+     */
+    private static final class MappedNode {
+        final MappingPlan.Fingerprint fingerprint;
+        final INodeEntry node;
+
+        MappedNode(final MappingPlan.Fingerprint fingerprint, final INodeEntry node) {
+            this.fingerprint = fingerprint;
+            this.node = node;
+        }
+    }
+}
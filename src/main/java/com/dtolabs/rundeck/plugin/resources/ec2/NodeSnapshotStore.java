@@ -0,0 +1,270 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Stores the last node set of a source in a local file, so that it can be served immediately after
+ * a restart while the first query runs. The file is named after a hash of the source configuration,
+ * so a changed configuration does not load the nodes of the previous one.
+ * <p>
+ * The file is a versioned binary format: a header with the configuration key and the save time, a
+ * table of the distinct strings, and for each node the string indexes of its attribute names and
+ * values and of its tags. Attribute names and common values are stored once however many nodes use
+ * them. The file is written to a temporary file and moved into place, and is read through a memory
+ * mapped buffer. A file with another version or key is ignored.
+ * </p>
+ */
+final class NodeSnapshotStore {
+    static final Logger logger = LoggerFactory.getLogger(NodeSnapshotStore.class);
+    static final int MAGIC = 0x45433253;
+    static final int VERSION = 1;
+
+    private final Path file;
+    private final String key;
+    private volatile long savedAt;
+
+    /**
+     * @param directory directory containing the snapshot files
+     * @param key       configuration key, see {@link #configurationKey(Properties)}
+     */
+    NodeSnapshotStore(final File directory, final String key) {
+        this.file = directory.toPath().resolve("ec2-nodes-" + key + ".snapshot");
+        this.key = key;
+    }
+
+    /**
+     * Return a hash of the source configuration
+     */
+    static String configurationKey(final Properties configuration) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (final String name : new TreeSet<>(configuration.stringPropertyNames())) {
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '=');
+            digest.update(configuration.getProperty(name).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        final StringBuilder hex = new StringBuilder();
+        final byte[] hash = digest.digest();
+        for (int i = 0; i < 16; i++) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return hex.toString();
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the time the snapshot last saved or loaded was saved, or 0
+     */
+    long getSavedAt() {
+        return savedAt;
+    }
+
+    /**
+     * Write the nodes to the snapshot file, replacing the previous snapshot
+     */
+    void save(final INodeSet nodes) throws IOException {
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        final List<int[]> encoded = new ArrayList<>(nodes.getNodes().size());
+        for (final INodeEntry node : nodes.getNodes()) {
+            final Map<String, String> attributes = node.getAttributes();
+            final Set<?> tags = null == node.getTags() ? Set.of() : node.getTags();
+            final int attributeCount = null == attributes ? 0 : attributes.size();
+            final int[] entry = new int[2 + attributeCount * 2 + tags.size()];
+            int i = 0;
+            entry[i++] = attributeCount;
+            if (null != attributes) {
+                for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+                    entry[i++] = index(strings, attribute.getKey());
+                    entry[i++] = index(strings, attribute.getValue());
+                }
+            }
+            entry[i++] = tags.size();
+            for (final Object tag : tags) {
+                entry[i++] = index(strings, String.valueOf(tag));
+            }
+            encoded.add(entry);
+        }
+
+        Files.createDirectories(file.getParent());
+        final Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        final long now = System.currentTimeMillis();
+        try {
+            try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, key);
+                out.writeLong(now);
+                out.writeInt(strings.size());
+                for (final String string : strings.keySet()) {
+                    writeString(out, string);
+                }
+                out.writeInt(encoded.size());
+                for (final int[] entry : encoded) {
+                    for (final int value : entry) {
+                        out.writeInt(value);
+                    }
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            savedAt = now;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Read the snapshot. A snapshot which cannot be read is deleted.
+     *
+     * @return the nodes, or null if there is no snapshot for this configuration or it cannot be read
+     */
+    NodeSetImpl load() {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            final NodeSetImpl nodes = read();
+            if (null != nodes) {
+                return nodes;
+            }
+        } catch (IOException | RuntimeException e) {
+            // a truncated or corrupt file is treated as missing
+            logger.warn("Could not read node snapshot {}: {}", file, e.toString());
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete node snapshot {}: {}", file, e.toString());
+        }
+        return null;
+    }
+
+    private NodeSetImpl read() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !key.equals(readString(buffer))) {
+                logger.warn("Ignoring node snapshot {} with another format or configuration", file);
+                return null;
+            }
+            final long savedAt = buffer.getLong();
+            final String[] strings = new String[readCount(buffer, 4)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(buffer);
+            }
+            final int count = readCount(buffer, 8);
+            final NodeSetImpl nodes = new NodeSetImpl();
+            for (int n = 0; n < count; n++) {
+                final int attributeCount = readCount(buffer, 8);
+                final Map<String, String> attributes = new HashMap<>(attributeCount * 4 / 3 + 1);
+                for (int i = 0; i < attributeCount; i++) {
+                    final String name = strings[buffer.getInt()];
+                    attributes.put(name, strings[buffer.getInt()]);
+                }
+                final int tagCount = readCount(buffer, 4);
+                final Set<String> tags = new HashSet<>(tagCount * 4 / 3 + 1);
+                for (int i = 0; i < tagCount; i++) {
+                    tags.add(strings[buffer.getInt()]);
+                }
+                final NodeEntryImpl node = new NodeEntryImpl();
+                node.setAttributes(attributes);
+                node.setTags(tags);
+                nodes.putNode(node);
+            }
+            logger.info("Loaded {} nodes from snapshot saved at {}", count, new Date(savedAt));
+            this.savedAt = savedAt;
+            return nodes;
+        }
+    }
+
+    /**
+     * Read the number of items which follow, checking that the rest of the file can hold them so a
+     * corrupt count cannot allocate a huge array
+     *
+     * @param itemBytes minimum size of each item
+     */
+    private static int readCount(final MappedByteBuffer buffer, final int itemBytes) throws IOException {
+        final int count = buffer.getInt();
+        if (count < 0 || (long) count * itemBytes > buffer.remaining()) {
+            throw new IOException("Invalid count " + count + " at offset " + (buffer.position() - 4));
+        }
+        return count;
+    }
+
+    private static int index(final Map<String, Integer> strings, final String value) {
+        final Integer existing = strings.get(value);
+        if (null != existing) {
+            return existing;
+        }
+        final int index = strings.size();
+        strings.put(value, index);
+        return index;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final MappedByteBuffer buffer) throws IOException {
+        final int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid string length " + length + " at offset " + (buffer.position() - 4));
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
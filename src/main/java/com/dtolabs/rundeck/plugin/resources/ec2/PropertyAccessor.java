@@ -0,0 +1,259 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.model.Instance;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves a dot-separated property selector (e.g. {@code state.name} or {@code
+ * placement.availabilityZone}) against an {@link Ec2Instance}. The accessor chain is looked up once
+ * per selector path, starting from the EC2 {@link Instance} model class and following the declared
+ * return type of each accessor, and is kept as a composed list of {@link MethodHandle}s. Resolved
+ * accessors are cached for the life of the class loader, so mapping an instance only invokes the
+ * handles.
+ * <p>
+ * Each path segment is matched to the AWS SDK v2 fluent accessor with the same name; the String
+ * variant (e.g. {@code architectureAsString()}) is preferred so enum-valued fields keep returning
+ * their raw wire value. The extra mapping attributes (imageName, region) are read from the {@link
+ * Ec2Instance} wrapper itself. When a declared return type does not define a segment and is not a
+ * final class, that segment is looked up on the runtime class of the value instead.
+ * </p>
+ */
+final class PropertyAccessor {
+    private static final Map<String, PropertyAccessor> ACCESSORS = new ConcurrentHashMap<>();
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    /**
+     * Accessors resolved against the runtime class of a value, for segments that cannot be resolved
+     * from the declared return type
+     */
+    private static final ClassValue<Map<String, Optional<MethodHandle>>> RUNTIME_ACCESSORS =
+            new ClassValue<Map<String, Optional<MethodHandle>>>() {
+                @Override
+                protected Map<String, Optional<MethodHandle>> computeValue(final Class<?> type) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+
+    private final String path;
+    private final String extraAttribute;
+    private final Segment[] segments;
+    private final String error;
+
+    private PropertyAccessor(
+            final String path,
+            final String extraAttribute,
+            final Segment[] segments,
+            final String error
+    )
+    {
+        this.path = path;
+        this.extraAttribute = extraAttribute;
+        this.segments = segments;
+        this.error = error;
+    }
+
+    /**
+     * Return the cached accessor for the selector path, resolving it on first use
+     *
+     * @param path dot-separated property path
+     */
+    static PropertyAccessor forPath(final String path) {
+        return ACCESSORS.computeIfAbsent(path, PropertyAccessor::resolve);
+    }
+
+    /**
+     * @return true if the path could be resolved against the EC2 instance model
+     */
+    boolean isValid() {
+        return null == error;
+    }
+
+    /**
+     * @return description of the resolution failure, or null if the path is valid
+     */
+    String getError() {
+        return error;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if the path starts with an extra mapping attribute (imageName, region), which is
+     * read from the {@link Ec2Instance} wrapper rather than the EC2 instance
+     */
+    boolean isExtraAttribute() {
+        return null != extraAttribute;
+    }
+
+    /**
+     * Resolve the property value as a String
+     *
+     * @param inst instance
+     *
+     * @return the value, or null if the value or an intermediate value is null
+     *
+     * @throws InstanceToNodeMapper.GeneratorException if the path is invalid or an accessor fails
+     */
+    String resolve(final Ec2Instance inst) throws InstanceToNodeMapper.GeneratorException {
+        if (null != error) {
+            throw new InstanceToNodeMapper.GeneratorException(new NoSuchMethodException(error));
+        }
+        Object current;
+        int i = 0;
+        if (null != extraAttribute) {
+            current = "imageName".equals(extraAttribute) ? inst.imageName() : inst.region();
+            i = 1;
+        } else if (inst.isProjected()) {
+            return inst.projectedValue(this);
+        } else {
+            current = inst.instance();
+        }
+        try {
+            for (; i < segments.length; i++) {
+                if (null == current) {
+                    return null;
+                }
+                current = segments[i].apply(current);
+            }
+        } catch (InstanceToNodeMapper.GeneratorException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new InstanceToNodeMapper.GeneratorException(e);
+        }
+        return stringify(current);
+    }
+
+    private static PropertyAccessor resolve(final String path) {
+        final String[] names = path.split("\\.");
+        final Segment[] segments = new Segment[names.length];
+        String extraAttribute = null;
+        Class<?> type = Instance.class;
+        int i = 0;
+        if (names.length > 0 && ("imageName".equals(names[0]) || "region".equals(names[0]))) {
+            extraAttribute = names[0];
+            type = String.class;
+            i = 1;
+        }
+        for (; i < names.length; i++) {
+            final String name = names[i];
+            final Method method = findAccessor(type, name);
+            if (null != method) {
+                final MethodHandle handle = unreflect(method);
+                if (null == handle) {
+                    return invalid(path, name, type);
+                }
+                segments[i] = new Segment(name, handle);
+                type = method.getReturnType();
+            } else if (isFinal(type)) {
+                return invalid(path, name, type);
+            } else {
+                segments[i] = new Segment(name, null);
+                type = Object.class;
+            }
+        }
+        return new PropertyAccessor(path, extraAttribute, segments, null);
+    }
+
+    private static PropertyAccessor invalid(final String path, final String name, final Class<?> type) {
+        return new PropertyAccessor(
+                path,
+                null,
+                new Segment[0],
+                "No EC2 property '" + name + "' on " + type.getName()
+        );
+    }
+
+    private static boolean isFinal(final Class<?> type) {
+        return type.isPrimitive() || type.isArray() || Modifier.isFinal(type.getModifiers());
+    }
+
+    private static MethodHandle unreflect(final Method method) {
+        try {
+            return LOOKUP.unreflect(method).asType(GETTER);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find a no-arg accessor on the AWS SDK model class for the given property name. Prefer the
+     * {@code <name>AsString} variant generated for enum fields so the raw string value is returned.
+     */
+    private static Method findAccessor(final Class<?> type, final String name) {
+        Method method = lookupAccessor(type, name + "AsString");
+        if (null == method) {
+            method = lookupAccessor(type, name);
+        }
+        return method;
+    }
+
+    private static Method lookupAccessor(final Class<?> type, final String name) {
+        try {
+            final Method method = type.getMethod(name);
+            // Accept any no-arg, value-returning accessor so selectors can traverse the object
+            // graph (including JDK value types such as java.time.Instant), but reject methods
+            // declared on Object (toString/hashCode/getClass/wait/notify) so unknown selectors
+            // still fail as they did with the legacy BeanUtils resolution.
+            if (method.getParameterCount() == 0
+                    && method.getReturnType() != void.class
+                    && !Object.class.equals(method.getDeclaringClass())) {
+                return method;
+            }
+        } catch (NoSuchMethodException ignored) {
+            // not a property accessor
+        }
+        return null;
+    }
+
+    private static String stringify(final Object value) {
+        if (null == value) {
+            return null;
+        }
+        if (value instanceof String) {
+            return (String) value;
+        }
+        return value.toString();
+    }
+
+    /**
+     * One accessor in the chain, either resolved up front or resolved per runtime class
+     */
+    private static final class Segment {
+        private final String name;
+        private final MethodHandle handle;
+
+        Segment(final String name, final MethodHandle handle) {
+            this.name = name;
+            this.handle = handle;
+        }
+
+        Object apply(final Object target) throws Throwable {
+            if (null != handle) {
+                return (Object) handle.invokeExact(target);
+            }
+            final Optional<MethodHandle> runtime = RUNTIME_ACCESSORS.get(target.getClass()).computeIfAbsent(
+                    name,
+                    n -> {
+                        final Method method = findAccessor(target.getClass(), n);
+                        return Optional.ofNullable(null == method ? null : unreflect(method));
+                    }
+            );
+            if (!runtime.isPresent()) {
+                throw new InstanceToNodeMapper.GeneratorException(new NoSuchMethodException(
+                        "No EC2 property '" + name + "' on " + target.getClass().getName()));
+            }
+            return (Object) runtime.get().invokeExact(target);
+        }
+    }
+}
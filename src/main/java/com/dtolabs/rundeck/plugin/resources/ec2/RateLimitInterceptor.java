@@ -0,0 +1,100 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+/**
+ * Takes a token from the rate limiter before each attempt of an EC2 call, so the attempts the SDK
+ * retries are paced too, and feeds the outcome of each attempt back to it.
+ * <p>
+ * Waiting for a token blocks the calling thread, so it is only done for blocking clients. The calls
+ * of async clients are paced by the caller without blocking, see {@link AdaptiveRateLimiter#acquireAsync()},
+ * and the interceptor only feeds their responses back.
+ * </p>
+ * <p>
+ * EC2 answers throttled requests with 503 and the RequestLimitExceeded error code, but also returns
+ * 503 for other transient errors such as Unavailable, and the error code is only parsed after the
+ * interceptors have seen the response. Throttled attempts are therefore read from the metrics of
+ * each call, in which the SDK reports the error type of every attempt, as classified by {@link
+ * SdkServiceException#isThrottlingException()}. Only a 429 response is counted as throttled as soon
+ * as it is received.
+ * </p>
+ */
+final class RateLimitInterceptor implements ExecutionInterceptor, MetricPublisher {
+    static final int TOO_MANY_REQUESTS = 429;
+
+    private final AdaptiveRateLimiter limiter;
+    private final Runnable onThrottle;
+    private final boolean blocking;
+
+    /**
+     * @param limiter    rate limiter
+     * @param onThrottle called after each throttled attempt, or null
+     * @param blocking   true to wait for a token before each attempt, false for async clients
+     */
+    RateLimitInterceptor(final AdaptiveRateLimiter limiter, final Runnable onThrottle, final boolean blocking) {
+        this.limiter = limiter;
+        this.onThrottle = onThrottle;
+        this.blocking = blocking;
+    }
+
+    @Override
+    public void beforeTransmission(final Context.BeforeTransmission context, final ExecutionAttributes attributes) {
+        if (blocking) {
+            limiter.acquire();
+        }
+    }
+
+    @Override
+    public void afterTransmission(final Context.AfterTransmission context, final ExecutionAttributes attributes) {
+        final SdkHttpResponse response = context.httpResponse();
+        if (response.statusCode() == TOO_MANY_REQUESTS) {
+            throttled();
+        } else if (response.isSuccessful()) {
+            limiter.onSuccess();
+        }
+    }
+
+    @Override
+    public void publish(final MetricCollection apiCall) {
+        for (final MetricCollection attempt : apiCall.children()) {
+            if (isThrottled(attempt)) {
+                throttled();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void throttled() {
+        limiter.onThrottle();
+        if (null != onThrottle) {
+            onThrottle.run();
+        }
+    }
+
+    /**
+     * @return true if the attempt was throttled, except with a 429 response, already counted when
+     * it was received
+     */
+    static boolean isThrottled(final MetricCollection attempt) {
+        if (!attempt.metricValues(CoreMetric.ERROR_TYPE).contains(SdkMetricsPublisher.THROTTLING)) {
+            return false;
+        }
+        for (final Integer status : attempt.metricValues(HttpMetric.HTTP_STATUS_CODE)) {
+            if (null != status && status == TOO_MANY_REQUESTS) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events for the phases of a refresh, so a slow refresh can be read in a recording
+ * next to GC, allocation and thread activity. The events are disabled by default; enable them with
+ * an {@code enabled} setting for each event name in the .jfc file of the recording. A disabled event
+ * is not recorded and its fields are not set, and the JIT removes the allocation of the event.
+ */
+final class RefreshEvents {
+    static final String PREFIX = "com.dtolabs.rundeck.plugin.resources.ec2.";
+
+    private RefreshEvents() {
+    }
+
+    /**
+     * A refresh of the nodes of a source
+     */
+    @Name(PREFIX + "Refresh")
+    @Label("EC2 Nodes Refresh")
+    @Category({"Rundeck", "EC2 Nodes"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Refresh extends Event {
+        @Label("Source")
+        @Description("Endpoint or region of the source")
+        String source;
+
+        @Label("Nodes")
+        int nodes;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    /**
+     * The query of one region, from the availability zone lookup to the mapping of its last page
+     */
+    @Name(PREFIX + "RegionQuery")
+    @Label("EC2 Region Query")
+    @Category({"Rundeck", "EC2 Nodes"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class RegionQuery extends Event {
+        @Label("Region")
+        String region;
+
+        @Label("Instances")
+        int instances;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    /**
+     * One DescribeInstances call
+     */
+    @Name(PREFIX + "DescribeInstancesPage")
+    @Label("EC2 DescribeInstances Page")
+    @Category({"Rundeck", "EC2 Nodes"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Page extends Event {
+        @Label("Region")
+        String region;
+
+        @Label("Page Size")
+        @Description("Max results requested")
+        int pageSize;
+
+        @Label("Instances")
+        int instances;
+    }
+
+    /**
+     * The lookup of the availability zones of a region, or of the image names of a page
+     */
+    @Name(PREFIX + "Enrichment")
+    @Label("EC2 Instance Enrichment")
+    @Category({"Rundeck", "EC2 Nodes"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Enrichment extends Event {
+        static final String ZONES = "availabilityZones";
+        static final String IMAGES = "imageName";
+
+        @Label("Region")
+        String region;
+
+        @Label("Attribute")
+        @Description("availabilityZones or imageName")
+        String attribute;
+
+        @Label("Instances")
+        int instances;
+
+        @Label("Lookups")
+        @Description("Number of images described, not found in the cache")
+        int lookups;
+    }
+
+    /**
+     * The mapping of the instances of a page into the node set
+     */
+    @Name(PREFIX + "Mapping")
+    @Label("EC2 Node Mapping")
+    @Category({"Rundeck", "EC2 Nodes"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Mapping extends Event {
+        @Label("Region")
+        String region;
+
+        @Label("Instances")
+        int instances;
+    }
+}
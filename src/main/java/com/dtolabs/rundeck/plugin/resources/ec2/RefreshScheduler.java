@@ -0,0 +1,93 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Triggers the refresh of a source at a fixed period with random jitter, independently of when the
+ * nodes are requested. The first refresh is delayed by a random part of the period, so that sources
+ * created at the same time, for example at startup, do not query EC2 together. Each following
+ * refresh is scheduled after the previous trigger returns.
+ * <p>
+ * All sources share one scheduler thread; the trigger should only start the refresh and return.
+ * </p>
+ */
+final class RefreshScheduler implements Closeable {
+    static final Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+    static final long MIN_DELAY_MILLIS = 1000;
+    private static ScheduledExecutorService scheduler;
+
+    private final Runnable trigger;
+    private final long periodMillis;
+    private final double jitter;
+    private ScheduledFuture<?> next;
+    private boolean closed;
+
+    /**
+     * @param trigger      starts a refresh
+     * @param periodMillis time between refreshes
+     * @param jitter       fraction of the period by which each delay is randomly shortened or
+     *                     lengthened, between 0 and 1
+     */
+    RefreshScheduler(final Runnable trigger, final long periodMillis, final double jitter) {
+        this.trigger = trigger;
+        this.periodMillis = Math.max(MIN_DELAY_MILLIS, periodMillis);
+        this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (null == scheduler) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ec2-refresh-scheduler"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Schedule the first refresh after a random part of the period
+     */
+    synchronized void start() {
+        schedule(ThreadLocalRandom.current().nextLong(periodMillis));
+    }
+
+    /**
+     * Return the delay until the next refresh: the period, randomly changed by up to the jitter
+     */
+    long nextDelay() {
+        final double factor = 1.0 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1.0);
+        return Math.max(MIN_DELAY_MILLIS, Math.round(periodMillis * factor));
+    }
+
+    private synchronized void schedule(final long delayMillis) {
+        if (!closed) {
+            next = scheduler().schedule(this::run, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void run() {
+        try {
+            trigger.run();
+        } catch (RuntimeException e) {
+            logger.warn("Error starting scheduled refresh: " + e.getMessage(), e);
+        } finally {
+            schedule(nextDelay());
+        }
+    }
+
+    /**
+     * Cancel the next refresh
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (null != next) {
+            next.cancel(false);
+        }
+    }
+}
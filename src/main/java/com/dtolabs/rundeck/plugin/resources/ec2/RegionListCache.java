@@ -0,0 +1,176 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeRegionsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeRegionsResponse;
+import software.amazon.awssdk.services.ec2.model.Region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * The endpoints of the regions queried for ALL_REGIONS. The region list is described once and then
+ * used until the TTL expires; after that the cached list is still returned while a new one is
+ * described in the background. If describing the regions fails, the previous list is kept.
+ * <p>
+ * By default the regions enabled for the account are used (regions which do not require opt-in and
+ * regions the account has opted in to). The regions can be restricted with comma-separated allow
+ * and deny lists of region names, where "*" matches any characters.
+ * </p>
+ */
+final class RegionListCache {
+    static final long DEFAULT_TTL_SECONDS = 3600;
+
+    private final AtomicReference<CompletableFuture<List<String>>> refreshing = new AtomicReference<>();
+    private volatile List<String> endpoints;
+    private volatile long loadedAt;
+    private volatile long ttlNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TTL_SECONDS);
+    private volatile boolean allRegions;
+    private volatile Pattern allow;
+    private volatile Pattern deny;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Set how long the region list is used before it is described again
+     */
+    void setTtlMillis(final long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+    }
+
+    /**
+     * Set which regions are used. Changing the selection discards the cached list.
+     *
+     * @param allRegions if true, include regions the account has not opted in to
+     * @param allowList  comma-separated region names to include, or blank for all
+     * @param denyList   comma-separated region names to exclude, or blank for none
+     */
+    void setSelection(final boolean allRegions, final String allowList, final String denyList) {
+        this.allRegions = allRegions;
+        this.allow = namePattern(allowList);
+        this.deny = namePattern(denyList);
+        this.endpoints = null;
+    }
+
+    /**
+     * Return the cached region endpoints, describing the regions if there is no list yet. If the
+     * list has expired it is returned and a refresh is started in the background.
+     *
+     * @param describe starts describing the regions
+     */
+    CompletableFuture<List<String>> get(final Supplier<CompletableFuture<DescribeRegionsResponse>> describe) {
+        final List<String> current = endpoints;
+        if (null == current) {
+            misses.increment();
+            return refresh(describe);
+        }
+        if (System.nanoTime() - loadedAt >= ttlNanos) {
+            misses.increment();
+            refresh(describe);
+        } else {
+            hits.increment();
+        }
+        return CompletableFuture.completedFuture(current);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Describe the regions, or join a refresh which is already in progress
+     */
+    private CompletableFuture<List<String>> refresh(final Supplier<CompletableFuture<DescribeRegionsResponse>> describe) {
+        final CompletableFuture<List<String>> result = new CompletableFuture<>();
+        final CompletableFuture<List<String>> inProgress = refreshing.compareAndExchange(null, result);
+        if (null != inProgress) {
+            return inProgress;
+        }
+        CompletableFuture<DescribeRegionsResponse> described;
+        try {
+            described = describe.get();
+        } catch (RuntimeException e) {
+            described = CompletableFuture.failedFuture(e);
+        }
+        described.whenComplete((response, e) -> {
+            refreshing.set(null);
+            if (null == e) {
+                final List<String> selected = select(response);
+                endpoints = selected;
+                loadedAt = System.nanoTime();
+                result.complete(selected);
+            } else {
+                if (null != endpoints) {
+                    InstanceToNodeMapper.logger.warn("Using previous region list: {}", e.getMessage());
+                }
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Describe the regions with the blocking client
+     */
+    DescribeRegionsResponse describe(final Ec2Client ec2) {
+        return allRegions ? ec2.describeRegions(request()) : ec2.describeRegions();
+    }
+
+    /**
+     * Describe the regions with the async client
+     */
+    CompletableFuture<DescribeRegionsResponse> describe(final Ec2AsyncClient ec2) {
+        return allRegions ? ec2.describeRegions(request()) : ec2.describeRegions();
+    }
+
+    private DescribeRegionsRequest request() {
+        return DescribeRegionsRequest.builder().allRegions(true).build();
+    }
+
+    /**
+     * Return the endpoints of the regions which match the allow and deny lists
+     */
+    List<String> select(final DescribeRegionsResponse response) {
+        final List<String> selected = new ArrayList<>();
+        for (final Region region : response.regions()) {
+            final String name = region.regionName();
+            if (null != allow && (null == name || !allow.matcher(name).matches())) {
+                continue;
+            }
+            if (null != deny && null != name && deny.matcher(name).matches()) {
+                continue;
+            }
+            selected.add(region.endpoint());
+        }
+        return Collections.unmodifiableList(selected);
+    }
+
+    private static Pattern namePattern(final String list) {
+        if (null == list || list.trim().isEmpty()) {
+            return null;
+        }
+        final StringBuilder regex = new StringBuilder();
+        for (final String name : list.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append(Pattern.quote(name.trim()).replace("*", "\\E.*\\Q"));
+        }
+        return regex.length() > 0 ? Pattern.compile(regex.toString()) : null;
+    }
+}
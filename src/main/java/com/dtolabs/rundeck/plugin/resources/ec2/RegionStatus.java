@@ -0,0 +1,87 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+/**
+ * The outcome of querying one region: whether its nodes are current, were retained from an earlier
+ * query because the region failed, or are missing, and when the region was last queried
+ * successfully.
+ */
+final class RegionStatus {
+    enum State {
+        /**
+         * The region was queried successfully
+         */
+        OK,
+        /**
+         * The region failed and the nodes of its last successful query are used
+         */
+        STALE,
+        /**
+         * The region failed and has no nodes
+         */
+        FAILED
+    }
+
+    private final State state;
+    private final long refreshedAt;
+    private final int nodeCount;
+    private final Throwable error;
+
+    private RegionStatus(final State state, final long refreshedAt, final int nodeCount, final Throwable error) {
+        this.state = state;
+        this.refreshedAt = refreshedAt;
+        this.nodeCount = nodeCount;
+        this.error = error;
+    }
+
+    static RegionStatus ok(final long refreshedAt, final int nodeCount) {
+        return new RegionStatus(State.OK, refreshedAt, nodeCount, null);
+    }
+
+    static RegionStatus stale(final long refreshedAt, final int nodeCount, final Throwable error) {
+        return new RegionStatus(State.STALE, refreshedAt, nodeCount, error);
+    }
+
+    static RegionStatus failed(final Throwable error) {
+        return new RegionStatus(State.FAILED, 0, 0, error);
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return the time in milliseconds of the last successful query of the region, or 0 if there
+     * is none
+     */
+    long getRefreshedAt() {
+        return refreshedAt;
+    }
+
+    /**
+     * @return the age in milliseconds of the nodes of the region, or -1 if it has none
+     */
+    long getAgeMillis(final long now) {
+        return refreshedAt == 0 ? -1 : now - refreshedAt;
+    }
+
+    /**
+     * @return the number of instances of the region
+     */
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the error of the last query if it failed, or null
+     */
+    Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return state + (null != error ? " (" + error + ")" : "")
+               + ", " + nodeCount + " nodes"
+               + (refreshedAt == 0 ? "" : ", age " + getAgeMillis(System.currentTimeMillis()) + "ms");
+    }
+}
@@ -0,0 +1,38 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The nodes of a query with the status of each region they were queried from, by endpoint key
+ */
+final class RegionalNodeSet extends NodeSetImpl {
+    private transient volatile Map<String, RegionStatus> regions = Map.of();
+
+    /**
+     * @return the status of each region queried
+     */
+    Map<String, RegionStatus> getRegions() {
+        return regions;
+    }
+
+    void setRegions(final Map<String, RegionStatus> regions) {
+        this.regions = Map.copyOf(regions);
+    }
+
+    /**
+     * @return the keys of the regions whose last query failed
+     */
+    List<String> getFailedRegions() {
+        final List<String> failed = new ArrayList<>();
+        for (final Map.Entry<String, RegionStatus> region : regions.entrySet()) {
+            if (region.getValue().getState() != RegionStatus.State.OK) {
+                failed.add(region.getKey());
+            }
+        }
+        return failed;
+    }
+}
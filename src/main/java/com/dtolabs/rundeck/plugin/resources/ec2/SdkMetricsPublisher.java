@@ -0,0 +1,78 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Records the API call metrics reported by the SDK clients in the {@link SourceMetrics} of a
+ * source: the duration, retries and outcome of each call, its attempts throttled by EC2, and the
+ * state of the HTTP connection pool during its last attempt. Publishing only updates counters, on
+ * the thread completing the call.
+ */
+final class SdkMetricsPublisher implements MetricPublisher {
+    /**
+     * The {@link CoreMetric#ERROR_TYPE} of an attempt rejected by throttling
+     */
+    static final String THROTTLING = "Throttling";
+
+    private final SourceMetrics metrics;
+
+    SdkMetricsPublisher(final SourceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void publish(final MetricCollection apiCall) {
+        final Duration duration = first(apiCall, CoreMetric.API_CALL_DURATION);
+        final Integer retries = first(apiCall, CoreMetric.RETRY_COUNT);
+        final Boolean successful = first(apiCall, CoreMetric.API_CALL_SUCCESSFUL);
+        int throttled = 0;
+        MetricCollection pool = null;
+        for (final MetricCollection attempt : apiCall.children()) {
+            for (final String errorType : attempt.metricValues(CoreMetric.ERROR_TYPE)) {
+                if (THROTTLING.equals(errorType)) {
+                    throttled++;
+                }
+            }
+            for (final MetricCollection http : attempt.children()) {
+                if (!http.metricValues(HttpMetric.LEASED_CONCURRENCY).isEmpty()) {
+                    pool = http;
+                }
+            }
+        }
+        if (null != pool) {
+            metrics.httpPool(
+                    valueOf(first(pool, HttpMetric.LEASED_CONCURRENCY)),
+                    valueOf(first(pool, HttpMetric.PENDING_CONCURRENCY_ACQUIRES)),
+                    valueOf(first(pool, HttpMetric.AVAILABLE_CONCURRENCY)),
+                    valueOf(first(pool, HttpMetric.MAX_CONCURRENCY))
+            );
+        }
+        metrics.apiCall(
+                first(apiCall, CoreMetric.OPERATION_NAME),
+                null == duration ? 0 : duration.toNanos(),
+                null == retries ? 0 : retries,
+                Boolean.TRUE.equals(successful),
+                throttled
+        );
+    }
+
+    private static int valueOf(final Integer value) {
+        return null == value ? 0 : value;
+    }
+
+    private static <T> T first(final MetricCollection collection, final SdkMetric<T> metric) {
+        final List<T> values = collection.metricValues(metric);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public void close() {
+    }
+}
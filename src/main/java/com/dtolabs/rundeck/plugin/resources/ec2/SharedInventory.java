@@ -0,0 +1,311 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.ec2.model.Filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * The instances of each region queried by any source in the JVM, keyed by account, region and
+ * DescribeInstances filters, so that sources which differ only in their mapping query EC2 once.
+ * Each source maps the shared instances with its own mapping.
+ * <p>
+ * A region is queried when no source has queried it with the same filters within the caller's max
+ * age; callers arriving while it is queried wait for the same query. A source whose filters include
+ * all the filters of a recent query, plus filters which can be evaluated on the client (see {@link
+ * InstanceFilter}), is answered by filtering the instances of that query.
+ * </p>
+ * <p>
+ * The instances are kept in compact form, projected to all their tags and the properties read by
+ * the filters and the mapping plans of the registered sources, and only as long as the largest max
+ * age of the registered sources of the account. Releasing the last source of an account drops its
+ * instances.
+ * </p>
+ */
+final class SharedInventory {
+    static final Logger logger = LoggerFactory.getLogger(SharedInventory.class);
+    private static final SharedInventory SHARED = new SharedInventory();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private final Set<Source> sources = ConcurrentHashMap.newKeySet();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder filteredHits = new LongAdder();
+
+    /**
+     * @return the inventory shared by all sources
+     */
+    static SharedInventory shared() {
+        return SHARED;
+    }
+
+    /**
+     * Register a source using the inventory. Release it with {@link Source#release()} when the
+     * source is closed.
+     *
+     * @param account      identifies the account of the source's credentials
+     * @param maxAgeMillis maximum age of a previous query the source uses
+     * @param projection   values read by the mapping plan of the source
+     */
+    Source register(final String account, final long maxAgeMillis, final InstanceProjection projection) {
+        final Source source = new Source(this, account, maxAgeMillis, projection);
+        sources.add(source);
+        return source;
+    }
+
+    /**
+     * Return the instances of the region matching the filters. The instances are shared with other
+     * sources and must not be modified, see {@link Ec2Instance#copy()}.
+     *
+     * @param source     registered source
+     * @param region     endpoint key of the region
+     * @param filters    DescribeInstances filters of the source
+     * @param projection values read by the mapping plan of the source
+     * @param describe   queries all the instances of the region with the filters, projected with the
+     *                   given projection
+     */
+    List<Ec2Instance> instances(
+            final Source source,
+            final String region,
+            final Collection<Filter> filters,
+            final InstanceProjection projection,
+            final Function<InstanceProjection, List<Ec2Instance>> describe
+    )
+    {
+        source.projection = projection;
+        final String scope = source.account + "|" + region;
+        final Map<String, Filter> wanted = canonical(filters);
+        final String key = scope + "|" + String.join(";", wanted.keySet());
+        final long now = System.nanoTime();
+        prune(now);
+
+        final Entry exact = entries.get(key);
+        if (null != exact && exact.usableBy(now, source.maxAgeNanos, projection)) {
+            hits.increment();
+            return exact.instances;
+        }
+        for (final Entry entry : entries.values()) {
+            if (entry != exact && entry.scope.equals(scope) && entry.usableBy(now, source.maxAgeNanos, projection)
+                && wanted.keySet().containsAll(entry.filters.keySet())) {
+                final List<Filter> extra = new ArrayList<>();
+                for (final Map.Entry<String, Filter> filter : wanted.entrySet()) {
+                    if (!entry.filters.containsKey(filter.getKey())) {
+                        extra.add(filter.getValue());
+                    }
+                }
+                if (InstanceFilter.supportsAll(extra)) {
+                    filteredHits.increment();
+                    logger.debug("Filtering the shared instances of {} for {}", region, extra);
+                    return InstanceFilter.select(entry.instances, extra);
+                }
+            }
+        }
+
+        final CompletableFuture<Entry> result = new CompletableFuture<>();
+        final CompletableFuture<Entry> running = inFlight.putIfAbsent(key, result);
+        if (null != running) {
+            final Entry entry;
+            try {
+                entry = running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            if (entry.projection.covers(projection)) {
+                hits.increment();
+                return entry.instances;
+            }
+            // the mapping plan changed after the query started
+            return query(source, scope, key, wanted, describe, null);
+        }
+        return query(source, scope, key, wanted, describe, result);
+    }
+
+    private List<Ec2Instance> query(
+            final Source source,
+            final String scope,
+            final String key,
+            final Map<String, Filter> wanted,
+            final Function<InstanceProjection, List<Ec2Instance>> describe,
+            final CompletableFuture<Entry> result
+    )
+    {
+        try {
+            queries.increment();
+            final InstanceProjection projection = projection(source.account);
+            final Entry entry = new Entry(
+                    source.account,
+                    scope,
+                    wanted,
+                    projection,
+                    List.copyOf(describe.apply(projection)),
+                    System.nanoTime()
+            );
+            entries.put(key, entry);
+            if (null != result) {
+                result.complete(entry);
+            }
+            return entry.instances;
+        } catch (RuntimeException e) {
+            if (null != result) {
+                result.completeExceptionally(e);
+            }
+            throw e;
+        } finally {
+            if (null != result) {
+                inFlight.remove(key, result);
+            }
+        }
+    }
+
+    /**
+     * Return the projection of the instances of the account: the values read by the filters and the
+     * plans of the registered sources of the account
+     */
+    private InstanceProjection projection(final String account) {
+        final List<InstanceProjection> projections = new ArrayList<>();
+        for (final Source source : sources) {
+            if (source.account.equals(account)) {
+                projections.add(source.projection);
+            }
+        }
+        return InstanceProjection.union(projections, InstanceFilter.properties());
+    }
+
+    /**
+     * Drop the instances older than the max age of every registered source of their account
+     */
+    private void prune(final long now) {
+        final Map<String, Long> retention = new HashMap<>();
+        for (final Source source : sources) {
+            retention.merge(source.account, source.maxAgeNanos, Math::max);
+        }
+        entries.values().removeIf(entry -> {
+            final Long maxAge = retention.get(entry.account);
+            return null == maxAge || now - entry.queriedAt > maxAge;
+        });
+    }
+
+    private void release(final Source source) {
+        if (sources.remove(source)) {
+            prune(System.nanoTime());
+        }
+    }
+
+    /**
+     * @return the number of region queries kept
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the filters by a canonical form of the filter, sorted
+     */
+    private static Map<String, Filter> canonical(final Collection<Filter> filters) {
+        final Map<String, Filter> canonical = new TreeMap<>();
+        for (final Filter filter : filters) {
+            final List<String> values = new ArrayList<>(filter.values());
+            values.sort(null);
+            canonical.put(filter.name() + "=" + String.join(",", values), filter);
+        }
+        return canonical;
+    }
+
+    /**
+     * @return the number of region queries made
+     */
+    long getQueries() {
+        return queries.sum();
+    }
+
+    /**
+     * @return the number of requests answered by a query with the same filters
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of requests answered by filtering a query with fewer filters
+     */
+    long getFilteredHits() {
+        return filteredHits.sum();
+    }
+
+    /**
+     * A source using the inventory
+     */
+    static final class Source {
+        private final SharedInventory inventory;
+        private final String account;
+        private final long maxAgeNanos;
+        private volatile InstanceProjection projection;
+
+        private Source(
+                final SharedInventory inventory,
+                final String account,
+                final long maxAgeMillis,
+                final InstanceProjection projection
+        )
+        {
+            this.inventory = inventory;
+            this.account = account;
+            this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+            this.projection = projection;
+        }
+
+        /**
+         * Stop using the inventory, and drop the instances no other source can use
+         */
+        void release() {
+            inventory.release(this);
+        }
+    }
+
+    private static final class Entry {
+        final String account;
+        final String scope;
+        final Map<String, Filter> filters;
+        final InstanceProjection projection;
+        final List<Ec2Instance> instances;
+        final long queriedAt;
+
+        Entry(
+                final String account,
+                final String scope,
+                final Map<String, Filter> filters,
+                final InstanceProjection projection,
+                final List<Ec2Instance> instances,
+                final long queriedAt
+        )
+        {
+            this.account = account;
+            this.scope = scope;
+            this.filters = filters;
+            this.projection = projection;
+            this.instances = instances;
+            this.queriedAt = queriedAt;
+        }
+
+        boolean usableBy(final long now, final long maxAge, final InstanceProjection wanted) {
+            return now - queriedAt <= maxAge && projection.covers(wanted);
+        }
+    }
+}
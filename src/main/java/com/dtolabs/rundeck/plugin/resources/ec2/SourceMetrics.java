@@ -0,0 +1,449 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters and histograms of the refreshes of one source, its region queries, the EC2 API calls of
+ * its clients and its caches. Everything is recorded with atomic adders, so the metrics are always
+ * collected; {@link #register(String)} exposes them as an MXBean.
+ */
+final class SourceMetrics implements SourceMetricsMXBean {
+    static final Logger logger = LoggerFactory.getLogger(SourceMetrics.class);
+    static final String DOMAIN = "com.dtolabs.rundeck.plugin.resources.ec2";
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final String description;
+    private final LatencyHistogram refreshes = new LatencyHistogram();
+    private final LongAdder refreshFailures = new LongAdder();
+    private volatile long lastRefreshMillis;
+    private volatile int nodeCount;
+    private volatile long nodesQueriedAt;
+    private final ConcurrentMap<String, RegionMetrics> regions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CacheCounters> caches = new ConcurrentHashMap<>();
+    private volatile int httpLeased;
+    private volatile int httpPending;
+    private volatile int httpAvailable;
+    private volatile int httpMax;
+    private final LongAccumulator httpPendingMax = new LongAccumulator(Math::max, 0);
+    private volatile ObjectName objectName;
+
+    /**
+     * @param description endpoint or region of the source
+     */
+    SourceMetrics(final String description) {
+        this.description = description;
+    }
+
+    /**
+     * Register as an MXBean named after the source configuration and a sequence number, so that
+     * sources with the same configuration, e.g. in different projects, are registered separately.
+     *
+     * @param name configuration key of the source
+     */
+    void register(final String name) {
+        try {
+            final ObjectName objectName = new ObjectName(
+                    DOMAIN + ":type=EC2ResourceModelSource,name=" + name + ",id=" + SEQUENCE.incrementAndGet()
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            logger.warn("Could not register EC2 source metrics {}: {}", name, e.toString());
+        }
+    }
+
+    /**
+     * Remove the MXBean
+     */
+    void unregister() {
+        final ObjectName name = objectName;
+        if (null == name) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            logger.debug("Could not unregister EC2 source metrics {}: {}", name, e.toString());
+        }
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Record a completed refresh
+     */
+    void refreshed(final long nanos, final int nodeCount) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        refreshes.record(millis);
+        lastRefreshMillis = millis;
+        published(nodeCount, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a failed refresh
+     */
+    void refreshFailed(final long nanos) {
+        refreshes.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        refreshFailures.increment();
+    }
+
+    /**
+     * Record the nodes returned by the source
+     *
+     * @param queriedAt time the nodes were queried from EC2
+     */
+    void published(final int nodeCount, final long queriedAt) {
+        this.nodeCount = nodeCount;
+        this.nodesQueriedAt = queriedAt;
+    }
+
+    /**
+     * Start recording the query of a region
+     */
+    RegionQuery startRegion(final String key) {
+        return new RegionQuery(regions.computeIfAbsent(key, k -> new RegionMetrics()));
+    }
+
+    /**
+     * Record a failed region query
+     */
+    void regionFailed(final String key) {
+        regions.computeIfAbsent(key, k -> new RegionMetrics()).failures.increment();
+    }
+
+    /**
+     * Record an EC2 API call
+     *
+     * @param operation  operation name
+     * @param nanos      duration of the call including retries
+     * @param retries    number of retries
+     * @param successful whether the call succeeded
+     * @param throttled  number of attempts throttled by EC2
+     */
+    void apiCall(
+            final String operation,
+            final long nanos,
+            final int retries,
+            final boolean successful,
+            final int throttled
+    )
+    {
+        final OperationMetrics metrics = operations.computeIfAbsent(
+                null == operation ? "unknown" : operation,
+                k -> new OperationMetrics()
+        );
+        metrics.latency.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        metrics.retries.add(retries);
+        metrics.throttles.add(throttled);
+        if (!successful) {
+            metrics.failures.increment();
+        }
+    }
+
+    /**
+     * Record the state of the HTTP connection pool reported by the last call
+     *
+     * @param leased    connections in use
+     * @param pending   requests waiting for a connection
+     * @param available idle connections in the pool
+     * @param max       maximum connections
+     */
+    void httpPool(final int leased, final int pending, final int available, final int max) {
+        httpLeased = leased;
+        httpPending = pending;
+        httpAvailable = available;
+        httpMax = max;
+        httpPendingMax.accumulate(pending);
+    }
+
+    /**
+     * Report the hits and misses of a cache, replacing a cache with the same name
+     */
+    void cache(final String name, final LongSupplier hits, final LongSupplier misses) {
+        caches.put(name, new CacheCounters(hits, misses));
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return refreshes.getCount();
+    }
+
+    @Override
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    @Override
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    @Override
+    public double getRefreshMeanMillis() {
+        return refreshes.getMeanMillis();
+    }
+
+    @Override
+    public long getRefreshP50Millis() {
+        return refreshes.percentile(0.5);
+    }
+
+    @Override
+    public long getRefreshP95Millis() {
+        return refreshes.percentile(0.95);
+    }
+
+    @Override
+    public long getRefreshP99Millis() {
+        return refreshes.percentile(0.99);
+    }
+
+    @Override
+    public long getRefreshMaxMillis() {
+        return refreshes.getMaxMillis();
+    }
+
+    @Override
+    public Map<Long, Long> getRefreshHistogram() {
+        return refreshes.buckets();
+    }
+
+    @Override
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public long getSnapshotAgeMillis() {
+        final long queriedAt = nodesQueriedAt;
+        return queriedAt == 0 ? -1 : Math.max(0, System.currentTimeMillis() - queriedAt);
+    }
+
+    @Override
+    public Map<String, Long> getRegionQueryMillis() {
+        return byRegion(r -> r.lastQueryMillis);
+    }
+
+    @Override
+    public Map<String, Long> getRegionQueryP95Millis() {
+        return byRegion(r -> r.queries.percentile(0.95));
+    }
+
+    @Override
+    public Map<String, Long> getRegionMappingMillis() {
+        return byRegion(r -> r.lastMappingMillis);
+    }
+
+    @Override
+    public Map<String, Long> getRegionPages() {
+        return byRegion(r -> r.lastPages);
+    }
+
+    @Override
+    public Map<String, Long> getRegionInstances() {
+        return byRegion(r -> r.lastInstances);
+    }
+
+    @Override
+    public Map<String, Long> getRegionFailures() {
+        return byRegion(r -> r.failures.sum());
+    }
+
+    @Override
+    public Map<String, Long> getApiCalls() {
+        return byOperation(o -> o.latency.getCount());
+    }
+
+    @Override
+    public Map<String, Long> getApiFailures() {
+        return byOperation(o -> o.failures.sum());
+    }
+
+    @Override
+    public Map<String, Long> getApiRetries() {
+        return byOperation(o -> o.retries.sum());
+    }
+
+    @Override
+    public Map<String, Long> getApiThrottles() {
+        return byOperation(o -> o.throttles.sum());
+    }
+
+    @Override
+    public Map<String, Long> getApiLatencyP50Millis() {
+        return byOperation(o -> o.latency.percentile(0.5));
+    }
+
+    @Override
+    public Map<String, Long> getApiLatencyP99Millis() {
+        return byOperation(o -> o.latency.percentile(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getApiLatencyMaxMillis() {
+        return byOperation(o -> o.latency.getMaxMillis());
+    }
+
+    @Override
+    public long getThrottlingEvents() {
+        long total = 0;
+        for (final OperationMetrics metrics : operations.values()) {
+            total += metrics.throttles.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public int getHttpLeasedConnections() {
+        return httpLeased;
+    }
+
+    @Override
+    public int getHttpPendingAcquires() {
+        return httpPending;
+    }
+
+    @Override
+    public long getHttpPendingAcquiresMax() {
+        return httpPendingMax.get();
+    }
+
+    @Override
+    public int getHttpAvailableConnections() {
+        return httpAvailable;
+    }
+
+    @Override
+    public int getHttpMaxConnections() {
+        return httpMax;
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        final Map<String, Double> rates = new TreeMap<>();
+        for (final Map.Entry<String, CacheCounters> cache : caches.entrySet()) {
+            final long hits = cache.getValue().hits.getAsLong();
+            final long total = hits + cache.getValue().misses.getAsLong();
+            rates.put(cache.getKey(), total == 0 ? 0.0 : (double) hits / total);
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Long> getCacheHits() {
+        final Map<String, Long> hits = new TreeMap<>();
+        caches.forEach((name, cache) -> hits.put(name, cache.hits.getAsLong()));
+        return hits;
+    }
+
+    @Override
+    public Map<String, Long> getCacheMisses() {
+        final Map<String, Long> misses = new TreeMap<>();
+        caches.forEach((name, cache) -> misses.put(name, cache.misses.getAsLong()));
+        return misses;
+    }
+
+    private Map<String, Long> byRegion(final ToLongFunction<RegionMetrics> value) {
+        final Map<String, Long> values = new TreeMap<>();
+        regions.forEach((key, region) -> values.put(key, value.applyAsLong(region)));
+        return values;
+    }
+
+    private Map<String, Long> byOperation(final ToLongFunction<OperationMetrics> value) {
+        final Map<String, Long> values = new TreeMap<>();
+        operations.forEach((name, operation) -> values.put(name, value.applyAsLong(operation)));
+        return values;
+    }
+
+    /**
+     * The query of one region in progress. Pages and mapping time may be recorded from several
+     * threads; {@link #finished()} publishes them as the values of the region's last query.
+     */
+    static final class RegionQuery {
+        private final RegionMetrics region;
+        private final long started = System.nanoTime();
+        private final LongAdder pages = new LongAdder();
+        private final LongAdder instances = new LongAdder();
+        private final LongAdder mappingNanos = new LongAdder();
+
+        private RegionQuery(final RegionMetrics region) {
+            this.region = region;
+        }
+
+        /**
+         * Record a page of results
+         */
+        void page() {
+            pages.increment();
+        }
+
+        /**
+         * Record instances enriched and mapped into the node set
+         */
+        void mapped(final int count, final long nanos) {
+            instances.add(count);
+            mappingNanos.add(nanos);
+        }
+
+        /**
+         * Record the successful end of the query
+         */
+        void finished() {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            region.queries.record(millis);
+            region.lastQueryMillis = millis;
+            region.lastMappingMillis = TimeUnit.NANOSECONDS.toMillis(mappingNanos.sum());
+            region.lastPages = pages.sum();
+            region.lastInstances = instances.sum();
+        }
+    }
+
+    private static final class RegionMetrics {
+        final LatencyHistogram queries = new LatencyHistogram();
+        final LongAdder failures = new LongAdder();
+        volatile long lastQueryMillis;
+        volatile long lastMappingMillis;
+        volatile long lastPages;
+        volatile long lastInstances;
+    }
+
+    private static final class OperationMetrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder failures = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder throttles = new LongAdder();
+    }
+
+    private static final class CacheCounters {
+        final LongSupplier hits;
+        final LongSupplier misses;
+
+        CacheCounters(final LongSupplier hits, final LongSupplier misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+    }
+}
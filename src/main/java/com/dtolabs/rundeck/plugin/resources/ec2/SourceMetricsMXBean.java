@@ -0,0 +1,117 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import java.util.Map;
+
+/**
+ * Metrics of one EC2 resource model source, registered with the platform MBean server under
+ * {@code com.dtolabs.rundeck.plugin.resources.ec2:type=EC2ResourceModelSource,name=<configuration hash>,id=<n>},
+ * where the id tells apart the sources with the same configuration.
+ * Durations are in milliseconds. Per-region values are keyed by endpoint or region key and describe
+ * the last successful query of the region; API values are keyed by operation name.
+ */
+public interface SourceMetricsMXBean {
+    /**
+     * @return the endpoint or region of the source
+     */
+    String getDescription();
+
+    long getRefreshCount();
+
+    long getRefreshFailures();
+
+    long getLastRefreshMillis();
+
+    double getRefreshMeanMillis();
+
+    long getRefreshP50Millis();
+
+    long getRefreshP95Millis();
+
+    long getRefreshP99Millis();
+
+    long getRefreshMaxMillis();
+
+    /**
+     * @return the number of refreshes by the upper bound of their duration bucket
+     */
+    Map<Long, Long> getRefreshHistogram();
+
+    /**
+     * @return the number of nodes currently returned
+     */
+    int getNodeCount();
+
+    /**
+     * @return the time since the nodes currently returned were queried, including the time they were
+     * stored in the snapshot file, or -1 if there are none
+     */
+    long getSnapshotAgeMillis();
+
+    Map<String, Long> getRegionQueryMillis();
+
+    Map<String, Long> getRegionQueryP95Millis();
+
+    /**
+     * @return the time spent enriching and mapping the instances of each region
+     */
+    Map<String, Long> getRegionMappingMillis();
+
+    Map<String, Long> getRegionPages();
+
+    Map<String, Long> getRegionInstances();
+
+    Map<String, Long> getRegionFailures();
+
+    Map<String, Long> getApiCalls();
+
+    Map<String, Long> getApiFailures();
+
+    Map<String, Long> getApiRetries();
+
+    /**
+     * @return the number of attempts throttled by EC2 for each operation
+     */
+    Map<String, Long> getApiThrottles();
+
+    Map<String, Long> getApiLatencyP50Millis();
+
+    Map<String, Long> getApiLatencyP99Millis();
+
+    Map<String, Long> getApiLatencyMaxMillis();
+
+    /**
+     * @return the number of attempts throttled by EC2 for all operations
+     */
+    long getThrottlingEvents();
+
+    /**
+     * @return the HTTP connections in use during the last call
+     */
+    int getHttpLeasedConnections();
+
+    /**
+     * @return the requests waiting for an HTTP connection during the last call
+     */
+    int getHttpPendingAcquires();
+
+    /**
+     * @return the most requests seen waiting for an HTTP connection
+     */
+    long getHttpPendingAcquiresMax();
+
+    /**
+     * @return the idle HTTP connections in the pool during the last call
+     */
+    int getHttpAvailableConnections();
+
+    int getHttpMaxConnections();
+
+    /**
+     * @return the fraction of lookups answered from each cache
+     */
+    Map<String, Double> getCacheHitRates();
+
+    Map<String, Long> getCacheHits();
+
+    Map<String, Long> getCacheMisses();
+}
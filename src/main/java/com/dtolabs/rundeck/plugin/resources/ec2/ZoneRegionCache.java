@@ -0,0 +1,128 @@
+package com.dtolabs.rundeck.plugin.resources.ec2;
+
+import software.amazon.awssdk.services.ec2.model.AvailabilityZone;
+import software.amazon.awssdk.services.ec2.model.DescribeAvailabilityZonesResponse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The region of each availability zone, per EC2 endpoint. The zones of an endpoint are described
+ * the first time they are needed and again after the TTL. If describing the zones fails once they
+ * are known, the previous zones are used.
+ */
+final class ZoneRegionCache {
+    static final long DEFAULT_TTL_HOURS = 24;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long ttlNanos = TimeUnit.HOURS.toNanos(DEFAULT_TTL_HOURS);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Set how long the zones of an endpoint are used before they are described again
+     */
+    void setTtlMillis(final long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+    }
+
+    /**
+     * Return the regions by zone name for the endpoint, describing the zones if they are not known or
+     * have expired
+     *
+     * @param key      endpoint key
+     * @param describe describes the zones of the endpoint
+     */
+    Map<String, String> get(final String key, final Supplier<DescribeAvailabilityZonesResponse> describe) {
+        final Entry entry = entries.get(key);
+        if (null != entry && !entry.isExpired(System.nanoTime(), ttlNanos)) {
+            hits.increment();
+            return entry.regions;
+        }
+        misses.increment();
+        try {
+            return load(key, describe.get());
+        } catch (RuntimeException e) {
+            if (null == entry) {
+                throw e;
+            }
+            InstanceToNodeMapper.logger.warn("Using previous availability zones for {}: {}", key, e.getMessage());
+            return entry.regions;
+        }
+    }
+
+    /**
+     * Asynchronous form of {@link #get(String, Supplier)}
+     */
+    CompletableFuture<Map<String, String>> getAsync(
+            final String key,
+            final Supplier<CompletableFuture<DescribeAvailabilityZonesResponse>> describe
+    )
+    {
+        final Entry entry = entries.get(key);
+        if (null != entry && !entry.isExpired(System.nanoTime(), ttlNanos)) {
+            hits.increment();
+            return CompletableFuture.completedFuture(entry.regions);
+        }
+        misses.increment();
+        return describe.get().handle((zones, e) -> {
+            if (null == e) {
+                return load(key, zones);
+            }
+            if (null == entry) {
+                throw new RuntimeException(e);
+            }
+            InstanceToNodeMapper.logger.warn("Using previous availability zones for {}: {}", key, e.getMessage());
+            return entry.regions;
+        });
+    }
+
+    private Map<String, String> load(final String key, final DescribeAvailabilityZonesResponse zones) {
+        final Map<String, String> regions = regionsByZone(zones);
+        entries.put(key, new Entry(regions, System.nanoTime()));
+        return regions;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Return the region of each zone in the response
+     */
+    static Map<String, String> regionsByZone(final DescribeAvailabilityZonesResponse zones) {
+        if (null == zones) {
+            return Map.of();
+        }
+        final Map<String, String> regions = new HashMap<>();
+        for (final AvailabilityZone zone : zones.availabilityZones()) {
+            if (null != zone.zoneName() && null != zone.regionName()) {
+                regions.put(zone.zoneName(), zone.regionName());
+            }
+        }
+        return Map.copyOf(regions);
+    }
+
+    private static final class Entry {
+        final Map<String, String> regions;
+        final long loadedAt;
+
+        Entry(final Map<String, String> regions, final long loadedAt) {
+            this.regions = regions;
+            this.loadedAt = loadedAt;
+        }
+
+        boolean isExpired(final long now, final long ttl) {
+            return now - loadedAt >= ttl;
+        }
+    }
+}
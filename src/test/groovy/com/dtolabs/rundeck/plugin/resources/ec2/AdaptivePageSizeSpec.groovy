@@ -0,0 +1,50 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class AdaptivePageSizeSpec extends Specification {
+    def "size is fixed unless adaptive"() {
+        given:
+        def size = new AdaptivePageSize(100)
+
+        when:
+        size.onPage(TimeUnit.SECONDS.toNanos(10))
+        size.onThrottle()
+
+        then:
+        size.get() == 100
+    }
+
+    def "slow pages shrink and fast pages or throttling grow the size within bounds"() {
+        given:
+        def size = new AdaptivePageSize(100)
+        size.setAdaptive(true)
+
+        when:
+        size.onPage(TimeUnit.SECONDS.toNanos(10))
+
+        then:
+        size.get() == 75
+
+        when:
+        size.onThrottle()
+        size.onPage(TimeUnit.MILLISECONDS.toNanos(100))
+
+        then:
+        size.get() > 75
+
+        when:
+        50.times { size.onPage(TimeUnit.SECONDS.toNanos(10)) }
+
+        then:
+        size.get() == AdaptivePageSize.MIN_PAGE_SIZE
+
+        when:
+        50.times { size.onPage(TimeUnit.MILLISECONDS.toNanos(100)) }
+
+        then:
+        size.get() == AdaptivePageSize.MAX_PAGE_SIZE
+    }
+}
@@ -0,0 +1,225 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.core.interceptor.Context
+import software.amazon.awssdk.core.metrics.CoreMetric
+import software.amazon.awssdk.http.HttpMetric
+import software.amazon.awssdk.http.SdkHttpResponse
+import software.amazon.awssdk.metrics.MetricCollection
+import software.amazon.awssdk.metrics.MetricCollector
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class AdaptiveRateLimiterSpec extends Specification {
+    def "calls within the burst do not wait and later calls wait for tokens"() {
+        given:
+        def limiter = new AdaptiveRateLimiter(10)
+
+        when:
+        def waits = (1..12).collect { limiter.reserve() }
+
+        then:
+        waits.take(10).every { it == 0 }
+        waits[10] > 0
+        waits[11] > waits[10]
+    }
+
+    def "throttling halves the rate once per interval and successes raise it again"() {
+        given:
+        def limiter = new AdaptiveRateLimiter(20)
+
+        when:
+        limiter.onThrottle()
+        limiter.onThrottle()
+
+        then:
+        limiter.rate == 10
+        limiter.throttles == 2
+
+        when:
+        100.times { limiter.onSuccess() }
+
+        then:
+        limiter.rate > 10
+        limiter.rate <= 20
+    }
+
+    def "async callers are paced without blocking"() {
+        given:
+        def limiter = new AdaptiveRateLimiter(1)
+        limiter.reserve()
+
+        when:
+        def started = System.nanoTime()
+        def token = limiter.acquireAsync()
+
+        then:
+        !token.isDone()
+        System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(500)
+        token.get(5, TimeUnit.SECONDS) == null
+        limiter.waits == 1
+    }
+
+    def "only blocking clients wait for a token before each attempt"() {
+        given:
+        def limiter = new AdaptiveRateLimiter(1)
+        limiter.reserve()
+
+        when:
+        new RateLimitInterceptor(limiter, null, false).beforeTransmission(null, null)
+
+        then:
+        limiter.waits == 0
+
+        when:
+        new RateLimitInterceptor(limiter, null, true).beforeTransmission(null, null)
+
+        then:
+        limiter.waits == 1
+    }
+
+    def "only throttled attempts slow the limiter down"() {
+        given:
+        def limiter = new AdaptiveRateLimiter(20)
+        int throttled = 0
+        def interceptor = new RateLimitInterceptor(limiter, { throttled++ }, false)
+
+        when: "a 503 which is not throttling"
+        interceptor.afterTransmission(transmission(503), null)
+        interceptor.publish(apiCall([503: 'ServerError', 200: null]))
+
+        then:
+        limiter.rate == 20
+        limiter.throttles == 0
+        throttled == 0
+
+        when: "a 503 with a throttling error code"
+        interceptor.afterTransmission(transmission(503), null)
+        interceptor.publish(apiCall([503: SdkMetricsPublisher.THROTTLING, 200: null]))
+
+        then:
+        limiter.rate == 10
+        limiter.throttles == 1
+        throttled == 1
+    }
+
+    def "a 429 response is counted as throttled once"() {
+        given:
+        def limiter = new AdaptiveRateLimiter(20)
+        def interceptor = new RateLimitInterceptor(limiter, null, false)
+
+        when:
+        interceptor.afterTransmission(transmission(429), null)
+        interceptor.publish(apiCall([429: SdkMetricsPublisher.THROTTLING]))
+
+        then:
+        limiter.throttles == 1
+    }
+
+    def "rate never goes below the minimum"() {
+        given:
+        def limiter = new AdaptiveRateLimiter(0.1)
+
+        expect:
+        limiter.rate == AdaptiveRateLimiter.MIN_RATE
+    }
+
+    def "sources of the same account and region share a limiter but keep their own max rate"() {
+        when:
+        def first = AdaptiveRateLimiter.shared('account-spec', 'us-east-1', 20)
+        def second = AdaptiveRateLimiter.shared('account-spec', 'us-east-1', 5)
+        def other = AdaptiveRateLimiter.shared('account-spec', 'us-west-2', 20)
+
+        then:
+        first.shared.is(second.shared)
+        !first.shared.is(other.shared)
+        first.rate == 20
+        second.rate == 5
+        other.rate == 20
+
+        when: "a throttled response of one source slows the others down"
+        second.onThrottle()
+
+        then:
+        first.rate == 10
+        second.rate == 5
+        second.throttles == 1
+        first.throttles == 0
+
+        cleanup:
+        [first, second, other]*.release()
+    }
+
+    def "a source does not take more than its own max rate"() {
+        given:
+        def fast = AdaptiveRateLimiter.shared('account-own-rate', 'us-east-1', 20)
+        def slow = AdaptiveRateLimiter.shared('account-own-rate', 'us-east-1', 2)
+
+        when:
+        def slowWaits = (1..4).collect { slow.reserve() }
+        def fastWaits = (1..4).collect { fast.reserve() }
+
+        then:
+        slowWaits[0] == 0
+        slowWaits[2] > 0
+        fastWaits.every { it == 0 }
+
+        cleanup:
+        [fast, slow]*.release()
+    }
+
+    def "the shared limiter is removed when its last source is released"() {
+        given:
+        def before = AdaptiveRateLimiter.sharedCount()
+        def first = AdaptiveRateLimiter.shared('account-release', 'us-east-1', 20)
+        def second = AdaptiveRateLimiter.shared('account-release', 'us-east-1', 5)
+
+        expect:
+        AdaptiveRateLimiter.sharedCount() == before + 1
+
+        when:
+        first.release()
+
+        then: "the shared limiter allows the max rate of the remaining source"
+        AdaptiveRateLimiter.sharedCount() == before + 1
+        second.shared.rate == 5
+
+        when:
+        second.release()
+        second.release()
+
+        then:
+        AdaptiveRateLimiter.sharedCount() == before
+
+        when:
+        def third = AdaptiveRateLimiter.shared('account-release', 'us-east-1', 20)
+
+        then:
+        !third.shared.is(second.shared)
+        third.shared.rate == 20
+
+        cleanup:
+        third?.release()
+    }
+
+    private Context.AfterTransmission transmission(int status) {
+        Mock(Context.AfterTransmission) {
+            httpResponse() >> SdkHttpResponse.builder().statusCode(status).build()
+        }
+    }
+
+    /**
+     * @param attempts error type of each attempt by HTTP status, null if it succeeded
+     */
+    private static MetricCollection apiCall(Map<Integer, String> attempts) {
+        def collector = MetricCollector.create('ApiCall')
+        attempts.each { status, errorType ->
+            def attempt = collector.createChild('ApiCallAttempt')
+            attempt.reportMetric(HttpMetric.HTTP_STATUS_CODE, status)
+            if (null != errorType) {
+                attempt.reportMetric(CoreMetric.ERROR_TYPE, errorType)
+            }
+        }
+        collector.collect()
+    }
+}
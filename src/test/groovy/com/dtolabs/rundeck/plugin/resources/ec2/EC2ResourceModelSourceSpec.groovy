@@ -1,12 +1,25 @@
 package com.dtolabs.rundeck.plugin.resources.ec2
 
 import com.dtolabs.rundeck.core.common.Framework
+import com.dtolabs.rundeck.core.common.NodeEntryImpl
+import com.dtolabs.rundeck.core.common.NodeSetImpl
 import com.dtolabs.rundeck.core.common.IRundeckProject
 import com.dtolabs.rundeck.core.common.ProjectManager
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException
 import com.dtolabs.rundeck.core.storage.keys.KeyStorageTree
 import org.rundeck.app.spi.Services
 import org.rundeck.storage.api.StorageException
+import software.amazon.awssdk.regions.Region
+import software.amazon.awssdk.services.ec2.model.Instance
 import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.management.ObjectName
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 class EC2ResourceModelSourceSpec extends Specification {
     def "user configured access credentials prefer key storage"() {
@@ -77,6 +90,193 @@ class EC2ResourceModelSourceSpec extends Specification {
         StorageException ex = thrown()
         ex.message.contains("error accessing key storage at ${badPath}")
     }
+    def "a source failing validation is closed"() {
+        given: "an access key without a secret"
+        def config = createDefaultConfig()
+        config.setProperty(EC2ResourceModelSourceFactory.ACCESS_KEY, "accessKey")
+        config.setProperty(EC2ResourceModelSourceFactory.JMX_METRICS, "true")
+        def server = ManagementFactory.platformMBeanServer
+        def sources = new ObjectName(SourceMetrics.DOMAIN + ':type=EC2ResourceModelSource,*')
+        def before = server.queryNames(sources, null)
+
+        when:
+        ec2ResourceModelSource(Mock(Services), config)
+
+        then:
+        ConfigurationException ex = thrown()
+        ex.message.contains("secretKey is required")
+        server.queryNames(sources, null) == before
+    }
+
+    def "readers are not blocked by a slow refresh and share a single query"() {
+        given: "a source which has loaded nodes once"
+        def config = createDefaultConfig()
+        config.setProperty(EC2ResourceModelSourceFactory.ACCESS_KEY, "accessKey")
+        config.setProperty(EC2ResourceModelSourceFactory.SECRET_KEY, "secretKey")
+        config.setProperty(EC2ResourceModelSourceFactory.REFRESH_INTERVAL, "1")
+        EC2ResourceModelSource source = ec2ResourceModelSource(Mock(Services), config)
+        def queries = new AtomicInteger()
+        def release = new CountDownLatch(1)
+        source.mapper = Mock(InstanceToNodeMapper) {
+            performQuery(_) >> {
+                if (queries.incrementAndGet() > 1) {
+                    release.await(10, TimeUnit.SECONDS)
+                }
+                nodes("node" + queries.get())
+            }
+        }
+        def first = source.getNodes()
+        source.lastRefresh = 0
+
+        when: "many readers arrive while the second query is held"
+        def pool = Executors.newFixedThreadPool(16)
+        def results = (1..64).collect { pool.submit({ source.getNodes() } as java.util.concurrent.Callable) }
+        def read = results.collect { it.get(5, TimeUnit.SECONDS) }
+        def refreshed = source.refreshing.get()
+        release.countDown()
+        refreshed.get(5, TimeUnit.SECONDS)
+
+        then: "every reader got the previous nodes without waiting and only one query ran"
+        first.getNodeNames() == ['node1'] as Set
+        read.every { it.is(first) }
+        queries.get() == 2
+        source.getNodes().getNodeNames() == ['node2'] as Set
+
+        cleanup:
+        pool?.shutdownNow()
+        source?.close()
+    }
+
+    def "callers waiting for the first load share its result"() {
+        given:
+        def config = createDefaultConfig()
+        config.setProperty(EC2ResourceModelSourceFactory.ACCESS_KEY, "accessKey")
+        config.setProperty(EC2ResourceModelSourceFactory.SECRET_KEY, "secretKey")
+        EC2ResourceModelSource source = ec2ResourceModelSource(Mock(Services), config)
+        def queries = new AtomicInteger()
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        source.mapper = Mock(InstanceToNodeMapper) {
+            performQuery(_) >> {
+                queries.incrementAndGet()
+                started.countDown()
+                release.await(10, TimeUnit.SECONDS)
+                nodes("node1")
+            }
+        }
+
+        when:
+        def pool = Executors.newFixedThreadPool(8)
+        def results = (1..8).collect { pool.submit({ source.getNodes() } as java.util.concurrent.Callable) }
+        started.await(5, TimeUnit.SECONDS)
+        release.countDown()
+        def read = results.collect { it.get(5, TimeUnit.SECONDS) }
+
+        then:
+        queries.get() == 1
+        read.every { it.getNodeNames() == ['node1'] as Set }
+        read.collect { System.identityHashCode(it) }.toSet().size() == 1
+
+        cleanup:
+        pool?.shutdownNow()
+        source?.close()
+    }
+
+    def "a source assuming a role is created without calling STS"() {
+        given:
+        def config = createDefaultConfig()
+        config.setProperty(EC2ResourceModelSourceFactory.ROLE_ARN_COMBINED_WITH_EXT_ID, "arn:aws:iam::210987654321:role/external")
+        config.setProperty(EC2ResourceModelSourceFactory.EXTERNAL_ID, "external-id")
+
+        when:
+        EC2ResourceModelSource source = ec2ResourceModelSource(Mock(Services), config)
+
+        then:
+        source.createCredentials() == null
+        source.roleCredentials != null
+
+        cleanup:
+        source?.close()
+    }
+
+    @Unroll
+    def "sources with the same role ARN and a different #credential do not share inventory"() {
+        given:
+        def inventory = new SharedInventory()
+        def configs = [firstValue, secondValue].collect { value ->
+            def config = createDefaultConfig()
+            config.setProperty(EC2ResourceModelSourceFactory.SHARED_INVENTORY, "true")
+            config.setProperty(EC2ResourceModelSourceFactory.ROLE_ARN_COMBINED_WITH_EXT_ID, "arn:aws:iam::210987654321:role/external")
+            config.setProperty(EC2ResourceModelSourceFactory.EXTERNAL_ID, "external-id")
+            if (credential == 'secret key') {
+                config.setProperty(EC2ResourceModelSourceFactory.ACCESS_KEY, "accessKey")
+            }
+            config.setProperty(property, value)
+            config
+        }
+        def sources = configs.collect { ec2ResourceModelSource(Mock(Services), it) }
+        def same = ec2ResourceModelSource(Mock(Services), configs[0])
+
+        when:
+        def first = instances(inventory, sources[0], 'i-first')
+        def second = instances(inventory, sources[1], 'i-second')
+        def repeated = instances(inventory, same, 'i-repeated')
+
+        then:
+        sources[0].accountIdentity != sources[1].accountIdentity
+        first*.instanceId() == ['i-first']
+        second*.instanceId() == ['i-second']
+        repeated*.instanceId() == ['i-first']
+
+        cleanup:
+        sources*.close()
+        same?.close()
+
+        where:
+        credential    | property                                     | firstValue    | secondValue
+        'external ID' | EC2ResourceModelSourceFactory.EXTERNAL_ID    | 'external-id' | 'other-id'
+        'secret key'  | EC2ResourceModelSourceFactory.SECRET_KEY     | 'secretKey'   | 'otherSecret'
+    }
+
+    @Unroll
+    def "STS region for region #region and endpoint #endpoint is #expected"() {
+        expect:
+        AssumeRoleCredentials.stsRegion(region, endpoint, Region.US_EAST_1) == expected
+
+        where:
+        region      | endpoint                                                                   | expected
+        'eu-west-1' | null                                                                       | Region.EU_WEST_1
+        null        | 'https://ec2.ap-south-1.amazonaws.com, https://ec2.us-west-2.amazonaws.com' | Region.AP_SOUTH_1
+        null        | 'ALL_REGIONS'                                                              | Region.US_EAST_1
+        null        | 'https://ec2.example.com'                                                  | Region.US_EAST_1
+        null        | null                                                                       | Region.US_EAST_1
+    }
+
+    def "HTTP connection pool settings are read from the configuration"() {
+        given:
+        def config = createDefaultConfig()
+        config.setProperty(EC2ResourceModelSourceFactory.ACCESS_KEY, "accessKey")
+        config.setProperty(EC2ResourceModelSourceFactory.SECRET_KEY, "secretKey")
+        config.setProperty(EC2ResourceModelSourceFactory.HTTP_MAX_CONNECTIONS, "120")
+        config.setProperty(EC2ResourceModelSourceFactory.HTTP_CONNECTION_TTL, "300")
+        config.setProperty(EC2ResourceModelSourceFactory.HTTP_CONNECTION_MAX_IDLE, "bad")
+        config.setProperty(EC2ResourceModelSourceFactory.HTTP_TCP_KEEP_ALIVE, "true")
+
+        when:
+        EC2ResourceModelSource source = ec2ResourceModelSource(Mock(Services), config)
+
+        then:
+        source.httpMaxConnections == 120
+        source.httpConnectionTtlSecs == 300
+        source.httpConnectionMaxIdleSecs == EC2ResourceModelSource.DEFAULT_HTTP_CONNECTION_MAX_IDLE_SECONDS
+        source.httpTcpKeepAlive
+        source.httpIdleConnectionReaper
+        !source.prewarmConnections
+
+        cleanup:
+        source?.close()
+    }
+
     //
     // Private Methods
     //
@@ -120,4 +320,19 @@ class EC2ResourceModelSourceSpec extends Specification {
         }
 
     }
+
+    private static List<Ec2Instance> instances(SharedInventory inventory, EC2ResourceModelSource source, String id) {
+        def projection = source.mapper.mappingPlan.projection()
+        def registered = inventory.register(source.accountIdentity, 60000, projection)
+        inventory.instances(registered, 'default', [], projection) { it ->
+            [it.project(Instance.builder().instanceId(id).build())]
+        }
+    }
+
+    private static def nodes(String name) {
+        def nodes = new NodeSetImpl()
+        def node = new NodeEntryImpl(name)
+        nodes.putNode(node)
+        return nodes
+    }
 }
@@ -0,0 +1,45 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials
+import software.amazon.awssdk.http.apache.ApacheHttpClient
+import software.amazon.awssdk.regions.Region
+import spock.lang.Specification
+
+class EC2SupplierImplSpec extends Specification {
+    def "clients are reused per region and endpoint"() {
+        given:
+        def httpClient = ApacheHttpClient.builder().build()
+        def supplier = new EC2SupplierImpl(AwsBasicCredentials.create('a', 'b'), httpClient, Region.US_EAST_1)
+
+        when:
+        def east = supplier.getEC2ForRegion('us-east-1')
+        def west = supplier.getEC2ForRegion('us-west-2')
+        def endpoint = supplier.getEC2ForEndpoint('https://ec2.us-west-1.amazonaws.com')
+
+        then:
+        supplier.getEC2ForRegion('us-east-1').is(east)
+        supplier.getEC2ForDefaultRegion().is(east)
+        supplier.getEC2ForRegion('us-west-2').is(west)
+        supplier.getEC2ForEndpoint('https://ec2.us-west-1.amazonaws.com').is(endpoint)
+        !east.is(west)
+        supplier.clientsBuilt == 3
+        supplier.clientsReused == 4
+
+        cleanup:
+        supplier.close()
+        httpClient.close()
+    }
+
+    def "closed supplier does not build clients"() {
+        given:
+        def supplier = new EC2SupplierImpl(AwsBasicCredentials.create('a', 'b'), null, Region.US_EAST_1)
+        supplier.getEC2ForRegion('us-east-1')
+
+        when:
+        supplier.close()
+        supplier.getEC2ForRegion('us-east-1')
+
+        then:
+        thrown(IllegalStateException)
+    }
+}
@@ -0,0 +1,448 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import groovy.xml.XmlUtil
+import software.amazon.awssdk.services.ec2.model.Instance
+import software.amazon.awssdk.services.ec2.model.InstanceState
+import software.amazon.awssdk.services.ec2.model.InstanceStateName
+import software.amazon.awssdk.services.ec2.model.Placement
+import software.amazon.awssdk.services.ec2.model.Tag
+
+import java.nio.charset.StandardCharsets
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A local stand-in for the EC2 API. Each region is served on its own loopback port, so its endpoint
+ * can be passed to {@link EC2SupplierImpl#getEC2ForEndpoint(String)}. It speaks enough of the EC2
+ * Query protocol to answer DescribeInstances (with MaxResults, NextToken, instance IDs and the
+ * filters in {@link #FILTERS}, matched by its own simple matcher), DescribeImages, DescribeRegions
+ * and DescribeAvailabilityZones from generated fleets.
+ * <p>
+ * Each region can be given a latency added to every call, a throttling rate or a number of calls
+ * to throttle, and can hang: calls are not answered until the hang is released or the stand-in is
+ * closed.
+ * </p>
+ */
+class Ec2StandIn implements Closeable {
+    static final String NAMESPACE = 'http://ec2.amazonaws.com/doc/2016-11-15/'
+    static final long SEED = 0x45433253L
+    static final Set<String> FILTERS = ['instance-state-name', 'instance-id', 'instance-type', 'image-id',
+                                        'tag-key', 'tag-value'] as Set
+
+    private final Map<String, RegionServer> servers = new LinkedHashMap<>()
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory('ec2-stand-in'))
+    private final CountDownLatch closed = new CountDownLatch(1)
+
+    /**
+     * Start serving the regions, each with an empty fleet
+     */
+    Ec2StandIn(List<String> regions) {
+        regions.each { region ->
+            def server = HttpServer.create(new InetSocketAddress(InetAddress.loopbackAddress, 0), 64)
+            def regionServer = new RegionServer(region, server)
+            server.createContext('/') { exchange -> regionServer.handle(exchange) }
+            server.executor = executor
+            server.start()
+            servers.put(region, regionServer)
+        }
+    }
+
+    /**
+     * Replace the fleet of a region with generated instances
+     *
+     * @param count    number of instances
+     * @param tagCount tags of each instance, at least Name and env
+     */
+    Ec2StandIn fleet(String region, int count, int tagCount = 8) {
+        def random = new Random(SEED ^ region.hashCode())
+        server(region).instances = (0..<count).collect { generate(region, it, tagCount, random) }
+        this
+    }
+
+    /**
+     * Add a delay to every call of the region
+     */
+    Ec2StandIn latency(String region, long millis) {
+        server(region).latencyMillis = millis
+        this
+    }
+
+    /**
+     * Answer a fraction of the calls of the region with a RequestLimitExceeded error
+     *
+     * @param rate fraction of calls to throttle, or 1 to throttle every call
+     */
+    Ec2StandIn throttle(String region, double rate) {
+        server(region).throttleRate = rate
+        this
+    }
+
+    /**
+     * Answer the next calls of the region with a RequestLimitExceeded error
+     */
+    Ec2StandIn throttleNext(String region, int calls) {
+        server(region).throttleNext.set(calls)
+        this
+    }
+
+    /**
+     * Hold the calls of the region without answering, or release them
+     */
+    Ec2StandIn hang(String region, boolean hang = true) {
+        def server = server(region)
+        if (hang) {
+            server.hung = new CountDownLatch(1)
+        } else {
+            server.hung?.countDown()
+            server.hung = null
+        }
+        this
+    }
+
+    /**
+     * Return the endpoint URL of the region
+     */
+    String endpoint(String region) {
+        "http://127.0.0.1:${server(region).server.address.port}".toString()
+    }
+
+    /**
+     * Return the comma-separated endpoints of all regions
+     */
+    String getEndpoints() {
+        servers.keySet().collect { endpoint(it) }.join(',')
+    }
+
+    List<Instance> instances(String region) {
+        server(region).instances
+    }
+
+    /**
+     * Return the number of calls received for the action in the region, including throttled calls
+     */
+    int calls(String region, String action) {
+        server(region).calls.get(action)?.get() ?: 0
+    }
+
+    /**
+     * Return the number of calls received for the action in all regions
+     */
+    int calls(String action) {
+        servers.keySet().sum { calls(it, action) } as int
+    }
+
+    int throttled(String region) {
+        server(region).throttled.get()
+    }
+
+    /**
+     * Forget the call counts of all regions
+     */
+    void resetCalls() {
+        servers.values().each {
+            it.calls.clear()
+            it.throttled.set(0)
+        }
+    }
+
+    @Override
+    void close() {
+        closed.countDown()
+        servers.values().each { it.server.stop(0) }
+        executor.shutdownNow()
+    }
+
+    private RegionServer server(String region) {
+        def server = servers.get(region)
+        if (null == server) {
+            throw new IllegalArgumentException("Unknown region: " + region)
+        }
+        server
+    }
+
+    static Instance generate(String region, int i, int tagCount, Random random) {
+        def ip = "10.${i >> 16 & 255}.${i >> 8 & 255}.${i & 255}".toString()
+        def env = ['prod', 'staging', 'dev'][random.nextInt(3)]
+        def tags = [Tag.builder().key('Name').value("${region}-node-${i}".toString()).build(),
+                    Tag.builder().key('env').value(env).build()]
+        (2..<Math.max(2, tagCount)).each {
+            tags << Tag.builder().key("tag${it}".toString()).value("value-${random.nextInt(100)}".toString()).build()
+        }
+        Instance.builder()
+                .instanceId(String.format('i-%08x%09x', region.hashCode() & 0xFFFFFFFF, i))
+                .imageId(String.format('ami-%08x', random.nextInt(20)))
+                .instanceType(['t3.micro', 'm5.large', 'c5.xlarge'][random.nextInt(3)])
+                .architecture('x86_64')
+                .keyName('deploy')
+                .launchTime(Instant.ofEpochSecond(1_600_000_000L + random.nextInt(100_000_000)))
+                .privateIpAddress(ip)
+                .privateDnsName("ip-${ip.replace('.', '-')}.ec2.internal".toString())
+                .publicDnsName('')
+                .vpcId('vpc-1')
+                .subnetId("subnet-${random.nextInt(6)}".toString())
+                .placement(Placement.builder().availabilityZone(region + 'abc'[random.nextInt(3)]).build())
+                .state(InstanceState.builder()
+                               .name(random.nextInt(10) == 0 ? InstanceStateName.STOPPED : InstanceStateName.RUNNING)
+                               .build())
+                .tags(tags)
+                .build()
+    }
+
+    private class RegionServer {
+        final String region
+        final HttpServer server
+        final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>()
+        final AtomicInteger throttled = new AtomicInteger()
+        final AtomicInteger throttleNext = new AtomicInteger()
+        final Random random = new Random(SEED)
+        volatile List<Instance> instances = []
+        volatile long latencyMillis
+        volatile double throttleRate
+        volatile CountDownLatch hung
+
+        RegionServer(String region, HttpServer server) {
+            this.region = region
+            this.server = server
+        }
+
+        void handle(HttpExchange exchange) {
+            try {
+                def params = parse(exchange.requestBody.getText(StandardCharsets.UTF_8.name()))
+                def action = params.get('Action')
+                calls.computeIfAbsent(String.valueOf(action)) { new AtomicInteger() }.incrementAndGet()
+                def hang = hung
+                if (null != hang) {
+                    while (hang.count > 0 && !closed.await(100, TimeUnit.MILLISECONDS)) {
+                        // held until released or closed
+                    }
+                }
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis)
+                }
+                if (throttleNext.getAndUpdate { Math.max(0, it - 1) } > 0
+                        || throttleRate > 0 && nextDouble() < throttleRate) {
+                    throttled.incrementAndGet()
+                    respond(exchange, 503, error('RequestLimitExceeded', 'Request limit exceeded.'))
+                    return
+                }
+                switch (action) {
+                    case 'DescribeInstances':
+                        def unsupported = filters(params).keySet().find { !supported(it) }
+                        if (null != unsupported) {
+                            respond(exchange, 400, error('InvalidParameterValue', "The filter '${unsupported}' is invalid"))
+                        } else {
+                            respond(exchange, 200, describeInstances(params))
+                        }
+                        break
+                    case 'DescribeImages':
+                        respond(exchange, 200, describeImages(params))
+                        break
+                    case 'DescribeRegions':
+                        respond(exchange, 200, describeRegions())
+                        break
+                    case 'DescribeAvailabilityZones':
+                        respond(exchange, 200, describeAvailabilityZones())
+                        break
+                    default:
+                        respond(exchange, 400, error('InvalidAction', "The action ${action} is not valid for this web service."))
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt()
+            } catch (IOException ignored) {
+                // client closed the connection
+            } finally {
+                exchange.close()
+            }
+        }
+
+        private synchronized double nextDouble() {
+            random.nextDouble()
+        }
+
+        String describeInstances(Map<String, String> params) {
+            def ids = indexed(params, 'InstanceId') as Set
+            def wanted = filters(params)
+            def selected = instances.findAll { inst -> wanted.every { name, values -> matches(inst, name, values) } }
+            if (ids) {
+                selected = selected.findAll { it.instanceId() in ids }
+            }
+            int offset = params.get('NextToken') ? params.get('NextToken') as int : 0
+            int max = params.get('MaxResults') ? params.get('MaxResults') as int : 1000
+            def page = selected.subList(Math.min(offset, selected.size()), Math.min(offset + max, selected.size()))
+            def xml = new StringBuilder()
+            xml << '<reservationSet>'
+            page.each { inst ->
+                xml << '<item>'
+                element(xml, 'reservationId', 'r-' + inst.instanceId().substring(2))
+                element(xml, 'ownerId', '123456789012')
+                xml << '<instancesSet><item>'
+                instance(xml, inst)
+                xml << '</item></instancesSet></item>'
+            }
+            xml << '</reservationSet>'
+            if (offset + max < selected.size()) {
+                element(xml, 'nextToken', String.valueOf(offset + max))
+            }
+            response('DescribeInstancesResponse', xml)
+        }
+
+        private void instance(StringBuilder xml, Instance inst) {
+            element(xml, 'instanceId', inst.instanceId())
+            element(xml, 'imageId', inst.imageId())
+            xml << '<instanceState>'
+            element(xml, 'code', inst.state().name() == InstanceStateName.RUNNING ? '16' : '80')
+            element(xml, 'name', inst.state().nameAsString())
+            xml << '</instanceState>'
+            element(xml, 'privateDnsName', inst.privateDnsName())
+            element(xml, 'dnsName', inst.publicDnsName())
+            element(xml, 'keyName', inst.keyName())
+            element(xml, 'instanceType', inst.instanceTypeAsString())
+            element(xml, 'launchTime', inst.launchTime()?.toString())
+            xml << '<placement>'
+            element(xml, 'availabilityZone', inst.placement().availabilityZone())
+            element(xml, 'tenancy', 'default')
+            xml << '</placement>'
+            element(xml, 'subnetId', inst.subnetId())
+            element(xml, 'vpcId', inst.vpcId())
+            element(xml, 'privateIpAddress', inst.privateIpAddress())
+            element(xml, 'architecture', inst.architectureAsString())
+            xml << '<tagSet>'
+            inst.tags().each { tag ->
+                xml << '<item>'
+                element(xml, 'key', tag.key())
+                element(xml, 'value', tag.value())
+                xml << '</item>'
+            }
+            xml << '</tagSet>'
+        }
+
+        String describeImages(Map<String, String> params) {
+            def xml = new StringBuilder('<imagesSet>')
+            indexed(params, 'ImageId').each { imageId ->
+                if (instances.any { it.imageId() == imageId }) {
+                    xml << '<item>'
+                    element(xml, 'imageId', imageId)
+                    element(xml, 'name', "image-${imageId}".toString())
+                    element(xml, 'imageState', 'available')
+                    xml << '</item>'
+                }
+            }
+            xml << '</imagesSet>'
+            response('DescribeImagesResponse', xml)
+        }
+
+        String describeRegions() {
+            def xml = new StringBuilder('<regionInfo>')
+            servers.keySet().each { name ->
+                xml << '<item>'
+                element(xml, 'regionName', name)
+                element(xml, 'regionEndpoint', endpoint(name))
+                element(xml, 'optInStatus', 'opt-in-not-required')
+                xml << '</item>'
+            }
+            xml << '</regionInfo>'
+            response('DescribeRegionsResponse', xml)
+        }
+
+        String describeAvailabilityZones() {
+            def xml = new StringBuilder('<availabilityZoneInfo>')
+            ['a', 'b', 'c'].each { suffix ->
+                xml << '<item>'
+                element(xml, 'zoneName', region + suffix)
+                element(xml, 'zoneState', 'available')
+                element(xml, 'regionName', region)
+                xml << '</item>'
+            }
+            xml << '</availabilityZoneInfo>'
+            response('DescribeAvailabilityZonesResponse', xml)
+        }
+    }
+
+    /**
+     * Return the values of each filter, by filter name
+     */
+    private static Map<String, List<String>> filters(Map<String, String> params) {
+        def filters = [:]
+        for (int i = 1; params.containsKey("Filter.${i}.Name".toString()); i++) {
+            filters[params.get("Filter.${i}.Name".toString())] = indexed(params, "Filter.${i}.Value".toString())
+        }
+        filters
+    }
+
+    private static boolean supported(String name) {
+        name in FILTERS || name.startsWith('tag:')
+    }
+
+    /**
+     * Match an instance against one filter, by exact value: an instance matches if any of its
+     * values for the filter name is one of the filter values
+     */
+    private static boolean matches(Instance inst, String name, List<String> values) {
+        switch (name) {
+            case 'instance-state-name':
+                return inst.state().nameAsString() in values
+            case 'instance-id':
+                return inst.instanceId() in values
+            case 'instance-type':
+                return inst.instanceTypeAsString() in values
+            case 'image-id':
+                return inst.imageId() in values
+            case 'tag-key':
+                return inst.tags().any { it.key() in values }
+            case 'tag-value':
+                return inst.tags().any { it.value() in values }
+            default:
+                def key = name.substring('tag:'.length())
+                return inst.tags().any { it.key() == key && it.value() in values }
+        }
+    }
+
+    /**
+     * Return the values of a list parameter: name.1, name.2, ...
+     */
+    private static List<String> indexed(Map<String, String> params, String name) {
+        def values = []
+        for (int i = 1; params.containsKey("${name}.${i}".toString()); i++) {
+            values << params.get("${name}.${i}".toString())
+        }
+        values
+    }
+
+    private static Map<String, String> parse(String body) {
+        def params = [:]
+        body.split('&').findAll().each { pair ->
+            def kv = pair.split('=', 2)
+            params.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
+                       kv.length > 1 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : '')
+        }
+        params
+    }
+
+    private static void element(StringBuilder xml, String name, String value) {
+        if (null != value) {
+            xml << '<' << name << '>' << XmlUtil.escapeXml(value) << '</' << name << '>'
+        }
+    }
+
+    private static String response(String name, CharSequence body) {
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?><${name} xmlns=\"${NAMESPACE}\"><requestId>${UUID.randomUUID()}</requestId>${body}</${name}>"
+    }
+
+    private static String error(String code, String message) {
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response><Errors><Error><Code>${code}</Code><Message>${XmlUtil.escapeXml(message)}</Message></Error></Errors><RequestID>${UUID.randomUUID()}</RequestID></Response>"
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) {
+        def bytes = body.getBytes(StandardCharsets.UTF_8)
+        exchange.responseHeaders.set('Content-Type', 'text/xml;charset=UTF-8')
+        exchange.sendResponseHeaders(status, bytes.length)
+        exchange.responseBody.withStream { it.write(bytes) }
+    }
+}
@@ -0,0 +1,85 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials
+import software.amazon.awssdk.regions.Region
+import software.amazon.awssdk.services.ec2.model.Instance
+import software.amazon.awssdk.services.ec2.model.InstanceStateName
+import spock.lang.Specification
+
+/**
+ * Queries the local EC2 stand-in end to end through the SDK clients
+ */
+class Ec2StandInSpec extends Specification {
+    static final List<String> REGIONS = ['us-east-1', 'us-west-2', 'eu-west-1']
+
+    Ec2StandIn standIn
+    EC2SupplierImpl supplier
+    InstanceToNodeMapper mapper
+
+    def setup() {
+        standIn = new Ec2StandIn(REGIONS)
+        REGIONS.each { standIn.fleet(it, 250) }
+        supplier = new EC2SupplierImpl(AwsBasicCredentials.create('AKIDSTANDIN', 'secret'), null, Region.US_EAST_1)
+        mapper = new InstanceToNodeMapper(supplier, EC2ResourceModelSource.defaultMapping, 100)
+        mapper.endpoint = standIn.endpoints
+    }
+
+    def cleanup() {
+        mapper.shutdown()
+        supplier.close()
+        standIn.close()
+    }
+
+    static int running(List<Instance> instances) {
+        instances.count { it.state().name() == InstanceStateName.RUNNING }
+    }
+
+    def "all pages of every region are mapped"() {
+        when:
+        def nodes = mapper.performQuery(false)
+
+        then:
+        nodes.nodeNames.size() == REGIONS.sum { running(standIn.instances(it)) }
+        REGIONS.every { standIn.calls(it, 'DescribeInstances') == Math.ceil(running(standIn.instances(it)) / 100) }
+        REGIONS.every { standIn.calls(it, 'DescribeAvailabilityZones') == 1 }
+        nodes.nodes.findAll { it.nodename.startsWith('us-west-2-') }*.attributes*.region as Set == ['us-west-2'] as Set
+    }
+
+    def "filters are evaluated by the stand-in"() {
+        given:
+        mapper.filterParams = ['tag:env=prod']
+
+        when:
+        def nodes = mapper.performQuery(true)
+
+        then:
+        nodes.nodeNames.size() == REGIONS.sum { region ->
+            running(standIn.instances(region).findAll { it.tags().find { it.key() == 'env' }.value() == 'prod' })
+        }
+    }
+
+    def "throttled calls are retried"() {
+        given:
+        standIn.throttleNext('us-east-1', 2)
+
+        when:
+        def nodes = mapper.performQuery(false)
+
+        then:
+        nodes.nodeNames.size() == REGIONS.sum { running(standIn.instances(it)) }
+        standIn.throttled('us-east-1') == 2
+    }
+
+    def "a hung region fails while the other regions are mapped"() {
+        given:
+        standIn.hang('eu-west-1')
+        mapper.regionTimeoutMillis = 1000
+
+        when:
+        def nodes = mapper.performQuery(true)
+
+        then:
+        nodes.nodeNames.size() == running(standIn.instances('us-east-1')) + running(standIn.instances('us-west-2'))
+        (nodes as RegionalNodeSet).failedRegions == [standIn.endpoint('eu-west-1')]
+    }
+}
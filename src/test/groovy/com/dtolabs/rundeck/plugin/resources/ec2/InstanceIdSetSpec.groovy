@@ -0,0 +1,53 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.services.ec2.model.Instance
+import software.amazon.awssdk.services.ec2.model.Tag
+import spock.lang.Specification
+
+class InstanceIdSetSpec extends Specification {
+    def "instances are identified by instance id"() {
+        given:
+        def a = Ec2Instance.builder(Instance.builder().instanceId('i-1').build())
+        def b = Ec2Instance.builder(Instance.builder().instanceId('i-1')
+                                            .tags(Tag.builder().key('Name').value('x').build())
+                                            .build())
+
+        expect:
+        a == b
+        a.hashCode() == b.hashCode()
+        a != Ec2Instance.builder(Instance.builder().instanceId('i-2').build())
+    }
+
+    def "set keeps the first instance for each id and grows past its expected size"() {
+        given:
+        def set = new InstanceIdSet(2)
+        def first = Ec2Instance.builder(Instance.builder().instanceId('i-0').architecture('first').build())
+
+        when:
+        set.add(first)
+        def added = (0..<100).collect { set.add(Ec2Instance.builder(Instance.builder().instanceId("i-$it".toString()).build())) }
+
+        then:
+        set.size() == 100
+        !added[0]
+        added[1..-1].every()
+        set.find { it.instanceId() == 'i-0' }.is(first)
+        set.collect { it.instanceId() } as Set == (0..<100).collect { "i-$it".toString() } as Set
+        set.contains(Ec2Instance.builder(Instance.builder().instanceId('i-42').build()))
+        !set.contains(Ec2Instance.builder(Instance.builder().instanceId('i-100').build()))
+    }
+
+    def "same instance from overlapping endpoints is mapped once"() {
+        given:
+        def generation = new NodeGeneration(MappingPlan.compile(EC2ResourceModelSource.defaultMapping), null)
+        def instance = Instance.builder().instanceId('i-1').build()
+
+        when:
+        generation.addAll([Ec2Instance.builder(instance)])
+        generation.addAll([Ec2Instance.builder(instance)])
+
+        then:
+        generation.nodeSet.nodeNames as List == ['i-1']
+        generation.remapped == 1
+    }
+}
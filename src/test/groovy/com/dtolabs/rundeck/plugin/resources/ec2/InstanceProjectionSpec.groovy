@@ -0,0 +1,177 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.services.ec2.model.BlockDeviceMapping
+import software.amazon.awssdk.services.ec2.model.EbsInstanceBlockDevice
+import software.amazon.awssdk.services.ec2.model.GroupIdentifier
+import software.amazon.awssdk.services.ec2.model.IamInstanceProfile
+import software.amazon.awssdk.services.ec2.model.Instance
+import software.amazon.awssdk.services.ec2.model.InstanceMetadataOptionsResponse
+import software.amazon.awssdk.services.ec2.model.InstanceNetworkInterface
+import software.amazon.awssdk.services.ec2.model.InstancePrivateIpAddress
+import software.amazon.awssdk.services.ec2.model.InstanceState
+import software.amazon.awssdk.services.ec2.model.InstanceStateName
+import software.amazon.awssdk.services.ec2.model.Placement
+import software.amazon.awssdk.services.ec2.model.Tag
+import spock.lang.Requires
+import spock.lang.Specification
+
+import java.time.Instant
+
+class InstanceProjectionSpec extends Specification {
+    static final int FLEET_SIZE = 50000
+
+    def "projected instances map to the same nodes as full instances"() {
+        given:
+        def plan = MappingPlan.compile(EC2ResourceModelSource.defaultMapping)
+        def instance = mkInstance(1)
+
+        when:
+        def projected = plan.projection().project(instance)
+        def full = Ec2Instance.builder(instance)
+
+        then:
+        projected.isProjected()
+        projected.instance() == null
+        projected.instanceId() == 'i-000000001'
+        projected.imageId() == 'ami-00000001'
+        projected.availabilityZone() == 'us-east-1a'
+        plan.map(projected).getAttributes() == plan.map(full).getAttributes()
+        plan.map(projected).getTags() == plan.map(full).getTags()
+        plan.fingerprint(projected) == plan.fingerprint(full)
+    }
+
+    def "only the tags read by the mapping are projected"() {
+        given:
+        def mapping = new Properties()
+        mapping.put('nodename.selector', 'tags/Name')
+        mapping.put('env.selector', 'tags/env')
+        def plan = MappingPlan.compile(mapping)
+
+        when:
+        def projected = plan.projection().project(mkInstance(1))
+
+        then:
+        projected.tags() == [Name: 'node-1', env: 'prod']
+    }
+
+    def "all tags are projected when the tags are copied to the attributes"() {
+        given:
+        def mapping = new Properties()
+        mapping.put('attributes.selector', 'tags/*')
+        def plan = MappingPlan.compile(mapping)
+
+        expect:
+        plan.projection().project(mkInstance(1)).tags().size() == 10
+    }
+
+    def "a property outside the projection is reported"() {
+        given:
+        def mapping = new Properties()
+        mapping.put('nodename.selector', 'instanceId')
+        def projected = MappingPlan.compile(mapping).projection().project(mkInstance(1))
+
+        when:
+        PropertyAccessor.forPath('vpcId').resolve(projected)
+
+        then:
+        thrown(InstanceToNodeMapper.GeneratorException)
+    }
+
+    /**
+     * Run with ./gradlew heapBenchmark
+     */
+    @Requires({ Boolean.getBoolean('ec2.heapBenchmark') })
+    def "heap retained per instance for a fleet of 50k instances"() {
+        given:
+        def plan = MappingPlan.compile(EC2ResourceModelSource.defaultMapping)
+
+        when:
+        long before = usedHeap()
+        List<Ec2Instance> full = (1..FLEET_SIZE).collect { Ec2Instance.builder(mkInstance(it)) }
+        long fullBytes = usedHeap() - before
+        int fullCount = full.size()
+        full = null
+
+        before = usedHeap()
+        List<Ec2Instance> projected = (1..FLEET_SIZE).collect { plan.projection().project(mkInstance(it)) }
+        long projectedBytes = usedHeap() - before
+        int projectedCount = projected.size()
+        projected = null
+
+        println "Full SDK instances:  ${(fullBytes / fullCount) as long} bytes per instance, ${fullBytes >> 20} MB for ${fullCount}"
+        println "Projected instances: ${(projectedBytes / projectedCount) as long} bytes per instance, ${projectedBytes >> 20} MB for ${projectedCount}"
+
+        then:
+        projectedBytes * 2 < fullBytes
+    }
+
+    private static long usedHeap() {
+        def runtime = Runtime.getRuntime()
+        5.times {
+            System.gc()
+            Thread.sleep(100)
+        }
+        runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    /**
+     * An instance with the nested structures DescribeInstances returns for a typical VPC instance
+     */
+    static Instance mkInstance(int i) {
+        def id = String.format('%09d', i)
+        Instance.builder()
+                .instanceId("i-${id}".toString())
+                .imageId(String.format('ami-%08d', i % 50))
+                .instanceType('m5.large')
+                .architecture('x86_64')
+                .keyName('deploy')
+                .launchTime(Instant.ofEpochSecond(1_600_000_000L + i))
+                .privateIpAddress("10.${(i >> 16) & 255}.${(i >> 8) & 255}.${i & 255}".toString())
+                .privateDnsName("ip-10-${(i >> 16) & 255}-${(i >> 8) & 255}-${i & 255}.ec2.internal".toString())
+                .publicDnsName('')
+                .vpcId('vpc-0abc')
+                .subnetId("subnet-${i % 6}".toString())
+                .placement(Placement.builder().availabilityZone('us-east-1a').tenancy('default').build())
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).code(16).build())
+                .iamInstanceProfile(IamInstanceProfile.builder()
+                                            .arn('arn:aws:iam::123456789012:instance-profile/app')
+                                            .id("AIPA${id}".toString())
+                                            .build())
+                .metadataOptions(InstanceMetadataOptionsResponse.builder()
+                                         .httpTokens('required')
+                                         .httpEndpoint('enabled')
+                                         .httpPutResponseHopLimit(2)
+                                         .build())
+                .securityGroups(
+                        GroupIdentifier.builder().groupId('sg-0001').groupName('app').build(),
+                        GroupIdentifier.builder().groupId('sg-0002').groupName('ssh').build()
+                )
+                .blockDeviceMappings((0..<2).collect { d ->
+                    BlockDeviceMapping.builder()
+                            .deviceName("/dev/xvd${(char) ('a' as char) + d}".toString())
+                            .ebs(EbsInstanceBlockDevice.builder()
+                                         .volumeId("vol-${id}${d}".toString())
+                                         .status('attached')
+                                         .attachTime(Instant.ofEpochSecond(1_600_000_000L + i))
+                                         .deleteOnTermination(true)
+                                         .build())
+                            .build()
+                })
+                .networkInterfaces(InstanceNetworkInterface.builder()
+                                           .networkInterfaceId("eni-${id}".toString())
+                                           .macAddress("02:00:00:${id.substring(3, 5)}:${id.substring(5, 7)}:${id.substring(7)}".toString())
+                                           .privateIpAddress("10.${(i >> 16) & 255}.${(i >> 8) & 255}.${i & 255}".toString())
+                                           .subnetId("subnet-${i % 6}".toString())
+                                           .vpcId('vpc-0abc')
+                                           .groups(GroupIdentifier.builder().groupId('sg-0001').groupName('app').build())
+                                           .privateIpAddresses(InstancePrivateIpAddress.builder()
+                                                                       .primary(true)
+                                                                       .privateIpAddress("10.${(i >> 16) & 255}.${(i >> 8) & 255}.${i & 255}".toString())
+                                                                       .build())
+                                           .build())
+                .tags((0..<8).collect { t -> Tag.builder().key("tag${t}".toString()).value("value-${t}-${i % 100}".toString()).build() }
+                              + [Tag.builder().key('Name').value("node-${i}".toString()).build(),
+                                 Tag.builder().key('env').value('prod').build()])
+                .build()
+    }
+}
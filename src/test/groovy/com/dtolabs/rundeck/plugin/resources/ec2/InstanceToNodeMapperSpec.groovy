@@ -1,6 +1,7 @@
 package com.dtolabs.rundeck.plugin.resources.ec2
 
 
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient
 import software.amazon.awssdk.services.ec2.Ec2Client
 import software.amazon.awssdk.services.ec2.model.AvailabilityZone
 import software.amazon.awssdk.services.ec2.model.DescribeAvailabilityZonesResponse
@@ -15,9 +16,19 @@ import software.amazon.awssdk.services.ec2.model.Placement
 import software.amazon.awssdk.services.ec2.model.Region
 import software.amazon.awssdk.services.ec2.model.Reservation
 import software.amazon.awssdk.services.ec2.model.Tag
+import software.amazon.awssdk.services.ec2.paginators.DescribeInstancesPublisher
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import jdk.jfr.Configuration
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordedEvent
+import jdk.jfr.consumer.RecordingFile
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
 /**
  * @author greg
  * @since 12/16/16
@@ -79,6 +90,67 @@ class InstanceToNodeMapperSpec extends Specification {
         'tags/missing' | null
     }
 
+    def "tag index is built once per instance"() {
+        given:
+        def i = Ec2Instance.builder(mkInstance())
+
+        when:
+        def tags = i.tags()
+
+        then:
+        tags == [Name: 'bob', env: 'PROD']
+        i.tags().is(tags)
+        i.tag('env') == 'PROD'
+        i.tag('missing') == null
+    }
+
+    def "tags wildcard selector copies all tags"() {
+        given:
+        def i = Ec2Instance.builder(mkInstance())
+        def mapping = new Properties()
+        mapping.put('attributes.selector', 'tags/*')
+
+        when:
+        def node = InstanceToNodeMapper.instanceToNode(i, mapping)
+
+        then:
+        node.attributes.Name == 'bob'
+        node.attributes.env == 'PROD'
+    }
+
+    def "duplicate and empty tags keep the original precedence"() {
+        given:
+        def i = Ec2Instance.builder(Instance.builder()
+                .instanceId('i-dup')
+                .tags(
+                        Tag.builder().key('env').value('first').build(),
+                        Tag.builder().key('Name').value('bob').build(),
+                        Tag.builder().key('env').value('last').build(),
+                        Tag.builder().key('empty').build(),
+                        Tag.builder().key('Name').value('bob').build()
+                )
+                .build())
+        def mapping = new Properties()
+        mapping.put('attributes.selector', 'tags/*')
+        mapping.put('environment.selector', 'tags/env')
+        mapping.put('blank.selector', 'tags/empty')
+        mapping.put('blank.default', 'none')
+
+        when:
+        def node = InstanceToNodeMapper.instanceToNode(i, mapping)
+
+        then: "tags/* copies the last value of a key and tags without a value"
+        node.attributes.env == 'last'
+        node.attributes.Name == 'bob'
+        node.attributes.containsKey('empty')
+        node.attributes.empty == null
+
+        and: "a tag selector reads the first value"
+        i.tag('env') == 'first'
+        node.attributes.environment == 'first'
+        node.attributes.blank == 'none'
+    }
+
     @Unroll
     def "apply selector #selector"() {
         given:
@@ -366,6 +438,587 @@ class InstanceToNodeMapperSpec extends Specification {
 
     }
 
+    def "parallel query collects all regions"() {
+        given:
+        def endpoints = ['https://ec2.us-west-1.amazonaws.com', 'https://ec2.us-east-1.amazonaws.com']
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            _ * getEC2ForEndpoint(_) >> { args ->
+                def region = args[0] == endpoints[0] ? 'us-west-1' : 'us-east-1'
+                Mock(Ec2Client) {
+                    describeInstances(_) >> DescribeInstancesResponse.builder()
+                            .reservations(Reservation.builder().instances(
+                                    mkInstance(region).toBuilder().instanceId("id-${region}".toString()).build()
+                            ).build())
+                            .build()
+                    describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+                }
+            }
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setEndpoint(endpoints.join(','))
+        mapper.setRegionConcurrency(1)
+
+        when:
+        def instances = mapper.performQuery(true)
+
+        then:
+        instances.getNodeNames() as Set == ['id-us-west-1', 'id-us-east-1'] as Set
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "warm up looks up the zones of each endpoint once for the first query"() {
+        given:
+        def endpoints = ['https://ec2.us-west-1.amazonaws.com', 'https://ec2.us-east-1.amazonaws.com']
+        def clients = endpoints.collectEntries { endpoint ->
+            def region = endpoint == endpoints[0] ? 'us-west-1' : 'us-east-1'
+            [(endpoint): Mock(Ec2Client) {
+                describeInstances(_) >> DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder().instances(mkInstance(region)).build())
+                        .build()
+            }]
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            _ * getEC2ForEndpoint(_) >> { args -> clients[args[0]] }
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        mapping.put("region.selector", "region")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setEndpoint(endpoints.join(','))
+
+        when:
+        mapper.warmUp().get(5, TimeUnit.SECONDS)
+        mapper.performQuery(true)
+
+        then:
+        1 * clients[endpoints[0]].describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+        1 * clients[endpoints[1]].describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "parallel query cancels a region which exceeds its deadline"() {
+        given:
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            _ * getEC2ForEndpoint(_) >> Mock(Ec2Client) {
+                describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+                describeInstances(_) >> {
+                    Thread.sleep(30000)
+                    DescribeInstancesResponse.builder().build()
+                }
+            }
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setEndpoint('https://ec2.us-west-1.amazonaws.com')
+        mapper.setRegionTimeoutMillis(1000)
+        def start = System.currentTimeMillis()
+
+        when:
+        mapper.performQuery(true)
+
+        then:
+        RuntimeException e = thrown()
+        e.cause instanceof java.util.concurrent.TimeoutException
+        System.currentTimeMillis() - start < 10000
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "a page still mapping after its region deadline does not change the published nodes"() {
+        given:
+        def endpoints = ['https://ec2.us-west-1.amazonaws.com', 'https://ec2.us-east-1.amazonaws.com']
+        def hung = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def west = Mock(Ec2Client) {
+            describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+            describeInstances(_) >> DescribeInstancesResponse.builder()
+                    .reservations(Reservation.builder().instances(
+                            mkInstance('us-west-1').toBuilder().instanceId('id-west').imageId('ami-west').build()
+                    ).build())
+                    .build()
+            describeImages(_) >> DescribeImagesResponse.builder().build()
+        }
+        def east = Mock(Ec2Client) {
+            describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+            describeInstances(_) >> DescribeInstancesResponse.builder()
+                    .reservations(Reservation.builder().instances(
+                            mkInstance('us-east-1').toBuilder().instanceId('id-east').imageId('ami-east').build()
+                    ).build())
+                    .build()
+            describeImages(_) >> {
+                hung.countDown()
+                // a hung lookup which ignores the interrupt of the cancelled region
+                while (release.count > 0) {
+                    try {
+                        release.await()
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                DescribeImagesResponse.builder().build()
+            }
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            _ * getEC2ForEndpoint(_) >> { args -> args[0] == endpoints[0] ? west : east }
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        mapping.put("ami.selector", "imageName")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setEndpoint(endpoints.join(','))
+        mapper.setRegionTimeoutMillis(500)
+
+        when:
+        def nodes = mapper.performQuery(true)
+        def published = nodes.getNodeNames() as Set
+        def executor = mapper.getMappingExecutor()
+        release.countDown()
+        mapper.shutdown()
+
+        then: "the east page finishes mapping after the set was published"
+        hung.await(5, TimeUnit.SECONDS)
+        executor.awaitTermination(5, TimeUnit.SECONDS)
+        published == ['id-west'] as Set
+        nodes.getNodeNames() as Set == published
+        nodes.regions[endpoints[1]].state == RegionStatus.State.FAILED
+        mapper.lastGeneration.getNodeSet().getNodeNames() as Set == published
+    }
+
+    def "a failed region keeps its previous nodes while the other regions are updated"() {
+        given:
+        def endpoints = ['https://ec2.us-west-1.amazonaws.com', 'https://ec2.us-east-1.amazonaws.com']
+        def westIds = ['id-west-1']
+        boolean eastFails = false
+        def west = Mock(Ec2Client) {
+            describeInstances(_) >> {
+                DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder().instances(
+                                westIds.collect { mkInstance('us-west-1').toBuilder().instanceId(it).build() }
+                        ).build())
+                        .build()
+            }
+        }
+        def east = Mock(Ec2Client) {
+            describeInstances(_) >> {
+                if (eastFails) {
+                    throw new IllegalStateException('unavailable')
+                }
+                DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder().instances(
+                                mkInstance('us-east-1').toBuilder().instanceId('id-east-1').build()
+                        ).build())
+                        .build()
+            }
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            _ * getEC2ForEndpoint(_) >> { args -> args[0] == endpoints[0] ? west : east }
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setEndpoint(endpoints.join(','))
+        mapper.performQuery(false)
+
+        when: "the east region fails"
+        eastFails = true
+        westIds << 'id-west-2'
+        def nodes = mapper.performQuery(false)
+
+        then: "the west region is updated and the east region keeps its nodes"
+        nodes.getNodeNames() as Set == ['id-west-1', 'id-west-2', 'id-east-1'] as Set
+        nodes instanceof RegionalNodeSet
+        nodes.regions[endpoints[0]].state == RegionStatus.State.OK
+        nodes.regions[endpoints[0]].nodeCount == 2
+        nodes.regions[endpoints[1]].state == RegionStatus.State.STALE
+        nodes.regions[endpoints[1]].error instanceof IllegalStateException
+        nodes.regions[endpoints[1]].getAgeMillis(System.currentTimeMillis()) >= 0
+        nodes.failedRegions == [endpoints[1]]
+
+        when: "the east region is older than the maximum age"
+        mapper.setStaleRegionMaxAgeMillis(0)
+        Thread.sleep(5)
+        nodes = mapper.performQuery(false)
+
+        then: "its nodes are dropped"
+        nodes.getNodeNames() as Set == ['id-west-1', 'id-west-2'] as Set
+        nodes.regions[endpoints[1]].state == RegionStatus.State.FAILED
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "a region failing halfway through its pages does not keep its partial nodes"() {
+        given:
+        def endpoints = ['https://ec2.us-west-1.amazonaws.com', 'https://ec2.us-east-1.amazonaws.com']
+        boolean eastFails = true
+        String eastType = 't3.small'
+        def west = Mock(Ec2Client) {
+            describeInstances(_) >> DescribeInstancesResponse.builder()
+                    .reservations(Reservation.builder().instances(
+                            mkInstance('us-west-1').toBuilder().instanceId('id-west').build()
+                    ).build())
+                    .build()
+        }
+        def east = Mock(Ec2Client) {
+            describeInstances({ it.nextToken() == null }) >> {
+                DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder().instances(
+                                mkInstance('us-east-1').toBuilder().instanceId('id-east-1').instanceType(eastType).build()
+                        ).build())
+                        .nextToken('page2')
+                        .build()
+            }
+            describeInstances({ it.nextToken() == 'page2' }) >> {
+                if (eastFails) {
+                    throw new IllegalStateException('unavailable')
+                }
+                DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder().instances(
+                                mkInstance('us-east-1').toBuilder().instanceId('id-east-2').instanceType(eastType).build()
+                        ).build())
+                        .build()
+            }
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            _ * getEC2ForEndpoint(_) >> { args -> args[0] == endpoints[0] ? west : east }
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        mapping.put("type.selector", "instanceType")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setEndpoint(endpoints.join(','))
+
+        when: "the second page fails without previous nodes"
+        def nodes = mapper.performQuery(false)
+
+        then: "the nodes of the first page are removed"
+        nodes.getNodeNames() as Set == ['id-west'] as Set
+        nodes.regions[endpoints[1]].state == RegionStatus.State.FAILED
+        nodes.regions[endpoints[1]].nodeCount == 0
+
+        when: "the region succeeds, then fails halfway with changed instances"
+        eastFails = false
+        mapper.performQuery(false)
+        eastFails = true
+        eastType = 't3.large'
+        nodes = mapper.performQuery(false)
+
+        then: "the previous nodes are kept instead of the partial query"
+        nodes.getNodeNames() as Set == ['id-west', 'id-east-1', 'id-east-2'] as Set
+        nodes.getNode('id-east-1').getAttributes().get('type') == 't3.small'
+        nodes.regions[endpoints[1]].state == RegionStatus.State.STALE
+        nodes.regions[endpoints[1]].nodeCount == 2
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "pages are mapped as they arrive and each image is described once"() {
+        given:
+        def page1 = DescribeInstancesResponse.builder()
+                .reservations(Reservation.builder().instances(
+                        mkInstance().toBuilder().instanceId('i-1').build()
+                ).build())
+                .nextToken('page2')
+                .build()
+        def page2 = DescribeInstancesResponse.builder()
+                .reservations(Reservation.builder().instances(
+                        mkInstance().toBuilder().instanceId('i-2').build()
+                ).build())
+                .build()
+        Ec2Client ec2 = Mock(Ec2Client) {
+            describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            1 * getEC2ForRegion(_) >> ec2
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        mapping.put("ami.selector", "imageName")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 1)
+        mapper.setRegion('us-east-1')
+
+        when:
+        def nodes = mapper.performQuery(false)
+
+        then:
+        1 * ec2.describeInstances({ it.nextToken() == null }) >> page1
+        1 * ec2.describeInstances({ it.nextToken() == 'page2' }) >> page2
+        1 * ec2.describeImages({ it.imageIds() == ['ami-something'] }) >> DescribeImagesResponse.builder()
+                .images(mkImage())
+                .build()
+        nodes.getNodeNames() as Set == ['i-1', 'i-2'] as Set
+        nodes.getNode('i-2').getAttributes().get('ami') == 'AMISomething'
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "unchanged instances reuse the node of the previous query"() {
+        given:
+        def first = [
+                mkInstance().toBuilder().instanceId('i-1').build(),
+                mkInstance().toBuilder().instanceId('i-2').build(),
+                mkInstance().toBuilder().instanceId('i-3').build()
+        ]
+        def second = [
+                first[0],
+                first[1].toBuilder().tags(Tag.builder().key('Name').value('alice').build()).build(),
+                mkInstance().toBuilder().instanceId('i-4').build()
+        ]
+        def responses = [first, second].collect {
+            DescribeInstancesResponse.builder().reservations(Reservation.builder().instances(it).build()).build()
+        }
+        Ec2Client ec2 = Mock(Ec2Client) {
+            describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+            describeInstances(_) >>> responses
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            getEC2ForRegion(_) >> ec2
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        mapping.put("name.selector", "tags/Name")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setRegion('us-east-1')
+
+        when:
+        def nodes1 = mapper.performQuery(false)
+        def nodes2 = mapper.performQuery(false)
+        def generation = mapper.getLastGeneration()
+
+        then:
+        nodes2.getNode('i-1').is(nodes1.getNode('i-1'))
+        !nodes2.getNode('i-2').is(nodes1.getNode('i-2'))
+        nodes2.getNode('i-2').getAttributes().get('name') == 'alice'
+        nodes2.getNodeNames() as Set == ['i-1', 'i-2', 'i-4'] as Set
+        generation.reused == 1
+        generation.remapped == 2
+        generation.removed == 1
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "image names are cached across queries and kept when a lookup fails"() {
+        given:
+        Ec2Client ec2 = Mock(Ec2Client) {
+            describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().build()
+            describeInstances(_) >> DescribeInstancesResponse.builder()
+                    .reservations(Reservation.builder().instances(mkInstance()).build())
+                    .build()
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            getEC2ForRegion(_) >> ec2
+        }
+        Properties mapping = new Properties()
+        mapping.put("ami.selector", "imageName")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setRegion('us-east-1')
+
+        when:
+        mapper.performQuery(false)
+        def nodes = mapper.performQuery(false)
+
+        then:
+        1 * ec2.describeImages(_) >> DescribeImagesResponse.builder().images(mkImage()).build()
+        nodes.getNode('aninstanceId').getAttributes().get('ami') == 'AMISomething'
+
+        when:
+        mapper.setImageNameTtlMillis(0)
+        nodes = mapper.performQuery(false)
+
+        then:
+        1 * ec2.describeImages(_) >> { throw new RuntimeException('throttled') }
+        nodes.getNode('aninstanceId').getAttributes().get('ami') == 'AMISomething'
+
+        cleanup:
+        mapper.shutdown()
+    }
+
+    def "availability zones are described once and only when the mapping needs the region"() {
+        given:
+        Ec2Client ec2 = Mock(Ec2Client) {
+            describeInstances(_) >> DescribeInstancesResponse.builder()
+                    .reservations(Reservation.builder().instances(mkInstance()).build())
+                    .build()
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            getEC2ForRegion(_) >> ec2
+        }
+        Properties mapping = new Properties()
+        mapping.put("region.selector", selector)
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setRegion('us-east-1')
+
+        when:
+        mapper.performQuery(false)
+        def nodes = mapper.performQuery(false)
+
+        then:
+        calls * ec2.describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder().availabilityZones(
+                AvailabilityZone.builder().regionName('us-east-1').zoneName('us-east-1a').build()
+        ).build()
+        nodes.getNode('aninstanceId').getAttributes().get('region') == expected
+
+        cleanup:
+        mapper.shutdown()
+
+        where:
+        selector     | calls | expected
+        'region'     | 1     | 'us-east-1'
+        'instanceId' | 0     | 'aninstanceId'
+    }
+
+    def "image lookups are split into chunks"() {
+        given:
+        def ids = (0..<250).collect { "ami-$it".toString() }
+
+        when:
+        def chunks = ImageNameCache.chunks(ids)
+
+        then:
+        chunks*.size() == [100, 100, 50]
+        chunks.flatten() == ids
+    }
+
+    def "async query engine maps instances with extra attributes"() {
+        given:
+        def region = 'us-west-2'
+        Ec2AsyncClient ec2 = Mock(Ec2AsyncClient)
+        ec2.describeInstancesPaginator(_) >> { args -> new DescribeInstancesPublisher(ec2, args[0]) }
+        ec2.describeInstances(_) >> CompletableFuture.completedFuture(DescribeInstancesResponse.builder()
+                .reservations(Reservation.builder().instances(mkInstance(region)).build())
+                .build())
+        ec2.describeImages(_) >> CompletableFuture.completedFuture(
+                DescribeImagesResponse.builder().images(mkImage()).build())
+        ec2.describeAvailabilityZones() >> CompletableFuture.completedFuture(
+                DescribeAvailabilityZonesResponse.builder().availabilityZones(
+                        AvailabilityZone.builder().regionName(region).zoneName("${region}a".toString()).build()
+                ).build())
+        EC2AsyncSupplier asyncSupplier = Mock(EC2AsyncSupplier) {
+            1 * getAsyncEC2ForRegion(region) >> ec2
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            0 * _(*_)
+        }
+        Properties mapping = new Properties()
+        mapping.put("region.selector", "region")
+        mapping.put("ami.selector", "imageName")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setRegion(region)
+        mapper.setAsyncQueryEngine(new AsyncQueryEngine(asyncSupplier))
+
+        when:
+        def instances = mapper.performQuery(false)
+
+        then:
+        instances.getNode("aninstanceId").getAttributes().get("region") == region
+        instances.getNode("aninstanceId").getAttributes().get("ami") == "AMISomething"
+    }
+
+    def "async query engine stops the pages of a region which times out"() {
+        given:
+        def endpoints = ['https://ec2.us-west-1.amazonaws.com', 'https://ec2.us-east-1.amazonaws.com']
+        def late = new CompletableFuture<DescribeInstancesResponse>()
+        Ec2AsyncClient west = Mock(Ec2AsyncClient)
+        west.describeInstancesPaginator(_) >> { args -> new DescribeInstancesPublisher(west, args[0]) }
+        west.describeInstances(_) >> CompletableFuture.completedFuture(DescribeInstancesResponse.builder()
+                .reservations(Reservation.builder().instances(
+                        mkInstance('us-west-1').toBuilder().instanceId('id-west').build()
+                ).build())
+                .build())
+        Ec2AsyncClient east = Mock(Ec2AsyncClient)
+        east.describeInstancesPaginator(_) >> { args -> new DescribeInstancesPublisher(east, args[0]) }
+        EC2AsyncSupplier asyncSupplier = Mock(EC2AsyncSupplier) {
+            _ * getAsyncEC2ForEndpoint(_) >> { args -> args[0] == endpoints[0] ? west : east }
+        }
+        Properties mapping = new Properties()
+        mapping.put("nodename.selector", "instanceId")
+        def mapper = new InstanceToNodeMapper(Mock(EC2Supplier), mapping, 100)
+        mapper.setEndpoint(endpoints.join(','))
+        mapper.setRegionTimeoutMillis(500)
+        mapper.setAsyncQueryEngine(new AsyncQueryEngine(asyncSupplier))
+
+        when:
+        def nodes = mapper.performQuery(false)
+        def published = nodes.getNodeNames() as Set
+        late.complete(DescribeInstancesResponse.builder()
+                              .reservations(Reservation.builder().instances(
+                                      mkInstance('us-east-1').toBuilder().instanceId('id-east-2').build()
+                              ).build())
+                              .nextToken('page3')
+                              .build())
+
+        then: "the second page is requested after the first is mapped and never arrives"
+        1 * east.describeInstances({ it.nextToken() == null }) >> CompletableFuture.completedFuture(
+                DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder().instances(
+                                mkInstance('us-east-1').toBuilder().instanceId('id-east-1').build()
+                        ).build())
+                        .nextToken('page2')
+                        .build())
+        1 * east.describeInstances({ it.nextToken() == 'page2' }) >> late
+        0 * east.describeInstances({ it.nextToken() == 'page3' })
+
+        and: "the partial region fails and the late page is dropped"
+        nodes.regions[endpoints[1]].state == RegionStatus.State.FAILED
+        nodes.getNodeNames() as Set == published
+        published == ['id-west'] as Set
+    }
+
+    def "refresh phase events are recorded only when enabled"() {
+        given:
+        Ec2Client ec2 = Mock(Ec2Client) {
+            describeInstances(_) >> DescribeInstancesResponse.builder()
+                    .reservations(Reservation.builder().instances(mkInstance('us-west-1')).build())
+                    .build()
+            describeImages(_) >> DescribeImagesResponse.builder().images(mkImage()).build()
+            describeAvailabilityZones() >> DescribeAvailabilityZonesResponse.builder()
+                    .availabilityZones(AvailabilityZone.builder().regionName('us-west-1').zoneName('us-west-1a').build())
+                    .build()
+        }
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            _ * getEC2ForRegion(_) >> ec2
+        }
+        Properties mapping = new Properties()
+        mapping.put("region.selector", "region")
+        mapping.put("ami.selector", "imageName")
+        def mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setRegion('us-west-1')
+        def names = ['RegionQuery', 'DescribeInstancesPage', 'Enrichment', 'Mapping']
+
+        when: "a recording uses the default settings"
+        def disabled = record(Configuration.getConfiguration('default'), []) { mapper.performQuery(false) }
+
+        then:
+        disabled.isEmpty()
+
+        when: "the events are enabled"
+        mapper = new InstanceToNodeMapper(supplier, mapping, 100)
+        mapper.setRegion('us-west-1')
+        def events = record(null, names) { mapper.performQuery(false) }
+        def byName = events.groupBy { it.eventType.name - RefreshEvents.PREFIX }
+
+        then:
+        byName.keySet() == names as Set
+        byName.RegionQuery[0].getString('region') == 'us-west-1'
+        byName.RegionQuery[0].getInt('instances') == 1
+        byName.RegionQuery[0].getBoolean('succeeded')
+        byName.DescribeInstancesPage[0].getInt('pageSize') == 100
+        byName.DescribeInstancesPage[0].getInt('instances') == 1
+        byName.Enrichment.collect { it.getString('attribute') } as Set == ['availabilityZones', 'imageName'] as Set
+        byName.Enrichment.find { it.getString('attribute') == 'imageName' }.getInt('lookups') == 1
+        byName.Mapping[0].getInt('instances') == 1
+    }
+
     //
     // Private Methods
     //
@@ -384,6 +1037,24 @@ class InstanceToNodeMapperSpec extends Specification {
                 .build()
     }
 
+    private static List<RecordedEvent> record(Configuration configuration, List<String> enabled, Closure action) {
+        def recording = null == configuration ? new Recording() : new Recording(configuration)
+        enabled.each { recording.enable(RefreshEvents.PREFIX + it) }
+        def file = File.createTempFile('ec2-events', '.jfr')
+        try {
+            recording.start()
+            action()
+            recording.stop()
+            recording.dump(file.toPath())
+            return RecordingFile.readAllEvents(file.toPath()).findAll {
+                it.eventType.name.startsWith(RefreshEvents.PREFIX)
+            }
+        } finally {
+            recording.close()
+            file.delete()
+        }
+    }
+
     private static Image mkImage(){
         return Image.builder()
                 .imageId("ami-something")
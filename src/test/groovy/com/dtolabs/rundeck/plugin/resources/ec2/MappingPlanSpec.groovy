@@ -0,0 +1,336 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import com.dtolabs.rundeck.core.common.INodeEntry
+import com.dtolabs.rundeck.core.common.NodeEntryImpl
+import software.amazon.awssdk.services.ec2.model.Instance
+import software.amazon.awssdk.services.ec2.model.InstanceState
+import software.amazon.awssdk.services.ec2.model.InstanceStateName
+import software.amazon.awssdk.services.ec2.model.Placement
+import software.amazon.awssdk.services.ec2.model.Tag
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.lang.reflect.Method
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Verifies that the compiled mapping plan produces the same nodes as the original
+ * string-evaluated mapping.
+ */
+class MappingPlanSpec extends Specification {
+
+    @Unroll
+    def "compiled mapping matches legacy mapping #name"() {
+        given:
+        def inst = Ec2Instance.builder(mkInstance())
+        inst.setRegion('us-east-1')
+        inst.setImageName('AMISomething')
+
+        when:
+        def expected = legacyInstanceToNode(inst, mapping)
+        def result = MappingPlan.compile(mapping).map(inst)
+
+        then:
+        result.attributes == expected.attributes
+        result.tags == expected.tags
+        result.nodename == expected.nodename
+        result.hostname == expected.hostname
+
+        where:
+        name               | mapping
+        'default'          | EC2ResourceModelSource.defaultMapping
+        'tags wildcard'    | props('attributes.selector': 'tags/*', 'nodename.selector': 'instanceId')
+        'tag values'       | props('tag.prod.selector': 'tags/env=PROD', 'tag.dev.selector': 'tags/env=DEV',
+                                   'tag.named.selector': 'tags/Name', 'tag.missing.selector': 'tags/missing')
+        'merged tags'      | props('tags.selector': 'tags/Name|tags/env,instanceId', 'tags.default': 'x')
+        'tags default'     | props('tags.default': 'a,b', 'nodename.selector': 'instanceId')
+        'multipart'        | props('nodename.selector': 'tags/Name+"-"+instanceId',
+                                   'hostname.selector': 'publicDnsName,privateIpAddress',
+                                   'label.selector': '\'x\'+publicDnsName', 'label.default': 'none')
+        'empty selector'   | props('foo.selector': '', 'foo.default': 'bar', 'nodename.selector': 'instanceId')
+        'extra attributes' | props('ami.selector': 'imageId+"-"+imageName', 'region.selector': 'region',
+                                   'nodename.selector': 'instanceId')
+        'ssh port'         | props('nodename.selector': 'instanceId', 'hostname.selector': 'privateIpAddress',
+                                   'sshport.selector': 'tags/port', 'sshport.default': '22')
+    }
+
+    def "compiled mapping reports extra attributes"() {
+        when:
+        def plan = MappingPlan.compile(props(mapping))
+
+        then:
+        plan.needsImageName() == imageName
+        plan.needsRegion() == region
+
+        where:
+        mapping                                    | imageName | region
+        ['a.selector': 'instanceId']               | false     | false
+        ['a.selector': 'imageId+"-"+imageName']    | true      | false
+        ['region.selector': 'region']              | false     | true
+        ['a.selector': 'imageName', b: 'regionX']  | true      | true
+    }
+
+    def "compiled mapping is not affected by later changes to the properties"() {
+        given:
+        def mapping = props('nodename.selector': 'instanceId')
+        def plan = MappingPlan.compile(mapping)
+        mapping.put('label.default', 'changed')
+
+        when:
+        def result = plan.map(Ec2Instance.builder(mkInstance()))
+
+        then:
+        !result.attributes.containsKey('label')
+    }
+
+    //
+    // Private Methods
+    //
+    private static Properties props(Map values) {
+        def p = new Properties()
+        p.putAll(values)
+        return p
+    }
+
+    private static Instance mkInstance() {
+        return Instance.builder()
+                .tags(
+                        Tag.builder().key('Name').value('bob').build(),
+                        Tag.builder().key('env').value('PROD').build(),
+                        Tag.builder().key('Rundeck-Tags').value('web, db').build(),
+                        Tag.builder().key('port').value('2222').build()
+                )
+                .instanceId("aninstanceId")
+                .architecture("anarch")
+                .imageId("ami-something")
+                .placement(Placement.builder().availabilityZone("us-east-1a").build())
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .privateIpAddress('127.0.9.9')
+                .build()
+    }
+
+    /**
+     * The original mapping evaluation, kept as the reference implementation
+     */
+    private static INodeEntry legacyInstanceToNode(Ec2Instance inst, Properties mapping) {
+        final NodeEntryImpl node = new NodeEntryImpl()
+        if ("tags/*".equals(mapping.getProperty("attributes.selector"))) {
+            for (final Tag tag : inst.instance().tags()) {
+                if (null == node.getAttributes()) {
+                    node.setAttributes(new HashMap<>())
+                }
+                node.getAttributes().put(tag.key(), tag.value())
+            }
+        }
+        if (null != mapping.getProperty("tags.selector")) {
+            final String value = legacyApplySelector(inst, mapping.getProperty("tags.selector"),
+                                                     mapping.getProperty("tags.default"), true)
+            if (null != value) {
+                node.setTags(value.split(",").collect { it.trim() } as HashSet)
+            }
+        }
+        if (null == node.getTags()) {
+            node.setTags(new HashSet<String>())
+        }
+        final Set<String> orig = new HashSet<String>(node.getTags())
+        final Pattern tagPat = Pattern.compile('^tag\\.(.+?)\\.selector$')
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o
+            final String[] selparts = mapping.getProperty(key).split("=")
+            final Matcher m = tagPat.matcher(key)
+            if (m.matches()) {
+                if (null == node.getAttributes()) {
+                    node.setAttributes(new HashMap<>())
+                }
+                final String value = legacyApplySelector(inst, selparts[0], null, false)
+                if (null != value) {
+                    if (selparts.length > 1 && !value.equals(selparts[1])) {
+                        continue
+                    }
+                    orig.add(m.group(1))
+                }
+            }
+        }
+        node.setTags(orig)
+        final Pattern attribDefPat = Pattern.compile('^([^.]+?)\\.default$')
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o
+            final Matcher m = attribDefPat.matcher(key)
+            if (m.matches() && (!mapping.containsKey(key + ".selector") || "".equals(mapping.getProperty(
+                    key + ".selector")))) {
+                if (null == node.getAttributes()) {
+                    node.setAttributes(new HashMap<>())
+                }
+                node.getAttributes().put(m.group(1), mapping.getProperty(key))
+            }
+        }
+        final Pattern attribPat = Pattern.compile('^([^.]+?)\\.selector$')
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o
+            final Matcher m = attribPat.matcher(key)
+            if (m.matches()) {
+                final String attrName = m.group(1)
+                if (attrName.equals("tags")) {
+                    continue
+                }
+                if (null == node.getAttributes()) {
+                    node.setAttributes(new HashMap<>())
+                }
+                final String value = legacyApplySelector(inst, mapping.getProperty(key),
+                                                         mapping.getProperty(attrName + ".default"), false)
+                if (null != value) {
+                    node.getAttributes().put(attrName, value)
+                }
+            }
+        }
+        String name = node.getNodename()
+        if (null == name || name.isEmpty()) {
+            name = node.getHostname()
+        }
+        if (null == name || name.isEmpty()) {
+            name = inst.instanceId()
+        }
+        node.setNodename(name)
+        String sshport = node.getAttributes().get("sshport")
+        if (sshport != null && !sshport.isEmpty() && !sshport.equals("22")) {
+            node.setHostname(node.getHostname() + ":" + sshport)
+        }
+        return node
+    }
+
+    private static String legacyApplySelector(Ec2Instance inst, String selector, String defaultValue,
+                                              boolean tagMerge) {
+        if (null != selector) {
+            for (final String selPart : selector.split(",")) {
+                if (tagMerge) {
+                    final StringBuilder sb = new StringBuilder()
+                    for (final String subPart : selPart.split(Pattern.quote("|"))) {
+                        final String val = legacyApplyMultiSelector(inst, subPart.split(Pattern.quote("+")))
+                        if (null != val) {
+                            if (sb.length() > 0) {
+                                sb.append(",")
+                            }
+                            sb.append(val)
+                        }
+                    }
+                    if (sb.length() > 0) {
+                        return sb.toString()
+                    }
+                } else {
+                    final String val = legacyApplyMultiSelector(inst, selPart.split(Pattern.quote("+")))
+                    if (null != val) {
+                        return val
+                    }
+                }
+            }
+        }
+        return defaultValue
+    }
+
+    private static String legacyApplyMultiSelector(Ec2Instance inst, String[] selectors) {
+        final Pattern quoted = Pattern.compile('^([\'"])(.+)\\1$')
+        StringBuilder sb = new StringBuilder()
+        boolean hasVal = false
+        for (String selector : selectors) {
+            Matcher matcher = quoted.matcher(selector)
+            if (matcher.matches()) {
+                sb.append(matcher.group(2))
+            } else {
+                String val = legacyApplySingleSelector(inst, selector)
+                if (null != val && !val.isEmpty()) {
+                    hasVal = true
+                    sb.append(val)
+                }
+            }
+        }
+        return hasVal ? sb.toString() : null
+    }
+
+    private static String legacyApplySingleSelector(Ec2Instance inst, String selector) {
+        if (null != selector && selector.startsWith("tags/")) {
+            final String tag = selector.substring("tags/".length())
+            final List<Tag> tags = inst.instance().tags()
+            for (final Tag tag1 : tags) {
+                if (tag.equals(tag1.key())) {
+                    return tag1.value()
+                }
+            }
+        } else if (null != selector && !selector.isEmpty()) {
+            return legacyResolveProperty(inst, selector)
+        }
+        return null
+    }
+
+    /**
+     * The original reflective property resolution, before selectors were compiled to accessors
+     */
+    private static String legacyResolveProperty(Ec2Instance inst, String selector) {
+        Object current = inst
+        for (final String segment : selector.split("\\.")) {
+            if (null == current) {
+                return null
+            }
+            current = legacyInvokeSegment(current, segment)
+        }
+        return legacyStringify(current)
+    }
+
+    private static Object legacyInvokeSegment(Object target, String name) {
+        if (target instanceof Ec2Instance) {
+            final Ec2Instance ec2 = (Ec2Instance) target
+            if ("imageName".equals(name)) {
+                return ec2.imageName()
+            }
+            if ("region".equals(name)) {
+                return ec2.region()
+            }
+            target = ec2.instance()
+            if (null == target) {
+                return null
+            }
+        }
+        final Method accessor = legacyFindAccessor(target.getClass(), name)
+        if (null == accessor) {
+            throw new InstanceToNodeMapper.GeneratorException(
+                    new NoSuchMethodException("No EC2 property '" + name + "' on " + target.getClass().getName()))
+        }
+        try {
+            return accessor.invoke(target)
+        } catch (Exception e) {
+            throw new InstanceToNodeMapper.GeneratorException(e)
+        }
+    }
+
+    private static Method legacyFindAccessor(Class<?> type, String name) {
+        Method method = legacyLookupAccessor(type, name + "AsString")
+        if (null == method) {
+            method = legacyLookupAccessor(type, name)
+        }
+        return method
+    }
+
+    private static Method legacyLookupAccessor(Class<?> type, String name) {
+        try {
+            final Method method = type.getMethod(name)
+            if (method.getParameterCount() == 0
+                    && method.getReturnType() != void.class
+                    && !Object.class.equals(method.getDeclaringClass())) {
+                return method
+            }
+        } catch (NoSuchMethodException ignored) {
+            // not a property accessor
+        }
+        return null
+    }
+
+    private static String legacyStringify(Object value) {
+        if (null == value) {
+            return null
+        }
+        if (value instanceof String) {
+            return (String) value
+        }
+        return value.toString()
+    }
+}
@@ -0,0 +1,102 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import com.dtolabs.rundeck.core.common.NodeEntryImpl
+import com.dtolabs.rundeck.core.common.NodeSetImpl
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+
+class NodeSnapshotStoreSpec extends Specification {
+    @TempDir
+    Path dir
+
+    def "nodes are saved and loaded"() {
+        given:
+        def store = new NodeSnapshotStore(dir.toFile(), 'abc')
+        def nodes = new NodeSetImpl()
+        (1..3).each { n ->
+            def node = new NodeEntryImpl("node-$n".toString())
+            node.setHostname("10.0.0.$n".toString())
+            node.getAttributes().put('region', 'us-east-1')
+            node.setTags(['web', "t$n".toString()] as Set)
+            nodes.putNode(node)
+        }
+
+        when:
+        store.save(nodes)
+        def loaded = store.load()
+
+        then:
+        loaded.getNodeNames() as Set == ['node-1', 'node-2', 'node-3'] as Set
+        loaded.getNode('node-2').hostname == '10.0.0.2'
+        loaded.getNode('node-2').attributes.region == 'us-east-1'
+        loaded.getNode('node-2').tags == ['web', 't2'] as Set
+    }
+
+    def "snapshot of another configuration is ignored"() {
+        given:
+        def nodes = new NodeSetImpl()
+        nodes.putNode(new NodeEntryImpl('node-1'))
+        new NodeSnapshotStore(dir.toFile(), 'abc').save(nodes)
+        def other = new NodeSnapshotStore(dir.toFile(), 'def')
+        Files.copy(dir.resolve('ec2-nodes-abc.snapshot'), other.file)
+
+        expect:
+        other.load() == null
+    }
+
+    def "missing or corrupt snapshot is ignored"() {
+        given:
+        def store = new NodeSnapshotStore(dir.toFile(), 'abc')
+
+        expect:
+        store.load() == null
+
+        when:
+        Files.write(store.file, [0x45, 0x43, 0x32, 0x53, 0, 0, 0, 1, 0, 0, 0, 3, 0x61] as byte[])
+
+        then:
+        store.load() == null
+        !Files.exists(store.file)
+    }
+
+    def "snapshot with a corrupt count is deleted"() {
+        given:
+        def store = new NodeSnapshotStore(dir.toFile(), 'abc')
+        def nodes = new NodeSetImpl()
+        nodes.putNode(new NodeEntryImpl('node-1'))
+        store.save(nodes)
+        def bytes = Files.readAllBytes(store.file)
+        // the string count follows the magic, version, key and save time
+        def offset = 4 + 4 + 4 + 'abc'.length() + 8
+        ByteBuffer.wrap(bytes).putInt(offset, count)
+        Files.write(store.file, bytes)
+
+        when:
+        def loaded = store.load()
+
+        then:
+        loaded == null
+        !Files.exists(store.file)
+
+        where:
+        count << [Integer.MAX_VALUE, -2, 1000]
+    }
+
+    def "configuration key depends on every property"() {
+        given:
+        def a = new Properties()
+        a.putAll(endpoint: 'ALL_REGIONS', filter: 'tag:env=prod')
+        def b = new Properties()
+        b.putAll(filter: 'tag:env=prod', endpoint: 'ALL_REGIONS')
+        def c = new Properties()
+        c.putAll(endpoint: 'ALL_REGIONS', filter: 'tag:env=dev')
+
+        expect:
+        NodeSnapshotStore.configurationKey(a) == NodeSnapshotStore.configurationKey(b)
+        NodeSnapshotStore.configurationKey(a) != NodeSnapshotStore.configurationKey(c)
+    }
+}
@@ -0,0 +1,94 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.services.ec2.model.Instance
+import software.amazon.awssdk.services.ec2.model.InstanceState
+import software.amazon.awssdk.services.ec2.model.InstanceStateName
+import software.amazon.awssdk.services.ec2.model.Placement
+import spock.lang.Specification
+
+class PropertyAccessorSpec extends Specification {
+    def "resolve property paths"() {
+        given:
+        def i = Ec2Instance.builder(mkInstance())
+        i.setRegion('us-east-1')
+        i.setImageName('AMISomething')
+
+        when:
+        def result = PropertyAccessor.forPath(path).resolve(i)
+
+        then:
+        result == expect
+
+        where:
+        path                           | expect
+        'instanceId'                   | 'aninstanceId'
+        'state.name'                   | 'running'
+        'state'                        | mkInstance().state().toString()
+        'placement.availabilityZone'   | 'us-east-1a'
+        'architecture'                 | 'anarch'
+        'publicDnsName'                | null
+        'imageName'                    | 'AMISomething'
+        'region'                       | 'us-east-1'
+        'tags.size'                    | '0'
+    }
+
+    def "null intermediate value resolves to null"() {
+        given:
+        def i = Ec2Instance.builder(Instance.builder().instanceId('x').build())
+
+        expect:
+        PropertyAccessor.forPath('placement.availabilityZone').resolve(i) == null
+    }
+
+    def "accessors are resolved once per path"() {
+        expect:
+        PropertyAccessor.forPath('state.name').is(PropertyAccessor.forPath('state.name'))
+    }
+
+    def "invalid paths are detected when resolved"() {
+        when:
+        def accessor = PropertyAccessor.forPath(path)
+
+        then:
+        !accessor.valid
+        accessor.error.contains(name)
+
+        when:
+        accessor.resolve(Ec2Instance.builder(mkInstance()))
+
+        then:
+        thrown(InstanceToNodeMapper.GeneratorException)
+
+        where:
+        path             | name
+        'fromtom'        | 'fromtom'
+        'state.badapple' | 'badapple'
+    }
+
+    def "mapping plan reports invalid selectors and still maps the node"() {
+        given:
+        def mapping = new Properties()
+        mapping.put('nodename.selector', 'instanceId')
+        mapping.put('bad.selector', 'fromtom,instanceId')
+        mapping.put('tag.bad.selector', 'state.badapple')
+
+        when:
+        def plan = MappingPlan.compile(mapping)
+        def node = plan.map(Ec2Instance.builder(mkInstance()))
+
+        then:
+        plan.invalidSelectors == ['fromtom', 'state.badapple'] as Set
+        node.nodename == 'aninstanceId'
+        node.attributes.bad == 'aninstanceId'
+        !node.tags.contains('bad')
+    }
+
+    private static Instance mkInstance() {
+        return Instance.builder()
+                .instanceId("aninstanceId")
+                .architecture("anarch")
+                .placement(Placement.builder().availabilityZone("us-east-1a").build())
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .build()
+    }
+}
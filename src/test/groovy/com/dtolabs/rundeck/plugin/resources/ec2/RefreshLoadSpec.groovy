@@ -0,0 +1,69 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials
+import software.amazon.awssdk.regions.Region
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Load harness for a full refresh against the local EC2 stand-in: wall time and API calls of the
+ * sequential and parallel region modes. Run with ./gradlew loadTest
+ */
+@Requires({ Boolean.getBoolean('ec2.loadTest') })
+class RefreshLoadSpec extends Specification {
+    static final List<String> REGIONS = ['us-east-1', 'us-east-2', 'us-west-1', 'us-west-2',
+                                         'eu-west-1', 'eu-central-1', 'ap-southeast-1', 'ap-northeast-1']
+    static final int INSTANCES_PER_REGION = 5000
+    static final int MAX_RESULTS = 500
+    static final long LATENCY_MILLIS = 150
+    static final int RUNS = 3
+
+    @Unroll
+    def "full refresh in #mode mode"() {
+        given:
+        def standIn = new Ec2StandIn(REGIONS)
+        REGIONS.each { standIn.fleet(it, INSTANCES_PER_REGION, 16).latency(it, LATENCY_MILLIS) }
+        def supplier = new EC2SupplierImpl(AwsBasicCredentials.create('AKIDSTANDIN', 'secret'), null, Region.US_EAST_1)
+        def times = []
+        def nodeCount = 0
+
+        when:
+        (0..RUNS).each { run ->
+            // a new mapper per run, so that no run reuses the caches of the previous one
+            def mapper = new InstanceToNodeMapper(supplier, EC2ResourceModelSource.defaultMapping, MAX_RESULTS)
+            mapper.endpoint = standIn.endpoints
+            standIn.resetCalls()
+            long start = System.nanoTime()
+            nodeCount = mapper.performQuery(parallel).nodeNames.size()
+            if (run > 0) {
+                // the first run warms up the clients and the JIT
+                times << TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            }
+            mapper.shutdown()
+        }
+        def calls = ['DescribeInstances', 'DescribeAvailabilityZones', 'DescribeImages'].collectEntries {
+            [(it): standIn.calls(it)]
+        }
+        println String.format(
+                '%-10s regions=%d instances=%d nodes=%d wall ms: min=%d avg=%d max=%d calls per refresh: %s',
+                mode, REGIONS.size(), REGIONS.size() * INSTANCES_PER_REGION, nodeCount,
+                times.min(), (times.sum() / times.size()) as long, times.max(), calls
+        )
+
+        then:
+        nodeCount > 0
+        calls.DescribeInstances >= REGIONS.size() * Math.ceil(nodeCount / REGIONS.size() / MAX_RESULTS)
+
+        cleanup:
+        supplier?.close()
+        standIn?.close()
+
+        where:
+        mode         | parallel
+        'sequential' | false
+        'parallel'   | true
+    }
+}
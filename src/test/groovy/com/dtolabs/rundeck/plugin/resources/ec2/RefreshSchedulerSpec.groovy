@@ -0,0 +1,39 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class RefreshSchedulerSpec extends Specification {
+    def "delay stays within the jitter of the period"() {
+        given:
+        def scheduler = new RefreshScheduler({}, 60000, 0.1)
+
+        when:
+        def delays = (1..1000).collect { scheduler.nextDelay() }
+
+        then:
+        delays.every { it >= 54000 && it <= 66000 }
+        delays.toSet().size() > 1
+    }
+
+    def "delay without jitter is the period"() {
+        expect:
+        new RefreshScheduler({}, 60000, 0).nextDelay() == 60000
+    }
+
+    def "trigger runs until closed"() {
+        given:
+        def triggered = new CountDownLatch(2)
+        def scheduler = new RefreshScheduler({ triggered.countDown() }, 1000, 0)
+
+        when:
+        scheduler.start()
+        def completed = triggered.await(5, TimeUnit.SECONDS)
+        scheduler.close()
+
+        then:
+        completed
+    }
+}
@@ -0,0 +1,78 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.services.ec2.model.DescribeRegionsResponse
+import software.amazon.awssdk.services.ec2.model.Region
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+
+class RegionListCacheSpec extends Specification {
+    def "region list is described once until it expires"() {
+        given:
+        def cache = new RegionListCache()
+        int calls = 0
+        def describe = { calls++; CompletableFuture.completedFuture(regions('us-east-1', 'eu-west-1')) }
+
+        when:
+        def first = cache.get(describe).join()
+        def second = cache.get(describe).join()
+
+        then:
+        calls == 1
+        first == second
+        first == ['https://ec2.us-east-1.amazonaws.com', 'https://ec2.eu-west-1.amazonaws.com']
+    }
+
+    def "expired list is returned while refreshing and kept when the refresh fails"() {
+        given:
+        def cache = new RegionListCache()
+        cache.get({ CompletableFuture.completedFuture(regions('us-east-1')) }).join()
+        cache.setTtlMillis(0)
+        int calls = 0
+        def failing = { calls++; CompletableFuture.failedFuture(new RuntimeException('unavailable')) }
+
+        when:
+        def result = cache.get(failing).join()
+
+        then:
+        calls == 1
+        result == ['https://ec2.us-east-1.amazonaws.com']
+    }
+
+    def "first describe failure is reported"() {
+        given:
+        def cache = new RegionListCache()
+
+        when:
+        cache.get({ CompletableFuture.failedFuture(new IllegalStateException('unavailable')) }).join()
+
+        then:
+        def e = thrown(java.util.concurrent.CompletionException)
+        e.cause instanceof IllegalStateException
+    }
+
+    def "regions are selected by allow and deny lists"() {
+        given:
+        def cache = new RegionListCache()
+        cache.setSelection(false, allow, deny)
+
+        when:
+        def result = cache.select(regions('us-east-1', 'us-west-2', 'eu-west-1', 'ap-south-1'))
+
+        then:
+        result.collect { it - 'https://ec2.' - '.amazonaws.com' } == expected
+
+        where:
+        allow               | deny        | expected
+        null                | null        | ['us-east-1', 'us-west-2', 'eu-west-1', 'ap-south-1']
+        'us-*'              | null        | ['us-east-1', 'us-west-2']
+        'us-*, eu-west-1'   | 'us-west-2' | ['us-east-1', 'eu-west-1']
+        ''                  | 'ap-*'      | ['us-east-1', 'us-west-2', 'eu-west-1']
+    }
+
+    private static DescribeRegionsResponse regions(String... names) {
+        DescribeRegionsResponse.builder().regions(names.collect {
+            Region.builder().regionName(it).endpoint("https://ec2.${it}.amazonaws.com".toString()).build()
+        }).build()
+    }
+}
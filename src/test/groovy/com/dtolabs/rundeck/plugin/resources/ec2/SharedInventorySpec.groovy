@@ -0,0 +1,207 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.services.ec2.Ec2Client
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse
+import software.amazon.awssdk.services.ec2.model.Filter
+import software.amazon.awssdk.services.ec2.model.Instance
+import software.amazon.awssdk.services.ec2.model.InstanceState
+import software.amazon.awssdk.services.ec2.model.InstanceStateName
+import software.amazon.awssdk.services.ec2.model.Reservation
+import software.amazon.awssdk.services.ec2.model.Tag
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class SharedInventorySpec extends Specification {
+    def "sources with the same account, region and filters share one query"() {
+        given:
+        def inventory = new SharedInventory()
+        def source = inventory.register('account', 60000, PROJECTION)
+        def other = inventory.register('other', 60000, PROJECTION)
+        int calls = 0
+        def describe = { projection -> calls++; project(projection, instance('i-1', 'prod')) }
+
+        when:
+        def first = inventory.instances(source, 'region:us-east-1', [filter('tag:env', 'prod')], PROJECTION, describe)
+        def second = inventory.instances(source, 'region:us-east-1', [filter('tag:env', 'prod')], PROJECTION, describe)
+        inventory.instances(other, 'region:us-east-1', [filter('tag:env', 'prod')], PROJECTION, describe)
+
+        then:
+        calls == 2
+        first.is(second)
+        inventory.queries == 2
+        inventory.hits == 1
+    }
+
+    def "concurrent callers wait for the same query"() {
+        given:
+        def inventory = new SharedInventory()
+        def source = inventory.register('account', 0, PROJECTION)
+        def calls = new AtomicInteger()
+        def release = new CountDownLatch(1)
+        def describe = { projection ->
+            calls.incrementAndGet()
+            release.await(5, TimeUnit.SECONDS)
+            project(projection, instance('i-1', 'prod'))
+        }
+        def pool = Executors.newFixedThreadPool(4)
+
+        when:
+        def results = (1..4).collect {
+            pool.submit({ inventory.instances(source, 'default', [], PROJECTION, describe) } as java.util.concurrent.Callable)
+        }
+        Thread.sleep(200)
+        release.countDown()
+        def instances = results.collect { it.get(5, TimeUnit.SECONDS) }
+
+        then:
+        calls.get() == 1
+        instances.every { it*.instanceId() == ['i-1'] }
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    def "a source with additional filters is answered by filtering a recent query"() {
+        given:
+        def inventory = new SharedInventory()
+        def source = inventory.register('account', 60000, PROJECTION)
+        int calls = 0
+        def describe = { projection ->
+            calls++
+            project(projection, instance('i-1', 'prod'), instance('i-2', 'dev'), instance('i-3', 'prod-eu'))
+        }
+        def running = filter('instance-state-name', 'running')
+        inventory.instances(source, 'default', [running], PROJECTION, describe)
+
+        when:
+        def prod = inventory.instances(source, 'default', [running, filter('tag:env', 'prod*')], PROJECTION, describe)
+        def stopped = inventory.instances(source, 'default', [running, filter('instance-state-name', 'stopped')], PROJECTION, describe)
+
+        then:
+        calls == 1
+        prod*.instanceId() == ['i-1', 'i-3']
+        stopped.isEmpty()
+        inventory.filteredHits == 2
+
+        when: "the additional filter cannot be evaluated on the client"
+        inventory.instances(source, 'default', [running, filter('network-interface.addresses.association.public-ip', '1.2.3.4')], PROJECTION, describe)
+
+        then:
+        calls == 2
+    }
+
+    def "instances are kept projected, only for the max age of the registered sources"() {
+        given:
+        def inventory = new SharedInventory()
+        def first = inventory.register('account', 60000, PROJECTION)
+        def second = inventory.register('account', 0, PROJECTION)
+        def describe = { projection -> project(projection, instance('i-1', 'prod')) }
+
+        when:
+        def instances = inventory.instances(second, 'default', [], PROJECTION, describe)
+
+        then: "the instances hold the values read by the filters and the plans, not the SDK instance"
+        instances*.isProjected() == [true]
+        instances*.instance() == [null]
+        instances[0].tag('env') == 'prod'
+        inventory.size() == 1
+
+        when: "the source with the largest max age is released"
+        first.release()
+        Thread.sleep(5)
+        inventory.instances(second, 'other', [], PROJECTION, describe)
+
+        then:
+        inventory.size() == 1
+
+        when: "the last source of the account is released"
+        second.release()
+
+        then:
+        inventory.size() == 0
+    }
+
+    def "a source whose plan reads values not kept queries the region again"() {
+        given:
+        def inventory = new SharedInventory()
+        def byId = inventory.register('account', 60000, PROJECTION)
+        int calls = 0
+        def describe = { projection -> calls++; project(projection, instance('i-1', 'prod')) }
+        inventory.instances(byId, 'default', [], PROJECTION, describe)
+        def byDns = planProjection('privateDnsName')
+
+        when:
+        def byDnsSource = inventory.register('account', 60000, byDns)
+        def instances = inventory.instances(byDnsSource, 'default', [], byDns, describe)
+
+        then:
+        calls == 2
+        instances[0].projectedValue(PropertyAccessor.forPath('privateDnsName')) == 'dns-i-1'
+
+        when:
+        inventory.instances(byId, 'default', [], PROJECTION, describe)
+
+        then:
+        calls == 2
+    }
+
+    def "sources with different mappings map the shared instances"() {
+        given:
+        def ec2 = Mock(Ec2Client)
+        EC2Supplier supplier = Mock(EC2Supplier) {
+            getEC2ForDefaultRegion() >> ec2
+        }
+        def inventory = new SharedInventory()
+        def byId = new Properties()
+        byId.put('nodename.selector', 'instanceId')
+        def byName = new Properties()
+        byName.put('nodename.selector', 'tags/env')
+        def first = new InstanceToNodeMapper(supplier, byId, 100)
+        def second = new InstanceToNodeMapper(supplier, byName, 100)
+        [first, second].each { it.setSharedInventory(inventory, 'account', 60000) }
+
+        when:
+        def idNodes = first.performQuery(false)
+        def nameNodes = second.performQuery(false)
+
+        then:
+        1 * ec2.describeInstances(_) >> DescribeInstancesResponse.builder()
+                .reservations(Reservation.builder().instances(instance('i-1', 'prod')).build())
+                .build()
+        idNodes.getNodeNames() == ['i-1'] as Set
+        nameNodes.getNodeNames() == ['prod'] as Set
+
+        cleanup:
+        first.shutdown()
+        second.shutdown()
+    }
+
+    private static final InstanceProjection PROJECTION = planProjection('instanceId')
+
+    private static InstanceProjection planProjection(String nodename) {
+        def mapping = new Properties()
+        mapping.put('nodename.selector', nodename)
+        MappingPlan.compile(mapping).projection()
+    }
+
+    private static List<Ec2Instance> project(InstanceProjection projection, Instance... instances) {
+        instances.collect { projection.project(it) }
+    }
+
+    private static Filter filter(String name, String... values) {
+        Filter.builder().name(name).values(values).build()
+    }
+
+    private static Instance instance(String id, String env) {
+        Instance.builder()
+                .instanceId(id)
+                .privateDnsName('dns-' + id)
+                .tags(Tag.builder().key('env').value(env).build())
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .build()
+    }
+}
@@ -0,0 +1,174 @@
+package com.dtolabs.rundeck.plugin.resources.ec2
+
+import software.amazon.awssdk.core.metrics.CoreMetric
+import software.amazon.awssdk.http.HttpMetric
+import software.amazon.awssdk.metrics.MetricCollector
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.lang.management.ManagementFactory
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+
+class SourceMetricsSpec extends Specification {
+
+    @Unroll
+    def "duration #millis falls in the bucket bounded by #bound"() {
+        expect:
+        LatencyHistogram.upperBound(LatencyHistogram.bucket(millis)) == bound
+
+        where:
+        millis           | bound
+        0                | 1
+        1                | 1
+        2                | 2
+        3                | 4
+        100              | 128
+        128              | 128
+        129              | 256
+        Long.MAX_VALUE   | Long.MAX_VALUE
+    }
+
+    def "percentiles are the bucket bound capped at the maximum"() {
+        given:
+        def histogram = new LatencyHistogram()
+
+        when:
+        (1..98).each { histogram.record(10) }
+        histogram.record(300)
+        histogram.record(700)
+
+        then:
+        histogram.count == 100
+        histogram.percentile(0.5) == 16
+        histogram.percentile(0.99) == 512
+        histogram.percentile(1.0) == 700
+        histogram.maxMillis == 700
+        histogram.buckets() == [16L: 98L, 512L: 1L, 1024L: 1L]
+        new LatencyHistogram().percentile(0.5) == 0
+    }
+
+    def "region queries publish their pages, instances and failures"() {
+        given:
+        def metrics = new SourceMetrics('us-east-1')
+
+        when:
+        def query = metrics.startRegion('us-east-1')
+        query.page()
+        query.page()
+        query.mapped(300, TimeUnit.MILLISECONDS.toNanos(20))
+        query.mapped(200, TimeUnit.MILLISECONDS.toNanos(5))
+        query.finished()
+        metrics.regionFailed('eu-west-1')
+
+        then:
+        metrics.regionPages == ['us-east-1': 2L, 'eu-west-1': 0L]
+        metrics.regionInstances['us-east-1'] == 500
+        metrics.regionMappingMillis['us-east-1'] == 25
+        metrics.regionFailures == ['us-east-1': 0L, 'eu-west-1': 1L]
+    }
+
+    def "SDK call metrics are recorded by operation with throttled attempts"() {
+        given:
+        def metrics = new SourceMetrics('us-east-1')
+        def publisher = new SdkMetricsPublisher(metrics)
+
+        when:
+        publisher.publish(apiCall('DescribeInstances', 40, 2, true, 2))
+        publisher.publish(apiCall('DescribeInstances', 10, 0, true, 0))
+        publisher.publish(apiCall('DescribeImages', 900, 3, false, 1))
+
+        then:
+        metrics.apiCalls == [DescribeImages: 1L, DescribeInstances: 2L]
+        metrics.apiRetries == [DescribeImages: 3L, DescribeInstances: 2L]
+        metrics.apiFailures == [DescribeImages: 1L, DescribeInstances: 0L]
+        metrics.apiThrottles == [DescribeImages: 1L, DescribeInstances: 2L]
+        metrics.apiLatencyMaxMillis.DescribeInstances == 40
+        metrics.throttlingEvents == 3
+    }
+
+    def "HTTP connection pool state is recorded from the last attempt"() {
+        given:
+        def metrics = new SourceMetrics('us-east-1')
+        def publisher = new SdkMetricsPublisher(metrics)
+
+        when:
+        publisher.publish(apiCall('DescribeInstances', 40, 0, true, 0, [leased: 3, pending: 4, available: 1, max: 5]))
+        publisher.publish(apiCall('DescribeInstances', 40, 0, true, 0, [leased: 2, pending: 0, available: 3, max: 5]))
+
+        then:
+        metrics.httpLeasedConnections == 2
+        metrics.httpPendingAcquires == 0
+        metrics.httpPendingAcquiresMax == 4
+        metrics.httpAvailableConnections == 3
+        metrics.httpMaxConnections == 5
+    }
+
+    def "metrics are readable over JMX until unregistered"() {
+        given:
+        def metrics = new SourceMetrics('us-east-1')
+        def hits = 3L
+        metrics.cache('imageNames', { hits }, { 1L })
+        metrics.refreshed(TimeUnit.MILLISECONDS.toNanos(120), 42)
+        def server = ManagementFactory.platformMBeanServer
+
+        when:
+        metrics.register('spec')
+
+        then:
+        server.getAttribute(metrics.objectName, 'RefreshCount') == 1L
+        server.getAttribute(metrics.objectName, 'NodeCount') == 42
+        metrics.cacheHitRates == [imageNames: 0.75d]
+
+        when: "a source with the same configuration is registered"
+        def other = new SourceMetrics('us-east-1')
+        other.register('spec')
+
+        then: "both sources keep their MBean"
+        other.objectName != metrics.objectName
+        server.getAttribute(metrics.objectName, 'RefreshCount') == 1L
+        server.getAttribute(other.objectName, 'RefreshCount') == 0L
+
+        when:
+        metrics.unregister()
+
+        then:
+        !server.isRegistered(metrics.objectName)
+        server.isRegistered(other.objectName)
+
+        when:
+        other.unregister()
+
+        then:
+        !server.isRegistered(other.objectName)
+    }
+
+    private static def apiCall(
+            String operation,
+            long millis,
+            int retries,
+            boolean successful,
+            int throttled,
+            Map<String, Integer> pool = null
+    ) {
+        def collector = MetricCollector.create('ApiCall')
+        collector.reportMetric(CoreMetric.OPERATION_NAME, operation)
+        collector.reportMetric(CoreMetric.API_CALL_DURATION, Duration.ofMillis(millis))
+        collector.reportMetric(CoreMetric.RETRY_COUNT, retries)
+        collector.reportMetric(CoreMetric.API_CALL_SUCCESSFUL, successful)
+        (0..retries).each { attempt ->
+            def child = collector.createChild('ApiCallAttempt')
+            if (attempt < throttled) {
+                child.reportMetric(CoreMetric.ERROR_TYPE, SdkMetricsPublisher.THROTTLING)
+            }
+            if (null != pool) {
+                def http = child.createChild('HttpClient')
+                http.reportMetric(HttpMetric.LEASED_CONCURRENCY, pool.leased)
+                http.reportMetric(HttpMetric.PENDING_CONCURRENCY_ACQUIRES, pool.pending)
+                http.reportMetric(HttpMetric.AVAILABLE_CONCURRENCY, pool.available)
+                http.reportMetric(HttpMetric.MAX_CONCURRENCY, pool.max)
+            }
+        }
+        collector.collect()
+    }
+}